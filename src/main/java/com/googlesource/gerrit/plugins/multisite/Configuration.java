@@ -23,6 +23,7 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.server.config.SitePaths;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -32,6 +33,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
@@ -247,8 +249,16 @@ public class Configuration {
   public static class Event extends Forwarding {
     static final String EVENT_SECTION = "event";
 
+    private final int threadPoolSize;
+
     private Event(Supplier<Config> cfg) {
       super(cfg, EVENT_SECTION);
+      threadPoolSize =
+          getInt(cfg, EVENT_SECTION, null, THREAD_POOL_SIZE_KEY, DEFAULT_THREAD_POOL_SIZE);
+    }
+
+    public int threadPoolSize() {
+      return threadPoolSize;
     }
   }
 
@@ -256,12 +266,35 @@ public class Configuration {
     static final String INDEX_SECTION = "index";
     static final String MAX_TRIES_KEY = "maxTries";
     static final String RETRY_INTERVAL_KEY = "retryInterval";
+    static final String MAX_RETRY_INTERVAL_KEY = "maxRetryInterval";
+    static final int DEFAULT_MAX_RETRY_INTERVAL = 300000;
+    static final String COALESCE_WINDOW_MS_KEY = "coalesceWindowMs";
+    static final int DEFAULT_COALESCE_WINDOW_MS = 0;
+    static final String RECEIVER_COALESCE_WINDOW_MS_KEY = "receiverCoalesceWindowMs";
+    static final int DEFAULT_RECEIVER_COALESCE_WINDOW_MS = 0;
+    static final String QUEUE_HIGH_WATER_MARK_KEY = "queueHighWaterMark";
+    static final String QUEUE_LOW_WATER_MARK_KEY = "queueLowWaterMark";
+    static final int DEFAULT_QUEUE_HIGH_WATER_MARK = 0;
+    static final String PRIORITY_THREADS_KEY = "priorityThreads";
+    static final int DEFAULT_PRIORITY_THREADS = 0;
+    static final String BATCH_THREAD_SHARE_KEY = "batchThreadShare";
+    static final int DEFAULT_BATCH_THREAD_SHARE = 25;
+    static final String CHANGE_CHECKER_CACHE_SIZE_KEY = "changeCheckerCacheSize";
+    static final int DEFAULT_CHANGE_CHECKER_CACHE_SIZE = 1024;
 
     private final int threadPoolSize;
     private final int retryInterval;
+    private final int maxRetryInterval;
     private final int maxTries;
 
     private final int numStripedLocks;
+    private final int coalesceWindowMs;
+    private final int receiverCoalesceWindowMs;
+    private final int queueHighWaterMark;
+    private final int queueLowWaterMark;
+    private final int priorityThreads;
+    private final int batchThreadShare;
+    private final int changeCheckerCacheSize;
 
     private Index(Supplier<Config> cfg) {
       super(cfg, INDEX_SECTION);
@@ -269,9 +302,45 @@ public class Configuration {
           getInt(cfg, INDEX_SECTION, null, THREAD_POOL_SIZE_KEY, DEFAULT_THREAD_POOL_SIZE);
       retryInterval =
           getInt(cfg, INDEX_SECTION, null, RETRY_INTERVAL_KEY, DEFAULT_INDEX_RETRY_INTERVAL);
+      maxRetryInterval =
+          Math.max(
+              retryInterval,
+              getInt(cfg, INDEX_SECTION, null, MAX_RETRY_INTERVAL_KEY, DEFAULT_MAX_RETRY_INTERVAL));
       maxTries = getInt(cfg, INDEX_SECTION, null, MAX_TRIES_KEY, DEFAULT_INDEX_MAX_TRIES);
       numStripedLocks =
           getInt(cfg, INDEX_SECTION, null, NUM_STRIPED_LOCKS, DEFAULT_NUM_STRIPED_LOCKS);
+      coalesceWindowMs =
+          getInt(cfg, INDEX_SECTION, null, COALESCE_WINDOW_MS_KEY, DEFAULT_COALESCE_WINDOW_MS);
+      receiverCoalesceWindowMs =
+          getInt(
+              cfg,
+              INDEX_SECTION,
+              null,
+              RECEIVER_COALESCE_WINDOW_MS_KEY,
+              DEFAULT_RECEIVER_COALESCE_WINDOW_MS);
+      queueHighWaterMark =
+          getInt(
+              cfg, INDEX_SECTION, null, QUEUE_HIGH_WATER_MARK_KEY, DEFAULT_QUEUE_HIGH_WATER_MARK);
+      queueLowWaterMark =
+          Math.min(
+              getInt(cfg, INDEX_SECTION, null, QUEUE_LOW_WATER_MARK_KEY, queueHighWaterMark / 2),
+              queueHighWaterMark);
+      priorityThreads =
+          getInt(cfg, INDEX_SECTION, null, PRIORITY_THREADS_KEY, DEFAULT_PRIORITY_THREADS);
+      batchThreadShare =
+          Math.max(
+              0,
+              Math.min(
+                  getInt(
+                      cfg, INDEX_SECTION, null, BATCH_THREAD_SHARE_KEY, DEFAULT_BATCH_THREAD_SHARE),
+                  100));
+      changeCheckerCacheSize =
+          getInt(
+              cfg,
+              INDEX_SECTION,
+              null,
+              CHANGE_CHECKER_CACHE_SIZE_KEY,
+              DEFAULT_CHANGE_CHECKER_CACHE_SIZE);
     }
 
     public int threadPoolSize() {
@@ -282,6 +351,10 @@ public class Configuration {
       return retryInterval;
     }
 
+    public int maxRetryInterval() {
+      return maxRetryInterval;
+    }
+
     public int maxTries() {
       return maxTries;
     }
@@ -289,19 +362,218 @@ public class Configuration {
     public int numStripedLocks() {
       return numStripedLocks;
     }
+
+    public int coalesceWindowMs() {
+      return coalesceWindowMs;
+    }
+
+    public int receiverCoalesceWindowMs() {
+      return receiverCoalesceWindowMs;
+    }
+
+    public int queueHighWaterMark() {
+      return queueHighWaterMark;
+    }
+
+    public int queueLowWaterMark() {
+      return queueLowWaterMark;
+    }
+
+    public int priorityThreads() {
+      return priorityThreads;
+    }
+
+    /** @return the maximum number of priority threads processing batch index events at once */
+    public int batchThreads() {
+      return Math.max(1, priorityThreads * batchThreadShare / 100);
+    }
+
+    public int changeCheckerCacheSize() {
+      return changeCheckerCacheSize;
+    }
   }
 
   public static class Broker {
     static final String BROKER_SECTION = "broker";
+    static final String BATCH_SIZE_KEY = "batchSize";
+    static final String BATCH_LINGER_MS_KEY = "batchLingerMs";
+    static final int DEFAULT_BATCH_SIZE = 1;
+    static final int DEFAULT_BATCH_LINGER_MS = 50;
+    static final String JOURNAL_ENABLED_KEY = "journalEnabled";
+    static final String JOURNAL_MAX_SIZE_KEY = "journalMaxSize";
+    static final String JOURNAL_DRAIN_INTERVAL_MS_KEY = "journalDrainIntervalMs";
+    static final boolean DEFAULT_JOURNAL_ENABLED = false;
+    static final int DEFAULT_JOURNAL_MAX_SIZE = 64 * 1024 * 1024;
+    static final int DEFAULT_JOURNAL_DRAIN_INTERVAL_MS = 10000;
+    static final String CODEC_KEY = "codec";
+    static final String DEFAULT_CODEC = "json";
+    static final String COMPRESS_TOPIC_KEY = "compressTopic";
+    static final String COMPRESSION_THRESHOLD_KEY = "compressionThreshold";
+    static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    static final int DEFAULT_CONSUMER_THREADS = 1;
+    static final String CONSUMER_MAX_PENDING_KEY = "consumerMaxPending";
+    static final int DEFAULT_CONSUMER_MAX_PENDING = 1000;
+    static final String REPLAY_FROM_CHECKPOINT_KEY = "replayFromCheckpoint";
+    static final boolean DEFAULT_REPLAY_FROM_CHECKPOINT = false;
+    static final String SHUTDOWN_DRAIN_TIMEOUT_MS_KEY = "shutdownDrainTimeoutMs";
+    static final int DEFAULT_SHUTDOWN_DRAIN_TIMEOUT_MS = 10000;
+    static final String DEAD_LETTER_ENABLED_KEY = "deadLetterEnabled";
+    static final boolean DEFAULT_DEAD_LETTER_ENABLED = false;
+    static final String DEAD_LETTER_MAX_FAILURES_KEY = "deadLetterMaxFailures";
+    static final int DEFAULT_DEAD_LETTER_MAX_FAILURES = 3;
+
     private final Config cfg;
+    private final int threadPoolSize;
+    private final int batchSize;
+    private final int batchLingerMs;
+    private final boolean journalEnabled;
+    private final int journalMaxSize;
+    private final int journalDrainIntervalMs;
+    private final String codec;
+    private final Set<String> compressedTopics;
+    private final int compressionThreshold;
+    private final int consumerMaxPending;
+    private final boolean replayFromCheckpoint;
+    private final int shutdownDrainTimeoutMs;
+    private final boolean deadLetterEnabled;
+    private final int deadLetterMaxFailures;
 
     Broker(Supplier<Config> cfgSupplier) {
       cfg = cfgSupplier.get();
+      threadPoolSize =
+          getInt(
+              cfgSupplier, BROKER_SECTION, null, THREAD_POOL_SIZE_KEY, DEFAULT_THREAD_POOL_SIZE);
+      batchSize = getInt(cfgSupplier, BROKER_SECTION, null, BATCH_SIZE_KEY, DEFAULT_BATCH_SIZE);
+      batchLingerMs =
+          getInt(cfgSupplier, BROKER_SECTION, null, BATCH_LINGER_MS_KEY, DEFAULT_BATCH_LINGER_MS);
+      journalEnabled =
+          Configuration.getBoolean(
+              cfgSupplier, BROKER_SECTION, null, JOURNAL_ENABLED_KEY, DEFAULT_JOURNAL_ENABLED);
+      journalMaxSize =
+          getInt(cfgSupplier, BROKER_SECTION, null, JOURNAL_MAX_SIZE_KEY, DEFAULT_JOURNAL_MAX_SIZE);
+      journalDrainIntervalMs =
+          getInt(
+              cfgSupplier,
+              BROKER_SECTION,
+              null,
+              JOURNAL_DRAIN_INTERVAL_MS_KEY,
+              DEFAULT_JOURNAL_DRAIN_INTERVAL_MS);
+      codec =
+          MoreObjects.firstNonNull(cfg.getString(BROKER_SECTION, null, CODEC_KEY), DEFAULT_CODEC);
+      compressedTopics =
+          ImmutableSet.copyOf(cfg.getStringList(BROKER_SECTION, null, COMPRESS_TOPIC_KEY));
+      compressionThreshold =
+          getInt(
+              cfgSupplier,
+              BROKER_SECTION,
+              null,
+              COMPRESSION_THRESHOLD_KEY,
+              DEFAULT_COMPRESSION_THRESHOLD);
+      consumerMaxPending =
+          getInt(
+              cfgSupplier,
+              BROKER_SECTION,
+              null,
+              CONSUMER_MAX_PENDING_KEY,
+              DEFAULT_CONSUMER_MAX_PENDING);
+      replayFromCheckpoint =
+          Configuration.getBoolean(
+              cfgSupplier,
+              BROKER_SECTION,
+              null,
+              REPLAY_FROM_CHECKPOINT_KEY,
+              DEFAULT_REPLAY_FROM_CHECKPOINT);
+      shutdownDrainTimeoutMs =
+          getInt(
+              cfgSupplier,
+              BROKER_SECTION,
+              null,
+              SHUTDOWN_DRAIN_TIMEOUT_MS_KEY,
+              DEFAULT_SHUTDOWN_DRAIN_TIMEOUT_MS);
+      deadLetterEnabled =
+          Configuration.getBoolean(
+              cfgSupplier,
+              BROKER_SECTION,
+              null,
+              DEAD_LETTER_ENABLED_KEY,
+              DEFAULT_DEAD_LETTER_ENABLED);
+      deadLetterMaxFailures =
+          getInt(
+              cfgSupplier,
+              BROKER_SECTION,
+              null,
+              DEAD_LETTER_MAX_FAILURES_KEY,
+              DEFAULT_DEAD_LETTER_MAX_FAILURES);
     }
 
     public String getTopic(String topicKey, String defValue) {
       return MoreObjects.firstNonNull(cfg.getString(BROKER_SECTION, null, topicKey), defValue);
     }
+
+    public int threadPoolSize() {
+      return threadPoolSize;
+    }
+
+    public int batchSize() {
+      return batchSize;
+    }
+
+    public int batchLingerMs() {
+      return batchLingerMs;
+    }
+
+    public boolean batchEnabled() {
+      return batchSize > 1;
+    }
+
+    public boolean journalEnabled() {
+      return journalEnabled;
+    }
+
+    public int journalMaxSize() {
+      return journalMaxSize;
+    }
+
+    public int journalDrainIntervalMs() {
+      return journalDrainIntervalMs;
+    }
+
+    public String codec() {
+      return codec;
+    }
+
+    public boolean compressionEnabled(String topic) {
+      return compressedTopics.contains(topic);
+    }
+
+    public int compressionThreshold() {
+      return compressionThreshold;
+    }
+
+    public int getConsumerThreads(String consumerThreadsKey) {
+      return getInt(
+          ofInstance(cfg), BROKER_SECTION, null, consumerThreadsKey, DEFAULT_CONSUMER_THREADS);
+    }
+
+    public int consumerMaxPending() {
+      return consumerMaxPending;
+    }
+
+    public boolean replayFromCheckpoint() {
+      return replayFromCheckpoint;
+    }
+
+    public int shutdownDrainTimeoutMs() {
+      return shutdownDrainTimeoutMs;
+    }
+
+    public boolean deadLetterEnabled() {
+      return deadLetterEnabled;
+    }
+
+    public int deadLetterMaxFailures() {
+      return deadLetterMaxFailures;
+    }
   }
 
   static boolean getBoolean(
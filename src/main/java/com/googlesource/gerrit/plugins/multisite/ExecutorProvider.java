@@ -14,19 +14,57 @@
 
 package com.googlesource.gerrit.plugins.multisite;
 
+import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.Provider;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public abstract class ExecutorProvider
     implements Provider<ScheduledExecutorService>, LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final String threadNamePrefix;
+  private final long drainTimeoutMs;
   private ScheduledExecutorService executor;
 
-  protected ExecutorProvider(WorkQueue workQueue, int threadPoolSize, String threadNamePrefix) {
+  protected ExecutorProvider(
+      WorkQueue workQueue, int threadPoolSize, String threadNamePrefix, long drainTimeoutMs) {
+    this.threadNamePrefix = threadNamePrefix;
+    this.drainTimeoutMs = drainTimeoutMs;
     executor = workQueue.createQueue(threadPoolSize, threadNamePrefix);
   }
 
+  /**
+   * Shut down an executor, letting the queued and scheduled tasks run up to a deadline. The tasks
+   * still pending once the deadline is reached are cancelled.
+   *
+   * @param executor the executor to shut down
+   * @param name the name of the executor used for logging
+   * @param timeoutMs maximum time in milliseconds to wait for the pending tasks
+   * @return true if all the pending tasks have been executed, false otherwise
+   */
+  public static boolean drain(ExecutorService executor, String name, long timeoutMs) {
+    executor.shutdown();
+    try {
+      if (executor.awaitTermination(Math.max(timeoutMs, 0), TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    int cancelled = executor.shutdownNow().size();
+    if (cancelled > 0) {
+      logger.atWarning().log(
+          "%d task(s) of %s cancelled after waiting %d ms for the queue to drain",
+          cancelled, name, timeoutMs);
+    }
+    return false;
+  }
+
   @Override
   public void start() {
     // do nothing
@@ -34,8 +72,10 @@ public abstract class ExecutorProvider
 
   @Override
   public void stop() {
-    executor.shutdown();
-    executor = null;
+    if (executor != null) {
+      drain(executor, threadNamePrefix, drainTimeoutMs);
+      executor = null;
+    }
   }
 
   @Override
@@ -0,0 +1,145 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Executor running the tasks submitted with the same key one at a time and in submission order,
+ * whilst tasks of different keys run in parallel on the underlying executor.
+ *
+ * <p>Each key owns a queue that is drained by a single task at a time on the underlying executor.
+ * After every task the drainer is resubmitted, so that busy keys do not starve the others. Once the
+ * underlying executor is shut down, the queues are drained on the thread running their last task,
+ * or on the submitting thread, so that shutting down the executor does not drop the queued tasks.
+ */
+public class KeyedExecutor {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final Executor executor;
+  private final Map<String, KeyQueue> queues = new ConcurrentHashMap<>();
+
+  public KeyedExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Execute a task after all the tasks previously submitted with the same key.
+   *
+   * @param key the ordering key, e.g. a project name
+   * @param task the task to execute
+   */
+  public void execute(String key, Runnable task) {
+    AtomicReference<KeyQueue> newQueue = new AtomicReference<>();
+    queues.compute(
+        key,
+        (k, queue) -> {
+          if (queue == null) {
+            queue = new KeyQueue();
+            newQueue.set(queue);
+          }
+          queue.add(task);
+          return queue;
+        });
+
+    if (newQueue.get() != null && !submit(key, newQueue.get())) {
+      runNext(key, newQueue.get());
+    }
+  }
+
+  /** @return the number of tasks queued or running for each key with pending tasks */
+  public Map<String, Integer> queueDepths() {
+    ImmutableMap.Builder<String, Integer> depths = ImmutableMap.builder();
+    queues.forEach((key, queue) -> depths.put(key, queue.size()));
+    return depths.build();
+  }
+
+  /** @return the total number of tasks queued or running */
+  public int size() {
+    return queues.values().stream().mapToInt(KeyQueue::size).sum();
+  }
+
+  /** @return the number of tasks queued or running for the busiest key */
+  public int maxQueueDepth() {
+    return queues.values().stream().mapToInt(KeyQueue::size).max().orElse(0);
+  }
+
+  /** @return the number of keys with queued or running tasks */
+  public int activeKeys() {
+    return queues.size();
+  }
+
+  private boolean submit(String key, KeyQueue queue) {
+    try {
+      executor.execute(() -> runNext(key, queue));
+      return true;
+    } catch (RejectedExecutionException e) {
+      logger.atFine().log("Executor stopped, draining the tasks for key %s inline", key);
+      return false;
+    }
+  }
+
+  private void runNext(String key, KeyQueue queue) {
+    KeyQueue next = queue;
+    while (next != null) {
+      try {
+        next.head().run();
+      } catch (RuntimeException e) {
+        logger.atSevere().withCause(e).log("Task for key %s failed", key);
+      }
+
+      next = queues.computeIfPresent(key, (k, q) -> q.removeHead() ? q : null);
+      if (next != null && submit(key, next)) {
+        return;
+      }
+      if (next != null && Thread.currentThread().isInterrupted()) {
+        // Draining deadline reached: the executor is being forcibly shut down
+        logger.atWarning().log(
+            "%d task(s) for key %s not executed before stopping", next.size(), key);
+        return;
+      }
+    }
+  }
+
+  private static class KeyQueue {
+    private final Deque<Runnable> tasks = new ArrayDeque<>();
+
+    synchronized void add(Runnable task) {
+      tasks.add(task);
+    }
+
+    synchronized Runnable head() {
+      return tasks.peek();
+    }
+
+    /** @return true if more tasks are left after removing the head */
+    synchronized boolean removeHead() {
+      tasks.poll();
+      return !tasks.isEmpty();
+    }
+
+    synchronized int size() {
+      return tasks.size();
+    }
+  }
+}
@@ -0,0 +1,59 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite;
+
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+@Singleton
+public class KeyedExecutorMetrics extends MultiSiteMetrics {
+  private final MetricMaker metricMaker;
+
+  @Inject
+  public KeyedExecutorMetrics(MetricMaker metricMaker) {
+    this.metricMaker = metricMaker;
+  }
+
+  /**
+   * Expose the queue depth of a keyed executor, in total and for the busiest key. The depth of
+   * each key is not exposed, as the number of keys, e.g. projects, is unbounded.
+   *
+   * @param name name of the executor, used as prefix of its metrics
+   * @param executor the executor to monitor
+   */
+  public void monitor(String name, KeyedExecutor executor) {
+    metricMaker.newCallbackMetric(
+        String.format("multi_site/%s/queue_depth", name),
+        Integer.class,
+        new Description("Number of tasks queued or running").setGauge().setUnit("tasks"),
+        executor::size);
+
+    metricMaker.newCallbackMetric(
+        String.format("multi_site/%s/queue_depth_max_key", name),
+        Integer.class,
+        new Description("Number of tasks queued or running for the busiest key")
+            .setGauge()
+            .setUnit("tasks"),
+        executor::maxQueueDepth);
+
+    metricMaker.newCallbackMetric(
+        String.format("multi_site/%s/active_keys", name),
+        Integer.class,
+        new Description("Number of keys with tasks queued or running").setGauge().setUnit("keys"),
+        executor::activeKeys);
+  }
+}
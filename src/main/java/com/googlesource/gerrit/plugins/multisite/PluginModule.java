@@ -20,10 +20,16 @@ import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.inject.Inject;
 import com.google.inject.Scopes;
+import com.googlesource.gerrit.plugins.multisite.broker.BinaryEventCodec;
 import com.googlesource.gerrit.plugins.multisite.broker.BrokerApiWrapper;
+import com.googlesource.gerrit.plugins.multisite.broker.BrokerPublisherExecutor;
+import com.googlesource.gerrit.plugins.multisite.broker.BrokerPublisherExecutorProvider;
+import com.googlesource.gerrit.plugins.multisite.broker.EventCodec;
+import com.googlesource.gerrit.plugins.multisite.broker.OutboundJournal;
 import com.googlesource.gerrit.plugins.multisite.consumer.MultiSiteConsumerRunner;
 import com.googlesource.gerrit.plugins.multisite.consumer.SubscriberModule;
 import com.googlesource.gerrit.plugins.multisite.forwarder.broker.BrokerForwarderModule;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class PluginModule extends LifecycleModule {
   private Configuration config;
@@ -35,7 +41,15 @@ public class PluginModule extends LifecycleModule {
 
   @Override
   protected void configure() {
+    bind(ScheduledExecutorService.class)
+        .annotatedWith(BrokerPublisherExecutor.class)
+        .toProvider(BrokerPublisherExecutorProvider.class);
+    listener().to(BrokerPublisherExecutorProvider.class);
+    listener().to(OutboundJournal.class);
+    DynamicSet.setOf(binder(), EventCodec.class);
+    DynamicSet.bind(binder(), EventCodec.class).to(BinaryEventCodec.class);
     bind(BrokerApiWrapper.class).in(Scopes.SINGLETON);
+    listener().to(BrokerApiWrapper.class);
     install(new SubscriberModule());
 
     install(new BrokerForwarderModule());
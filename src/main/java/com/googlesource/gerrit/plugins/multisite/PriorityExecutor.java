@@ -0,0 +1,153 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite;
+
+import com.google.common.flogger.FluentLogger;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Executor sharing a pool of threads between interactive and batch tasks.
+ *
+ * <p>Whenever a thread of the pool becomes available, the oldest interactive task is executed
+ * first. Batch tasks are executed only when no interactive task is waiting, and never on more than
+ * a configured number of threads at the same time, so that the remaining threads are always
+ * available for the interactive tasks.
+ */
+public class PriorityExecutor {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  public enum Priority {
+    INTERACTIVE,
+    BATCH
+  }
+
+  private final Executor pool;
+  private final int maxBatchThreads;
+  private final BiConsumer<Priority, Long> waitTimeRecorder;
+  private final Map<Priority, Deque<QueuedTask>> queues = new EnumMap<>(Priority.class);
+  private int runningBatchTasks;
+  private int parkedBatchTasks;
+
+  /**
+   * @param pool the executor whose threads are shared
+   * @param maxBatchThreads maximum number of threads of the pool running batch tasks at the same
+   *     time
+   * @param waitTimeRecorder receives the time in nanoseconds each task has been waiting
+   */
+  public PriorityExecutor(
+      Executor pool, int maxBatchThreads, BiConsumer<Priority, Long> waitTimeRecorder) {
+    this.pool = pool;
+    this.maxBatchThreads = Math.max(maxBatchThreads, 1);
+    this.waitTimeRecorder = waitTimeRecorder;
+    for (Priority priority : Priority.values()) {
+      queues.put(priority, new ArrayDeque<>());
+    }
+  }
+
+  /**
+   * @param priority the priority of the tasks
+   * @return an executor running its tasks with the given priority
+   */
+  public Executor executor(Priority priority) {
+    return task -> execute(priority, task);
+  }
+
+  /** @return the number of tasks of the given priority waiting for a thread */
+  public synchronized int queueDepth(Priority priority) {
+    return queues.get(priority).size();
+  }
+
+  private void execute(Priority priority, Runnable task) {
+    QueuedTask queued = new QueuedTask(task);
+    synchronized (this) {
+      queues.get(priority).add(queued);
+    }
+    // Each task submitted to the pool runs the most urgent task waiting when a thread is available
+    try {
+      pool.execute(this::runNext);
+    } catch (RejectedExecutionException e) {
+      // The pool is stopped: let the caller know the task is not going to be executed
+      synchronized (this) {
+        queues.get(priority).remove(queued);
+      }
+      throw e;
+    }
+  }
+
+  private void runNext() {
+    Priority priority;
+    QueuedTask next;
+    synchronized (this) {
+      if (!queues.get(Priority.INTERACTIVE).isEmpty()) {
+        priority = Priority.INTERACTIVE;
+      } else if (queues.get(Priority.BATCH).isEmpty()) {
+        return;
+      } else if (runningBatchTasks < maxBatchThreads) {
+        priority = Priority.BATCH;
+        runningBatchTasks++;
+      } else {
+        // Resubmitted to the pool once one of the running batch tasks completes
+        parkedBatchTasks++;
+        return;
+      }
+      next = queues.get(priority).poll();
+    }
+
+    waitTimeRecorder.accept(priority, System.nanoTime() - next.queuedAt);
+    try {
+      next.task.run();
+    } catch (RuntimeException e) {
+      logger.atSevere().withCause(e).log("%s task failed", priority);
+    } finally {
+      if (priority == Priority.BATCH) {
+        batchTaskCompleted();
+      }
+    }
+  }
+
+  private void batchTaskCompleted() {
+    boolean resubmit;
+    synchronized (this) {
+      runningBatchTasks--;
+      resubmit = parkedBatchTasks > 0;
+      if (resubmit) {
+        parkedBatchTasks--;
+      }
+    }
+    if (resubmit) {
+      try {
+        pool.execute(this::runNext);
+      } catch (RejectedExecutionException e) {
+        // The pool is stopped: run the parked batch task on this thread rather than losing it
+        runNext();
+      }
+    }
+  }
+
+  private static class QueuedTask {
+    final Runnable task;
+    final long queuedAt = System.nanoTime();
+
+    QueuedTask(Runnable task) {
+      this.task = task;
+    }
+  }
+}
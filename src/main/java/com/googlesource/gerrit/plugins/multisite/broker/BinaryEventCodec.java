@@ -0,0 +1,281 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.broker;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventGson;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.AccountIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.BatchEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.CacheEvictionEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.GroupIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectListUpdateEvent;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Compact binary codec for the multi-site index, cache eviction and project list events.
+ *
+ * <p>Every event is serialized as a one byte type tag, followed by its creation timestamp and its
+ * fields in declaration order. Integers are written as variable-length quantities, strings as UTF-8
+ * prefixed by their length and SHA-1s as raw 20 bytes. Cache keys are kept as JSON, because their
+ * type depends on the cache. Batches are supported as long as all their events are.
+ */
+@Singleton
+public class BinaryEventCodec implements EventCodec {
+  public static final String NAME = "binary";
+  static final int VERSION = 1;
+
+  private static final int CHANGE_INDEX = 1;
+  private static final int ACCOUNT_INDEX = 2;
+  private static final int GROUP_INDEX = 3;
+  private static final int PROJECT_INDEX = 4;
+  private static final int CACHE_EVICTION = 5;
+  private static final int PROJECT_LIST_UPDATE = 6;
+  private static final int BATCH = 7;
+
+  private static final int NO_SHA1 = 0;
+  private static final int RAW_SHA1 = 1;
+  private static final int STRING_SHA1 = 2;
+
+  private final Gson gson;
+
+  @Inject
+  public BinaryEventCodec(@EventGson Gson gson) {
+    this.gson = gson;
+  }
+
+  @Override
+  public String name() {
+    return NAME;
+  }
+
+  @Override
+  public int version() {
+    return VERSION;
+  }
+
+  @Override
+  public boolean canEncode(Event event) {
+    if (event instanceof BatchEvent) {
+      return ((BatchEvent) event).events.stream().allMatch(this::canEncode);
+    }
+    return event instanceof ChangeIndexEvent
+        || event instanceof AccountIndexEvent
+        || event instanceof GroupIndexEvent
+        || event instanceof ProjectIndexEvent
+        || event instanceof CacheEvictionEvent
+        || event instanceof ProjectListUpdateEvent;
+  }
+
+  @Override
+  public byte[] encode(Event event) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      write(out, event);
+    }
+    return bytes.toByteArray();
+  }
+
+  @Override
+  public Event decode(int version, byte[] payload) throws IOException {
+    if (version != VERSION) {
+      throw new IOException("Unsupported binary event codec version " + version);
+    }
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+      return read(in);
+    }
+  }
+
+  private void write(DataOutput out, Event event) throws IOException {
+    if (event instanceof ChangeIndexEvent) {
+      ChangeIndexEvent changeIndex = (ChangeIndexEvent) event;
+      writeHeader(out, CHANGE_INDEX, event);
+      writeString(out, changeIndex.projectName);
+      writeVarLong(out, changeIndex.changeId);
+      writeSha1(out, changeIndex.targetSha);
+      out.writeBoolean(changeIndex.deleted);
+    } else if (event instanceof AccountIndexEvent) {
+      writeHeader(out, ACCOUNT_INDEX, event);
+      writeVarLong(out, ((AccountIndexEvent) event).accountId);
+    } else if (event instanceof GroupIndexEvent) {
+      GroupIndexEvent groupIndex = (GroupIndexEvent) event;
+      writeHeader(out, GROUP_INDEX, event);
+      writeString(out, groupIndex.groupUUID);
+      writeSha1(out, groupIndex.sha1 == null ? null : groupIndex.sha1.name());
+    } else if (event instanceof ProjectIndexEvent) {
+      writeHeader(out, PROJECT_INDEX, event);
+      writeString(out, ((ProjectIndexEvent) event).projectName);
+    } else if (event instanceof CacheEvictionEvent) {
+      CacheEvictionEvent cacheEviction = (CacheEvictionEvent) event;
+      writeHeader(out, CACHE_EVICTION, event);
+      writeString(out, cacheEviction.cacheName);
+      writeString(out, cacheEviction.key == null ? null : gson.toJson(cacheEviction.key));
+    } else if (event instanceof ProjectListUpdateEvent) {
+      ProjectListUpdateEvent projectListUpdate = (ProjectListUpdateEvent) event;
+      writeHeader(out, PROJECT_LIST_UPDATE, event);
+      writeString(out, projectListUpdate.projectName);
+      out.writeBoolean(projectListUpdate.remove);
+    } else if (event instanceof BatchEvent) {
+      List<Event> events = ((BatchEvent) event).events;
+      writeHeader(out, BATCH, event);
+      writeVarLong(out, events.size());
+      for (Event batchedEvent : events) {
+        write(out, batchedEvent);
+      }
+    } else {
+      throw new IOException("Unsupported event type " + event.getType());
+    }
+  }
+
+  private Event read(DataInput in) throws IOException {
+    int tag = in.readUnsignedByte();
+    long eventCreatedOn = readVarLong(in);
+    Event event;
+    switch (tag) {
+      case CHANGE_INDEX:
+        ChangeIndexEvent changeIndex =
+            new ChangeIndexEvent(readString(in), (int) readVarLong(in), false);
+        changeIndex.targetSha = readSha1(in);
+        changeIndex.deleted = in.readBoolean();
+        event = changeIndex;
+        break;
+      case ACCOUNT_INDEX:
+        event = new AccountIndexEvent((int) readVarLong(in));
+        break;
+      case GROUP_INDEX:
+        String groupUUID = readString(in);
+        String sha1 = readSha1(in);
+        event = new GroupIndexEvent(groupUUID, sha1 == null ? null : ObjectId.fromString(sha1));
+        break;
+      case PROJECT_INDEX:
+        event = new ProjectIndexEvent(readString(in));
+        break;
+      case CACHE_EVICTION:
+        String cacheName = readString(in);
+        String key = readString(in);
+        event =
+            new CacheEvictionEvent(
+                cacheName, key == null ? null : gson.fromJson(key, Object.class));
+        break;
+      case PROJECT_LIST_UPDATE:
+        event = new ProjectListUpdateEvent(readString(in), in.readBoolean());
+        break;
+      case BATCH:
+        int size = (int) readVarLong(in);
+        List<Event> events = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+          events.add(read(in));
+        }
+        event = new BatchEvent(events);
+        break;
+      default:
+        throw new IOException("Unknown binary event tag " + tag);
+    }
+    event.eventCreatedOn = eventCreatedOn;
+    return event;
+  }
+
+  private static void writeHeader(DataOutput out, int tag, Event event) throws IOException {
+    out.writeByte(tag);
+    writeVarLong(out, event.eventCreatedOn);
+  }
+
+  private static void writeString(DataOutput out, String value) throws IOException {
+    if (value == null) {
+      writeVarLong(out, 0);
+      return;
+    }
+    byte[] bytes = value.getBytes(UTF_8);
+    writeVarLong(out, bytes.length + 1L);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    long length = readVarLong(in);
+    if (length == 0) {
+      return null;
+    }
+    byte[] bytes = new byte[(int) (length - 1)];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private static void writeSha1(DataOutput out, String sha1) throws IOException {
+    if (sha1 == null) {
+      out.writeByte(NO_SHA1);
+    } else if (ObjectId.isId(sha1) && sha1.equals(sha1.toLowerCase(Locale.US))) {
+      byte[] raw = new byte[20];
+      ObjectId.fromString(sha1).copyRawTo(raw, 0);
+      out.writeByte(RAW_SHA1);
+      out.write(raw);
+    } else {
+      out.writeByte(STRING_SHA1);
+      writeString(out, sha1);
+    }
+  }
+
+  private static String readSha1(DataInput in) throws IOException {
+    int format = in.readUnsignedByte();
+    switch (format) {
+      case NO_SHA1:
+        return null;
+      case RAW_SHA1:
+        byte[] raw = new byte[20];
+        in.readFully(raw);
+        return ObjectId.fromRaw(raw).name();
+      case STRING_SHA1:
+        return readString(in);
+      default:
+        throw new IOException("Unknown SHA-1 format " + format);
+    }
+  }
+
+  private static void writeVarLong(DataOutput out, long value) throws IOException {
+    long remaining = value;
+    while ((remaining & ~0x7FL) != 0) {
+      out.writeByte((int) ((remaining & 0x7F) | 0x80));
+      remaining >>>= 7;
+    }
+    out.writeByte((int) remaining);
+  }
+
+  private static long readVarLong(DataInput in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed variable-length integer");
+  }
+}
@@ -17,37 +17,193 @@ package com.googlesource.gerrit.plugins.multisite.broker;
 import com.gerritforge.gerrit.eventbroker.BrokerApi;
 import com.gerritforge.gerrit.eventbroker.EventMessage;
 import com.gerritforge.gerrit.eventbroker.TopicSubscriber;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.registration.DynamicItem;
 import com.google.gerrit.server.events.Event;
 import com.google.inject.Inject;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import com.googlesource.gerrit.plugins.multisite.ExecutorProvider;
 import com.googlesource.gerrit.plugins.multisite.InstanceId;
+import com.googlesource.gerrit.plugins.multisite.KeyedExecutor;
 import com.googlesource.gerrit.plugins.multisite.MessageLogger;
 import com.googlesource.gerrit.plugins.multisite.MessageLogger.Direction;
 import com.googlesource.gerrit.plugins.multisite.forwarder.Context;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.EncodedEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.EventRoutingKey;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.MultiSiteEvent;
+import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
-public class BrokerApiWrapper implements BrokerApi {
+/**
+ * Publishes the events to the broker and consumes the messages received from it.
+ *
+ * <p>The asynchronous publishing keeps the order of the events sharing the same topic and {@link
+ * EventRoutingKey}: they are published one at a time by the publisher executor, whilst the events
+ * of different keys are published in parallel.
+ */
+public class BrokerApiWrapper implements BrokerApi, LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
   private final DynamicItem<BrokerApi> apiDelegate;
   private final BrokerMetrics metrics;
   private final MessageLogger msgLog;
   private final UUID instanceId;
+  private final ScheduledExecutorService publisherExecutor;
+  private final KeyedExecutor publishQueue;
+  private final BrokerBatchPublisher batchPublisher;
+  private final OutboundJournal journal;
+  private final int journalDrainIntervalMs;
+  private final EventCodecs codecs;
+  private final int shutdownDrainTimeoutMs;
+  private final Set<PendingSend> pendingSends = ConcurrentHashMap.newKeySet();
+  private final Object consumersPauseLock = new Object();
+  private boolean consumersPaused;
+  private volatile boolean consumersStopped;
+  private final Set<String> topicsLeftBehind = ConcurrentHashMap.newKeySet();
 
   @Inject
   public BrokerApiWrapper(
       DynamicItem<BrokerApi> apiDelegate,
       BrokerMetrics metrics,
       MessageLogger msgLog,
-      @InstanceId UUID instanceId) {
+      @InstanceId UUID instanceId,
+      Configuration cfg,
+      @BrokerPublisherExecutor ScheduledExecutorService publisherExecutor,
+      OutboundJournal journal,
+      EventCodecs codecs) {
     this.apiDelegate = apiDelegate;
     this.metrics = metrics;
     this.msgLog = msgLog;
     this.instanceId = instanceId;
+    this.publisherExecutor = publisherExecutor;
+    this.publishQueue = new KeyedExecutor(publisherExecutor);
+    this.batchPublisher =
+        cfg.broker().batchEnabled()
+            ? new BrokerBatchPublisher(
+                publisherExecutor,
+                cfg.broker().batchSize(),
+                cfg.broker().batchLingerMs(),
+                this::sendInOrder)
+            : null;
+    this.journal = journal;
+    this.journalDrainIntervalMs = cfg.broker().journalDrainIntervalMs();
+    this.shutdownDrainTimeoutMs = cfg.broker().shutdownDrainTimeoutMs();
+    this.codecs = codecs;
   }
 
+  /**
+   * Publish an event.
+   *
+   * <p>When batching is enabled the event is only added to a batch, so that the caller thread is
+   * not blocked until the batch is shipped. The result then tells whether the batch had already
+   * been published successfully, e.g. because the event filled it up, and a batch failing to be
+   * published is stored in the outbound journal, when enabled. Use {@link #sendAsync(String,
+   * Event)} to get the outcome of the publishing of the batch.
+   *
+   * @param topic the topic to publish the event to
+   * @param event the event to publish
+   * @return false if the event failed to be published
+   */
   public boolean send(String topic, Event event) {
-    return send(topic, apiDelegate.get().newMessage(instanceId, event));
+    if (batchPublisher == null) {
+      return sendNow(topic, event);
+    }
+
+    if (Context.isForwardedEvent()) {
+      return true;
+    }
+    return batchPublisher.add(topic, event).getNow(true);
+  }
+
+  /**
+   * Publish an event without blocking the caller thread.
+   *
+   * <p>The message is sent to the broker by the publisher executor, after the events previously
+   * sent to the same topic with the same routing key, and the broker metrics are recorded upon
+   * completion. When batching is enabled the future is completed once the batch of the event is
+   * published.
+   *
+   * @param topic the topic to publish the event to
+   * @param event the event to publish
+   * @return future completed with true if the event was successfully published, false otherwise
+   */
+  public CompletableFuture<Boolean> sendAsync(String topic, Event event) {
+    // The forwarded context is thread-local, hence it must be checked on the caller thread
+    if (Context.isForwardedEvent()) {
+      return CompletableFuture.completedFuture(true);
+    }
+
+    if (batchPublisher != null) {
+      return batchPublisher.add(topic, event);
+    }
+
+    PendingSend pending = new PendingSend(topic, event);
+    if (publisherExecutor.isShutdown()) {
+      if (journalPendingSend(pending)) {
+        return CompletableFuture.completedFuture(true);
+      }
+      logger.atSevere().log(
+          "Unable to publish event %s to topic %s: the publisher is stopped",
+          event.getType(), topic);
+      return CompletableFuture.completedFuture(false);
+    }
+
+    pendingSends.add(pending);
+    CompletableFuture<Boolean> published = new CompletableFuture<>();
+    publishQueue.execute(
+        publishKey(topic, event),
+        () -> {
+          if (!pendingSends.remove(pending)) {
+            // Already stored in the outbound journal when stopping
+            published.complete(true);
+            return;
+          }
+          try {
+            published.complete(sendNow(topic, event));
+          } catch (RuntimeException e) {
+            logger.atSevere().withCause(e).log(
+                "Unable to publish event %s to topic %s", event.getType(), topic);
+            published.completeExceptionally(e);
+          }
+        });
+    return published;
+  }
+
+  private CompletableFuture<Boolean> sendInOrder(String topic, Event event) {
+    CompletableFuture<Boolean> published = new CompletableFuture<>();
+    publishQueue.execute(
+        publishKey(topic, event),
+        () -> {
+          try {
+            published.complete(sendNow(topic, event));
+          } catch (RuntimeException e) {
+            published.completeExceptionally(e);
+          }
+        });
+    return published;
+  }
+
+  private static String publishKey(String topic, Event event) {
+    return topic + "/" + EventRoutingKey.of(event).orElse("");
+  }
+
+  private boolean sendNow(String topic, Event event) {
+    return send(topic, newMessage(codecs.encode(topic, event)));
+  }
+
+  private EventMessage newMessage(Event event) {
+    EventMessage message = apiDelegate.get().newMessage(instanceId, event);
+    return new RoutedEventMessage(
+        message.getHeader(), message.getEvent(), EventRoutingKey.of(event).orElse(null));
   }
 
   @Override
@@ -55,23 +211,213 @@ public class BrokerApiWrapper implements BrokerApi {
     if (Context.isForwardedEvent()) {
       return true;
     }
+
+    if (journal.isEnabled() && !journal.isEmpty()) {
+      // Keep the publishing order until all the journaled events have been replayed
+      return journal.append(topic, message.getEvent());
+    }
+
     boolean succeeded = false;
     try {
-      succeeded = apiDelegate.get().send(topic, message);
+      succeeded = publish(topic, message);
     } finally {
-      if (succeeded) {
-        msgLog.log(Direction.PUBLISH, topic, message);
-        metrics.incrementBrokerPublishedMessage();
-      } else {
-        metrics.incrementBrokerFailedToPublishMessage();
+      if (!succeeded && journal.isEnabled() && journal.append(topic, message.getEvent())) {
+        logger.atWarning().log(
+            "Event %s for topic %s stored in the outbound journal for later replay",
+            message.getHeader(), topic);
       }
     }
     return succeeded;
   }
 
+  private boolean publish(String topic, EventMessage message) {
+    String eventType = eventType(message.getEvent());
+    if (message.getEvent() instanceof MultiSiteEvent) {
+      ((MultiSiteEvent) message.getEvent()).publishedOn = System.currentTimeMillis();
+    }
+    long start = System.nanoTime();
+    try {
+      if (apiDelegate.get().send(topic, message)) {
+        long elapsed = System.nanoTime() - start;
+        msgLog.log(Direction.PUBLISH, topic, message);
+        metrics.incrementBrokerPublishedMessage(
+            topic, eventType, codecs.payloadBytes(message.getEvent()), elapsed);
+        return true;
+      }
+      metrics.incrementBrokerFailedToPublishMessage(
+          topic, eventType, BrokerMetrics.REJECTED, System.nanoTime() - start);
+      return false;
+    } catch (RuntimeException e) {
+      metrics.incrementBrokerFailedToPublishMessage(
+          topic, eventType, e.getClass().getSimpleName(), System.nanoTime() - start);
+      throw e;
+    }
+  }
+
+  private static String eventType(Event event) {
+    if (event instanceof EncodedEvent && ((EncodedEvent) event).eventType != null) {
+      return ((EncodedEvent) event).eventType;
+    }
+    return event.getType();
+  }
+
+  @VisibleForTesting
+  void drainJournal() {
+    try {
+      Optional<OutboundJournal.Entry> entry;
+      while ((entry = journal.peek()).isPresent()) {
+        OutboundJournal.Entry journaled = entry.get();
+        if (!publish(journaled.topic, newMessage(journaled.event))) {
+          logger.atFine().log(
+              "Broker still unavailable, %d event(s) pending in the outbound journal",
+              journal.depth());
+          return;
+        }
+        journal.remove();
+      }
+    } catch (RuntimeException e) {
+      logger.atWarning().withCause(e).log(
+          "Unable to replay the outbound journal, %d event(s) still pending", journal.depth());
+    }
+  }
+
+  @Override
+  public void start() {
+    if (journal.isEnabled()) {
+      @SuppressWarnings("unused")
+      Future<?> possiblyIgnoredError =
+          publisherExecutor.scheduleWithFixedDelay(
+              this::drainJournal,
+              journalDrainIntervalMs,
+              journalDrainIntervalMs,
+              TimeUnit.MILLISECONDS);
+      // The changes to the journal are committed to the storage device in groups
+      @SuppressWarnings("unused")
+      Future<?> possiblySyncError =
+          publisherExecutor.scheduleWithFixedDelay(
+              journal::sync,
+              OutboundJournal.SYNC_INTERVAL_MS,
+              OutboundJournal.SYNC_INTERVAL_MS,
+              TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void stop() {
+    resumeConsumers();
+    if (batchPublisher != null) {
+      batchPublisher.flush();
+    }
+
+    // Give the events already handed over to the publisher a chance to reach the broker, then
+    // keep the ones left behind in the outbound journal for being published at the next start
+    ExecutorProvider.drain(publisherExecutor, "Broker-Publisher", shutdownDrainTimeoutMs);
+    int lost = 0;
+    for (PendingSend pending : pendingSends) {
+      // Not removed if the publisher has just taken it
+      if (pendingSends.remove(pending) && !journalPendingSend(pending)) {
+        lost++;
+      }
+    }
+    if (lost > 0) {
+      logger.atSevere().log(
+          "%d event(s) could not be published to the broker before stopping", lost);
+    }
+  }
+
+  private boolean journalPendingSend(PendingSend pending) {
+    return journal.isEnabled() && journal.append(pending.topic, pending.event);
+  }
+
   @Override
   public void receiveAsync(String topic, Consumer<EventMessage> messageConsumer) {
-    apiDelegate.get().receiveAsync(topic, messageConsumer);
+    apiDelegate.get().receiveAsync(topic, message -> consume(topic, message, messageConsumer));
+  }
+
+  /**
+   * Pause the intake of messages from the broker: the broker consumer threads are blocked before
+   * delivering their next message until {@link #resumeConsumers()} is called.
+   */
+  public void pauseConsumers() {
+    synchronized (consumersPauseLock) {
+      consumersPaused = true;
+    }
+  }
+
+  /**
+   * Stop the intake of messages from the broker for good: the messages delivered by the broker
+   * from now on are not processed, hence left behind the consumer checkpoints for being replayed
+   * at the next start.
+   */
+  public void stopConsumers() {
+    synchronized (consumersPauseLock) {
+      consumersStopped = true;
+      consumersPauseLock.notifyAll();
+    }
+  }
+
+  /**
+   * @param topic the consumed topic
+   * @return true if messages of the topic have been delivered by the broker after the consumers
+   *     were stopped, and therefore not processed
+   */
+  public boolean hasMessagesLeftBehind(String topic) {
+    return topicsLeftBehind.contains(topic);
+  }
+
+  /** Resume the intake of messages from the broker. */
+  public void resumeConsumers() {
+    synchronized (consumersPauseLock) {
+      consumersPaused = false;
+      consumersPauseLock.notifyAll();
+    }
+  }
+
+  public boolean isConsumersPaused() {
+    synchronized (consumersPauseLock) {
+      return consumersPaused;
+    }
+  }
+
+  private void awaitConsumersResumed() {
+    synchronized (consumersPauseLock) {
+      while (consumersPaused && !consumersStopped) {
+        try {
+          consumersPauseLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private void consume(
+      String topic, EventMessage message, Consumer<EventMessage> messageConsumer) {
+    awaitConsumersResumed();
+    if (consumersStopped) {
+      logger.atFine().log(
+          "Consumers stopped: message %s from topic %s not processed", message.getHeader(), topic);
+      topicsLeftBehind.add(topic);
+      return;
+    }
+    if (message.getEvent() instanceof EncodedEvent) {
+      // The event is decoded by the subscriber only if it is not going to be dropped
+      message =
+          new LazyEventMessage(
+              message.getHeader(), (EncodedEvent) message.getEvent(), topic, codecs);
+    }
+    messageConsumer.accept(message);
+  }
+
+  private static class PendingSend {
+    final String topic;
+    final Event event;
+
+    PendingSend(String topic, Event event) {
+      this.topic = topic;
+      this.event = event;
+    }
   }
 
   @Override
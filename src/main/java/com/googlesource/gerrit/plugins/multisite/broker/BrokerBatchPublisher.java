@@ -0,0 +1,170 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.broker;
+
+import com.google.common.base.Objects;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.server.events.Event;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.BatchEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.EventRoutingKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the events published to each topic and ships them as a single {@link BatchEvent} when
+ * either the maximum batch size is reached or the linger time of the oldest queued event expires.
+ *
+ * <p>Events are batched together only if they share the same {@link EventRoutingKey}, so that a
+ * batch can be routed like its events and the ordering per key is preserved. The batches are
+ * handed over to the sender in the order they are shipped, and the outcome of the publishing of a
+ * batch is reported to all of its events.
+ */
+class BrokerBatchPublisher {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  interface BatchSender {
+    /** @return future completed with true if the event was successfully published */
+    CompletableFuture<Boolean> send(String topic, Event event);
+  }
+
+  private final ScheduledExecutorService executor;
+  private final int maxBatchSize;
+  private final long lingerMs;
+  private final BatchSender sender;
+  private final Map<BatchKey, PendingBatch> pendingBatches = new HashMap<>();
+
+  BrokerBatchPublisher(
+      ScheduledExecutorService executor, int maxBatchSize, long lingerMs, BatchSender sender) {
+    this.executor = executor;
+    this.maxBatchSize = maxBatchSize;
+    this.lingerMs = lingerMs;
+    this.sender = sender;
+  }
+
+  /**
+   * Add an event to the pending batch of its topic and routing key.
+   *
+   * @param topic the topic to publish the event to
+   * @param event the event to publish
+   * @return future completed with true if the batch of the event was successfully published, false
+   *     otherwise
+   */
+  CompletableFuture<Boolean> add(String topic, Event event) {
+    BatchKey batchKey = new BatchKey(topic, EventRoutingKey.of(event));
+    PendingBatch batch;
+    synchronized (this) {
+      batch = pendingBatches.get(batchKey);
+      if (batch == null) {
+        batch = new PendingBatch(maxBatchSize);
+        pendingBatches.put(batchKey, batch);
+        scheduleFlush(batchKey, batch);
+      }
+      batch.events.add(event);
+      if (batch.events.size() >= maxBatchSize) {
+        pendingBatches.remove(batchKey);
+        publish(topic, batch);
+      }
+    }
+    return batch.outcome;
+  }
+
+  synchronized void flush() {
+    pendingBatches.forEach((batchKey, batch) -> publish(batchKey.topic, batch));
+    pendingBatches.clear();
+  }
+
+  synchronized int pendingEvents(String topic) {
+    return pendingBatches.entrySet().stream()
+        .filter(e -> e.getKey().topic.equals(topic))
+        .mapToInt(e -> e.getValue().events.size())
+        .sum();
+  }
+
+  private void scheduleFlush(BatchKey batchKey, PendingBatch batch) {
+    @SuppressWarnings("unused")
+    Future<?> possiblyIgnoredError =
+        executor.schedule(() -> flushIfPending(batchKey, batch), lingerMs, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void flushIfPending(BatchKey batchKey, PendingBatch batch) {
+    // The batch may have already been shipped because it reached the maximum size
+    if (pendingBatches.get(batchKey) == batch) {
+      pendingBatches.remove(batchKey);
+      publish(batchKey.topic, batch);
+    }
+  }
+
+  /** Hand a batch over to the sender, whilst holding the lock so that the batches stay in order. */
+  private void publish(String topic, PendingBatch batch) {
+    List<Event> events = batch.events;
+    Event event = events.size() == 1 ? events.get(0) : new BatchEvent(events);
+    CompletableFuture<Boolean> published;
+    try {
+      published = sender.send(topic, event);
+    } catch (RuntimeException e) {
+      published = CompletableFuture.failedFuture(e);
+    }
+
+    @SuppressWarnings("unused")
+    Future<?> possiblyIgnoredError =
+        published.whenComplete(
+            (succeeded, e) -> {
+              if (e != null || !succeeded) {
+                logger.atSevere().withCause(e).log(
+                    "Unable to publish batch of %d events to topic %s", events.size(), topic);
+              }
+              batch.outcome.complete(e == null && succeeded);
+            });
+  }
+
+  private static class PendingBatch {
+    final List<Event> events;
+    final CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+
+    PendingBatch(int maxBatchSize) {
+      events = new ArrayList<>(maxBatchSize);
+    }
+  }
+
+  private static class BatchKey {
+    final String topic;
+    final Optional<String> routingKey;
+
+    BatchKey(String topic, Optional<String> routingKey) {
+      this.topic = topic;
+      this.routingKey = routingKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      BatchKey that = (BatchKey) o;
+      return Objects.equal(topic, that.topic) && Objects.equal(routingKey, that.routingKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(topic, routingKey);
+    }
+  }
+}
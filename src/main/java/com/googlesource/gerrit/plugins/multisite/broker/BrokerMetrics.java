@@ -15,18 +15,36 @@
 package com.googlesource.gerrit.plugins.multisite.broker;
 
 import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Counter2;
+import com.google.gerrit.metrics.Counter3;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Histogram1;
 import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer1;
+import com.google.gerrit.metrics.Timer2;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.googlesource.gerrit.plugins.multisite.MultiSiteMetrics;
+import java.util.concurrent.TimeUnit;
 
 @Singleton
 public class BrokerMetrics extends MultiSiteMetrics {
   private static final String PUBLISHER_SUCCESS_COUNTER = "broker_msg_publisher_counter";
   private static final String PUBLISHER_FAILURE_COUNTER = "broker_msg_publisher_failure_counter";
+  private static final String TOPIC = "topic";
+  private static final String EVENT_TYPE = "event_type";
+  private static final String CAUSE = "cause";
+  public static final String REJECTED = "rejected";
 
   private final Counter1<String> brokerPublisherSuccessCounter;
   private final Counter1<String> brokerPublisherFailureCounter;
+  private final Timer2<String, String> publishLatency;
+  private final Counter2<String, String> publishedBytes;
+  private final Counter3<String, String, String> publishFailures;
+  private final Histogram1<String> compressionRatio;
+  private final Timer1<String> compressionTime;
+  private final Timer1<String> decompressionTime;
 
   @Inject
   public BrokerMetrics(MetricMaker metricMaker) {
@@ -43,13 +61,84 @@ public class BrokerMetrics extends MultiSiteMetrics {
             rateDescription(
                 "errors", "Number of messages failed to publish by the broker publisher"),
             stringField(PUBLISHER_FAILURE_COUNTER, "Broker failed to publish message count"));
+
+    this.publishLatency =
+        metricMaker.newTimer(
+            "multi_site/broker/publish_latency",
+            new Description("Time taken to publish a message to the broker")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            stringField(TOPIC, "Topic of the published message"),
+            stringField(EVENT_TYPE, "Type of the published event"));
+
+    this.publishedBytes =
+        metricMaker.newCounter(
+            "multi_site/broker/published_bytes",
+            rateDescription(
+                Units.BYTES,
+                "Size of the payload of the published messages, encoded or serialized as JSON"),
+            stringField(TOPIC, "Topic of the published message"),
+            stringField(EVENT_TYPE, "Type of the published event"));
+
+    this.publishFailures =
+        metricMaker.newCounter(
+            "multi_site/broker/publish_failures",
+            rateDescription("errors", "Number of messages failed to publish, by cause"),
+            stringField(TOPIC, "Topic of the message failed to publish"),
+            stringField(EVENT_TYPE, "Type of the event failed to publish"),
+            stringField(
+                CAUSE, "Class of the exception thrown, or 'rejected' if refused by the broker"));
+
+    this.compressionRatio =
+        metricMaker.newHistogram(
+            "multi_site/broker/compression_ratio",
+            new Description("Size of the compressed messages relative to their original size")
+                .setCumulative()
+                .setUnit("percent"),
+            stringField(TOPIC, "Topic of the compressed message"));
+
+    this.compressionTime =
+        metricMaker.newTimer(
+            "multi_site/broker/compression_time",
+            new Description("Time spent compressing messages before publishing them")
+                .setCumulative()
+                .setUnit(Units.NANOSECONDS),
+            stringField(TOPIC, "Topic of the compressed message"));
+
+    this.decompressionTime =
+        metricMaker.newTimer(
+            "multi_site/broker/decompression_time",
+            new Description("Time spent decompressing received messages")
+                .setCumulative()
+                .setUnit(Units.NANOSECONDS),
+            stringField(TOPIC, "Topic of the decompressed message"));
   }
 
-  public void incrementBrokerPublishedMessage() {
+  public void incrementBrokerPublishedMessage(
+      String topic, String eventType, long payloadBytes, long elapsedNanos) {
     brokerPublisherSuccessCounter.increment(PUBLISHER_SUCCESS_COUNTER);
+    publishLatency.record(topic, eventType, elapsedNanos, TimeUnit.NANOSECONDS);
+    if (payloadBytes > 0) {
+      publishedBytes.incrementBy(topic, eventType, payloadBytes);
+    }
   }
 
-  public void incrementBrokerFailedToPublishMessage() {
+  public void incrementBrokerFailedToPublishMessage(
+      String topic, String eventType, String cause, long elapsedNanos) {
     brokerPublisherFailureCounter.increment(PUBLISHER_FAILURE_COUNTER);
+    publishLatency.record(topic, eventType, elapsedNanos, TimeUnit.NANOSECONDS);
+    publishFailures.increment(topic, eventType, cause);
+  }
+
+  public void recordCompression(
+      String topic, long uncompressedBytes, long compressedBytes, long elapsedNanos) {
+    if (uncompressedBytes > 0) {
+      compressionRatio.record(topic, compressedBytes * 100 / uncompressedBytes);
+    }
+    compressionTime.record(topic, elapsedNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void recordDecompression(String topic, long elapsedNanos) {
+    decompressionTime.record(topic, elapsedNanos, TimeUnit.NANOSECONDS);
   }
 }
@@ -0,0 +1,57 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.broker;
+
+import com.google.gerrit.extensions.annotations.ExtensionPoint;
+import com.google.gerrit.server.events.Event;
+import java.io.IOException;
+
+/**
+ * Serializer of events published to the broker in a format other than the default JSON.
+ *
+ * <p>The codec used for publishing is selected by name with the {@code broker.codec} setting,
+ * whilst all the registered codecs are available for decoding the events received from other
+ * sites. Events that the codec is not able to encode are published as JSON.
+ */
+@ExtensionPoint
+public interface EventCodec {
+
+  /** @return the name of the codec, recorded in every event it encodes */
+  String name();
+
+  /** @return the version of the format produced by {@link #encode(Event)} */
+  int version();
+
+  /**
+   * @param event the event to publish
+   * @return true if the event can be encoded, false if it must be published as JSON
+   */
+  boolean canEncode(Event event);
+
+  /**
+   * @param event the event to encode
+   * @return the serialized event
+   * @throws IOException if the event cannot be serialized
+   */
+  byte[] encode(Event event) throws IOException;
+
+  /**
+   * @param version the version of the format used for encoding the payload
+   * @param payload the serialized event
+   * @return the decoded event
+   * @throws IOException if the payload is malformed or its version is not supported
+   */
+  Event decode(int version, byte[] payload) throws IOException;
+}
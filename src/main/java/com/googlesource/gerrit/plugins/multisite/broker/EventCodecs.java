@@ -0,0 +1,245 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.broker;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventGson;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.EncodedEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.EventRoutingKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Wraps events into {@link EncodedEvent} envelopes using the configured {@link EventCodec} and
+ * compresses the large ones published to the topics configured for compression.
+ */
+@Singleton
+public class EventCodecs {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  public static final String JSON = "json";
+  public static final String GZIP = "gzip";
+
+  private final DynamicSet<EventCodec> codecs;
+  private final Gson gson;
+  private final BrokerMetrics metrics;
+  private final Configuration.Broker cfg;
+  private final String codecName;
+  private final AtomicLong decodedBytes = new AtomicLong();
+  private final AtomicLong decodeNanos = new AtomicLong();
+
+  @Inject
+  public EventCodecs(
+      DynamicSet<EventCodec> codecs,
+      @EventGson Gson gson,
+      BrokerMetrics metrics,
+      Configuration cfg) {
+    this.codecs = codecs;
+    this.gson = gson;
+    this.metrics = metrics;
+    this.cfg = cfg.broker();
+    this.codecName = this.cfg.codec();
+  }
+
+  /**
+   * Encode an event with the configured codec and compress it when needed.
+   *
+   * @param topic the topic the event is published to
+   * @param event the event to publish
+   * @return the encoded event or the original event when it needs to be published as JSON
+   */
+  public Event encode(String topic, Event event) {
+    boolean compress = cfg.compressionEnabled(topic);
+    Optional<EventCodec> encoder = encoder(event);
+    if (!encoder.isPresent() && !compress) {
+      return event;
+    }
+
+    try {
+      String name = encoder.map(EventCodec::name).orElse(JSON);
+      int version = encoder.map(EventCodec::version).orElse(0);
+      byte[] payload =
+          encoder.isPresent()
+              ? encoder.get().encode(event)
+              : gson.toJson(event, Event.class).getBytes(UTF_8);
+
+      String compression = null;
+      if (compress && payload.length >= cfg.compressionThreshold()) {
+        payload = compress(topic, payload);
+        compression = GZIP;
+      } else if (!encoder.isPresent()) {
+        return event;
+      }
+
+      EncodedEvent encoded =
+          new EncodedEvent(name, version, Base64.getEncoder().encodeToString(payload), compression);
+      encoded.routingKey = EventRoutingKey.of(event).orElse(null);
+      encoded.eventType = event.getType();
+      return encoded;
+    } catch (IOException | RuntimeException e) {
+      logger.atWarning().withCause(e).log(
+          "Unable to encode event %s for topic %s, publishing it as JSON", event.getType(), topic);
+      return event;
+    }
+  }
+
+  /**
+   * Compute the size of the payload of an event handed to the broker.
+   *
+   * <p>The events published as they are get serialized by the broker with the same {@link
+   * EventGson}: their JSON is counted as it is written, without being buffered.
+   *
+   * @param event the published event, encoded or not
+   * @return the size in bytes of the encoded payload, or of the JSON serialization of the event
+   */
+  public long payloadBytes(Event event) {
+    if (event instanceof EncodedEvent && ((EncodedEvent) event).payload != null) {
+      // Base64 is plain ASCII, one byte per character
+      return ((EncodedEvent) event).payload.length();
+    }
+
+    CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+    try (Writer writer = new OutputStreamWriter(out, UTF_8)) {
+      gson.toJson(event, Event.class, writer);
+    } catch (IOException | RuntimeException e) {
+      logger.atWarning().atMostEvery(1, TimeUnit.MINUTES).withCause(e).log(
+          "Unable to compute the size of event %s", event.getType());
+      return 0;
+    }
+    return out.getCount();
+  }
+
+  /**
+   * Decode an event received from the broker.
+   *
+   * @param topic the topic the event is received from
+   * @param event the received event
+   * @return the decoded event or the original event if it was not encoded
+   * @throws IOException if the event cannot be decoded
+   */
+  public Event decode(String topic, Event event) throws IOException {
+    if (!(event instanceof EncodedEvent)) {
+      return event;
+    }
+
+    long start = System.nanoTime();
+    EncodedEvent encoded = (EncodedEvent) event;
+    Event decoded = decodePayload(topic, encoded);
+    decodeNanos.addAndGet(System.nanoTime() - start);
+    decodedBytes.addAndGet(encoded.payload.length());
+    return decoded;
+  }
+
+  /**
+   * Estimate the time needed for decoding an event, based on the events decoded so far.
+   *
+   * @param encoded the encoded event
+   * @return the estimated decoding time in nanoseconds
+   */
+  public long estimatedDecodeNanos(EncodedEvent encoded) {
+    long bytes = decodedBytes.get();
+    if (bytes == 0 || encoded.payload == null) {
+      return 0;
+    }
+    return (long) ((double) decodeNanos.get() / bytes * encoded.payload.length());
+  }
+
+  private Event decodePayload(String topic, EncodedEvent encoded) throws IOException {
+    byte[] payload;
+    try {
+      payload = Base64.getDecoder().decode(encoded.payload);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Malformed payload for event codec '" + encoded.codec + "'", e);
+    }
+
+    if (encoded.compression != null) {
+      payload = decompress(topic, encoded.compression, payload);
+    }
+
+    if (JSON.equals(encoded.codec)) {
+      return gson.fromJson(new String(payload, UTF_8), Event.class);
+    }
+
+    EventCodec codec =
+        codec(encoded.codec)
+            .orElseThrow(() -> new IOException("Unknown event codec '" + encoded.codec + "'"));
+    return codec.decode(encoded.version, payload);
+  }
+
+  private Optional<EventCodec> encoder(Event event) {
+    if (JSON.equals(codecName)) {
+      return Optional.empty();
+    }
+
+    Optional<EventCodec> codec = codec(codecName);
+    if (!codec.isPresent()) {
+      logger.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+          "Event codec '%s' is not available, publishing events as JSON", codecName);
+    }
+    return codec.filter(c -> c.canEncode(event));
+  }
+
+  private Optional<EventCodec> codec(String name) {
+    for (EventCodec codec : codecs) {
+      if (codec.name().equals(name)) {
+        return Optional.of(codec);
+      }
+    }
+    return Optional.empty();
+  }
+
+  private byte[] compress(String topic, byte[] payload) throws IOException {
+    long start = System.nanoTime();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(payload.length / 2);
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      out.write(payload);
+    }
+    byte[] result = compressed.toByteArray();
+    metrics.recordCompression(topic, payload.length, result.length, System.nanoTime() - start);
+    return result;
+  }
+
+  private byte[] decompress(String topic, String compression, byte[] payload) throws IOException {
+    if (!GZIP.equals(compression)) {
+      throw new IOException("Unsupported compression '" + compression + "'");
+    }
+
+    long start = System.nanoTime();
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(payload))) {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      metrics.recordDecompression(topic, System.nanoTime() - start);
+    }
+  }
+}
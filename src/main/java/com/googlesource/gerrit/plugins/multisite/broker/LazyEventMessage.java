@@ -0,0 +1,70 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.broker;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.EncodedEvent;
+import java.io.IOException;
+
+/**
+ * Message received from the broker whose event is still encoded.
+ *
+ * <p>The header is available straight away, whilst the event is decoded only when {@link
+ * #decode()} is called, so that the messages dropped by the subscribers, e.g. the ones produced by
+ * this instance, do not pay for decoding.
+ *
+ * <p>Only the events wrapped into an {@link EncodedEvent}, i.e. encoded by the binary codec or
+ * compressed, can be decoded lazily: the events published as JSON are deserialized by the broker
+ * before being received, and are processed as they are.
+ */
+public class LazyEventMessage extends EventMessage {
+  private final String topic;
+  private final EncodedEvent encoded;
+  private final EventCodecs codecs;
+  private volatile EventMessage decoded;
+
+  LazyEventMessage(Header header, EncodedEvent encoded, String topic, EventCodecs codecs) {
+    super(header, encoded);
+    this.topic = topic;
+    this.encoded = encoded;
+    this.codecs = codecs;
+  }
+
+  /**
+   * @return the message with the decoded event.
+   * @throws IOException if the event cannot be decoded
+   */
+  public EventMessage decode() throws IOException {
+    if (decoded == null) {
+      decoded = new EventMessage(getHeader(), codecs.decode(topic, encoded));
+    }
+    return decoded;
+  }
+
+  /** @return true if the event has already been decoded. */
+  public boolean isDecoded() {
+    return decoded != null;
+  }
+
+  /** @return the size of the encoded event payload. */
+  public int encodedSize() {
+    return encoded.payload == null ? 0 : encoded.payload.length();
+  }
+
+  /** @return the estimated time, in nanoseconds, needed for decoding the event. */
+  public long estimatedDecodeNanos() {
+    return codecs.estimatedDecodeNanos(encoded);
+  }
+}
@@ -0,0 +1,348 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.broker;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventGson;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * Append-only, memory-mapped journal of the events that could not be published to the broker.
+ *
+ * <p>The journal is a bounded file stored in the plugin data directory. The first bytes hold the
+ * header with the read and write positions and the number of pending entries, followed by the
+ * entries in publishing order. Each entry is stored as the length-prefixed topic name followed by
+ * the length-prefixed JSON payload of the event.
+ *
+ * <p>The changes are written to the file through the memory mapping, hence survive a crash of the
+ * process, and are forced to the storage device at most every {@link #SYNC_INTERVAL_MS} by {@link
+ * #sync()}, so that a burst of events is committed at once. The journal is compacted into a new
+ * file that atomically replaces it, so that a crash whilst compacting leaves either of them intact.
+ */
+@Singleton
+public class OutboundJournal implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String JOURNAL_FILE = "outbound.journal";
+  static final long SYNC_INTERVAL_MS = 100;
+  private static final String COMPACTED_FILE_SUFFIX = ".compacted";
+  private static final int MAGIC = 0x4d534a31; // "MSJ1"
+  private static final int HEADER_SIZE = 4 * Integer.BYTES;
+  private static final int READ_POSITION_OFFSET = Integer.BYTES;
+  private static final int WRITE_POSITION_OFFSET = 2 * Integer.BYTES;
+  private static final int COUNT_OFFSET = 3 * Integer.BYTES;
+
+  public static class Entry {
+    public final String topic;
+    public final Event event;
+
+    Entry(String topic, Event event) {
+      this.topic = topic;
+      this.event = event;
+    }
+  }
+
+  private final Gson gson;
+  private final boolean enabled;
+  private final Path journalFile;
+  private final int maxSize;
+  private FileChannel channel;
+  private MappedByteBuffer buffer;
+  private int readPosition;
+  private int writePosition;
+  private int count;
+  private boolean dirty;
+
+  @Inject
+  OutboundJournal(
+      SitePaths sitePaths, Configuration cfg, @EventGson Gson gson, MetricMaker metricMaker) {
+    this(
+        sitePaths.data_dir.resolve(Configuration.PLUGIN_NAME).resolve(JOURNAL_FILE),
+        cfg.broker().journalEnabled(),
+        cfg.broker().journalMaxSize(),
+        gson);
+    metricMaker.newCallbackMetric(
+        "multi_site/broker/outbound_journal_depth",
+        Integer.class,
+        new Description("Number of events waiting in the outbound journal to be published")
+            .setGauge()
+            .setUnit("events"),
+        this::depth);
+  }
+
+  @VisibleForTesting
+  OutboundJournal(Path journalFile, boolean enabled, int maxSize, Gson gson) {
+    this.journalFile = journalFile;
+    this.enabled = enabled;
+    this.maxSize = maxSize;
+    this.gson = gson;
+  }
+
+  @Override
+  public synchronized void start() {
+    if (!enabled || buffer != null) {
+      return;
+    }
+
+    try {
+      Files.createDirectories(journalFile.getParent());
+      // Left behind by a crash whilst compacting, before replacing the journal
+      Files.deleteIfExists(compactedFile());
+      channel =
+          FileChannel.open(
+              journalFile,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      int capacity = (int) Math.max(maxSize, channel.size());
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      if (buffer.getInt(0) == MAGIC) {
+        readPosition = buffer.getInt(READ_POSITION_OFFSET);
+        writePosition = buffer.getInt(WRITE_POSITION_OFFSET);
+        count = buffer.getInt(COUNT_OFFSET);
+        logger.atInfo().log(
+            "Outbound journal %s opened with %d pending event(s)", journalFile, count);
+      } else {
+        reset();
+      }
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log(
+          "Unable to open outbound journal %s: unpublished events will be lost", journalFile);
+      buffer = null;
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (buffer == null) {
+      return;
+    }
+
+    sync();
+    closeQuietly(channel);
+    buffer = null;
+    channel = null;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public synchronized boolean isEmpty() {
+    return count == 0;
+  }
+
+  public synchronized int depth() {
+    return count;
+  }
+
+  /** Force the changes made since the last call to the storage device. */
+  public synchronized void sync() {
+    if (buffer != null && dirty) {
+      buffer.force();
+      dirty = false;
+    }
+  }
+
+  /**
+   * Append an event at the end of the journal.
+   *
+   * @param topic the topic the event has to be published to
+   * @param event the event to publish
+   * @return true if the event has been stored, false if the journal is not available or full
+   */
+  public synchronized boolean append(String topic, Event event) {
+    if (buffer == null) {
+      return false;
+    }
+
+    byte[] topicBytes = topic.getBytes(UTF_8);
+    byte[] payload = gson.toJson(event).getBytes(UTF_8);
+    int entrySize = 2 * Integer.BYTES + topicBytes.length + payload.length;
+    if (writePosition + entrySize > buffer.capacity()) {
+      compact();
+      if (writePosition + entrySize > buffer.capacity()) {
+        logger.atSevere().log(
+            "Outbound journal %s is full: dropping event %s for topic %s",
+            journalFile, event.getType(), topic);
+        return false;
+      }
+    }
+
+    ByteBuffer entry = buffer.duplicate();
+    entry.position(writePosition);
+    entry.putInt(topicBytes.length);
+    entry.put(topicBytes);
+    entry.putInt(payload.length);
+    entry.put(payload);
+    writePosition += entrySize;
+    count++;
+    writeHeader();
+    return true;
+  }
+
+  /**
+   * Return the oldest entry of the journal without removing it.
+   *
+   * <p>Entries that cannot be decoded are discarded.
+   *
+   * @return the oldest entry or empty if the journal has no entries
+   */
+  public synchronized Optional<Entry> peek() {
+    while (buffer != null && count > 0) {
+      ByteBuffer entry = buffer.duplicate();
+      entry.position(readPosition);
+      String topic = new String(readBytes(entry), UTF_8);
+      String payload = new String(readBytes(entry), UTF_8);
+      try {
+        return Optional.of(new Entry(topic, gson.fromJson(payload, Event.class)));
+      } catch (JsonParseException e) {
+        logger.atSevere().withCause(e).log(
+            "Discarding malformed entry from outbound journal %s: %s", journalFile, payload);
+        remove();
+      }
+    }
+    return Optional.empty();
+  }
+
+  /** Remove the oldest entry of the journal, once it has been successfully published. */
+  public synchronized void remove() {
+    if (buffer == null || count == 0) {
+      return;
+    }
+
+    ByteBuffer entry = buffer.duplicate();
+    entry.position(readPosition);
+    entry.position(entry.position() + entry.getInt());
+    entry.position(entry.position() + entry.getInt());
+    readPosition = entry.position();
+    count--;
+    if (count == 0) {
+      reset();
+    } else {
+      writeHeader();
+    }
+  }
+
+  private void compact() {
+    if (readPosition == HEADER_SIZE) {
+      return;
+    }
+
+    Path compactedFile = compactedFile();
+    FileChannel compactedChannel = null;
+    try {
+      compactedChannel =
+          FileChannel.open(
+              compactedFile,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      MappedByteBuffer compacted =
+          compactedChannel.map(FileChannel.MapMode.READ_WRITE, 0, buffer.capacity());
+      ByteBuffer pending = buffer.duplicate();
+      pending.position(readPosition);
+      pending.limit(writePosition);
+      compacted.position(HEADER_SIZE);
+      compacted.put(pending);
+      writeHeader(compacted, HEADER_SIZE, compacted.position(), count);
+      compacted.force();
+      Files.move(
+          compactedFile,
+          journalFile,
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+
+      closeQuietly(channel);
+      channel = compactedChannel;
+      buffer = compacted;
+      readPosition = HEADER_SIZE;
+      writePosition = compacted.position();
+      dirty = false;
+    } catch (IOException | RuntimeException e) {
+      logger.atWarning().withCause(e).log("Unable to compact outbound journal %s", journalFile);
+      closeQuietly(compactedChannel);
+      try {
+        Files.deleteIfExists(compactedFile);
+      } catch (IOException deleteError) {
+        logger.atWarning().withCause(deleteError).log(
+            "Unable to delete compacted outbound journal %s", compactedFile);
+      }
+    }
+  }
+
+  private void reset() {
+    readPosition = HEADER_SIZE;
+    writePosition = HEADER_SIZE;
+    count = 0;
+    writeHeader();
+  }
+
+  private void writeHeader() {
+    writeHeader(buffer, readPosition, writePosition, count);
+    dirty = true;
+  }
+
+  private static void writeHeader(
+      ByteBuffer target, int readPosition, int writePosition, int count) {
+    target.putInt(0, MAGIC);
+    target.putInt(READ_POSITION_OFFSET, readPosition);
+    target.putInt(WRITE_POSITION_OFFSET, writePosition);
+    target.putInt(COUNT_OFFSET, count);
+  }
+
+  private Path compactedFile() {
+    return journalFile.resolveSibling(journalFile.getFileName() + COMPACTED_FILE_SUFFIX);
+  }
+
+  private void closeQuietly(FileChannel fileChannel) {
+    if (fileChannel == null) {
+      return;
+    }
+    try {
+      fileChannel.close();
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Unable to close outbound journal %s", journalFile);
+    }
+  }
+
+  private static byte[] readBytes(ByteBuffer entry) {
+    byte[] bytes = new byte[entry.getInt()];
+    entry.get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,41 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.broker;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.server.events.Event;
+
+/**
+ * Message carrying the routing key of its event.
+ *
+ * <p>Broker implementations supporting partitioning can use the key for assigning the message to a
+ * partition, so that messages sharing the same key are delivered in order. The key is also
+ * serialized with the message, next to its header.
+ */
+public class RoutedEventMessage extends EventMessage {
+  @Nullable private final String routingKey;
+
+  public RoutedEventMessage(Header header, Event event, @Nullable String routingKey) {
+    super(header, event);
+    this.routingKey = routingKey;
+  }
+
+  /** @return the routing key of the message, or null if the message can be routed anywhere */
+  @Nullable
+  public String getRoutingKey() {
+    return routingKey;
+  }
+}
@@ -23,6 +23,7 @@ import com.googlesource.gerrit.plugins.multisite.forwarder.Context;
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwarderTask;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.CacheEvictionEvent;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 class CacheEvictionHandler<K, V> implements CacheRemovalListener<K, V> {
   private final Executor executor;
@@ -55,7 +56,11 @@ class CacheEvictionHandler<K, V> implements CacheRemovalListener<K, V> {
 
     @Override
     public void run() {
-      forwarders.forEach(f -> f.evict(this, cacheEvictionEvent));
+      forwarders.forEach(
+          f -> {
+            @SuppressWarnings("unused")
+            Future<?> possiblyIgnoredError = f.evictAsync(this, cacheEvictionEvent);
+          });
     }
 
     @Override
@@ -17,17 +17,28 @@ package com.googlesource.gerrit.plugins.multisite.consumer;
 import com.gerritforge.gerrit.eventbroker.EventMessage;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.server.events.Event;
 import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.googlesource.gerrit.plugins.multisite.Configuration;
 import com.googlesource.gerrit.plugins.multisite.InstanceId;
 import com.googlesource.gerrit.plugins.multisite.MessageLogger;
 import com.googlesource.gerrit.plugins.multisite.MessageLogger.Direction;
+import com.googlesource.gerrit.plugins.multisite.broker.LazyEventMessage;
 import com.googlesource.gerrit.plugins.multisite.forwarder.CacheNotFoundException;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.BatchEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.EventRoutingKey;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.EventTopic;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.MultiSiteEvent;
 import com.googlesource.gerrit.plugins.multisite.forwarder.router.ForwardedEventRouter;
 import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public abstract class AbstractSubcriber {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
@@ -39,6 +50,9 @@ public abstract class AbstractSubcriber {
   private SubscriberMetrics subscriberMetrics;
   private final Configuration cfg;
   private final String topic;
+  private final Optional<SubscriberExecutor> executor;
+  private final ConsumerCheckpoints checkpoints;
+  private final DeadLetterStore deadLetters;
 
   public AbstractSubcriber(
       ForwardedEventRouter eventRouter,
@@ -46,7 +60,10 @@ public abstract class AbstractSubcriber {
       @InstanceId UUID instanceId,
       MessageLogger msgLog,
       SubscriberMetrics subscriberMetrics,
-      Configuration cfg) {
+      Configuration cfg,
+      ConsumerExecutors consumerExecutors,
+      ConsumerCheckpoints checkpoints,
+      DeadLetterStore deadLetters) {
     this.eventRouter = eventRouter;
     this.droppedEventListeners = droppedEventListeners;
     this.instanceId = instanceId;
@@ -54,34 +71,227 @@ public abstract class AbstractSubcriber {
     this.subscriberMetrics = subscriberMetrics;
     this.cfg = cfg;
     this.topic = getTopic().topic(cfg);
+    this.executor = consumerExecutors.create(getTopic());
+    this.checkpoints = checkpoints;
+    this.deadLetters = deadLetters;
   }
 
   protected abstract EventTopic getTopic();
 
+  /**
+   * @return true if the events of a batch message are handed over to the router all together,
+   *     false if they are routed one by one.
+   */
+  protected boolean routeBatchesInBulk() {
+    return false;
+  }
+
   public Consumer<EventMessage> getConsumer() {
     return this::processRecord;
   }
 
-  private void processRecord(EventMessage event) {
+  private void processRecord(EventMessage message) {
 
-    if (event.getHeader().sourceInstanceId.equals(instanceId)) {
+    if (message.getHeader().sourceInstanceId.equals(instanceId)) {
       logger.atFiner().log(
           "Dropping event %s produced by our instanceId %s",
-          event.toString(), instanceId.toString());
-      droppedEventListeners.forEach(l -> l.onEventDropped(event));
+          message.toString(), instanceId.toString());
+      droppedEventListeners.forEach(l -> l.onEventDropped(message));
+      return;
+    }
+
+    long publishedOn = publishedOn(message.getEvent());
+    if (checkpoints.isApplied(topic, message.getHeader().sourceInstanceId, publishedOn)) {
+      logger.atFiner().log("Dropping event %s already applied before the checkpoint", message);
+      droppedEventListeners.forEach(l -> l.onEventDropped(message));
+      return;
+    }
+
+    String messageId = message.getHeader().eventId.toString();
+    if (isQuarantined(message, messageId)) {
+      return;
+    }
+
+    Optional<EventMessage> decoded = decode(message);
+    if (!decoded.isPresent()) {
+      return;
+    }
+
+    EventMessage event = decoded.get();
+    if (event.getEvent() instanceof BatchEvent && routeBatchesInBulk()) {
+      dispatch(
+          event,
+          publishedOn,
+          () -> CompletableFuture.completedFuture(routeBatch(event, publishedOn, messageId)));
+    } else if (event.getEvent() instanceof BatchEvent) {
+      List<Event> batchedEvents = ((BatchEvent) event.getEvent()).events;
+      for (int i = 0; i < batchedEvents.size(); i++) {
+        EventMessage batchedEvent = new EventMessage(event.getHeader(), batchedEvents.get(i));
+        String batchedMessageId = messageId + "/" + i;
+        if (!isQuarantined(batchedEvent, batchedMessageId)) {
+          dispatch(batchedEvent, publishedOn, batchedMessageId);
+        }
+      }
     } else {
-      try {
-        msgLog.log(Direction.CONSUME, topic, event);
-        eventRouter.route(event.getEvent());
+      dispatch(event, publishedOn, messageId);
+    }
+  }
+
+  private boolean isQuarantined(EventMessage message, String messageId) {
+    if (!deadLetters.isQuarantined(messageId)) {
+      return false;
+    }
+
+    logger.atFiner().log("Dropping event %s quarantined after failing to be processed", messageId);
+    droppedEventListeners.forEach(l -> l.onEventDropped(message));
+    return true;
+  }
+
+  /**
+   * Process again a quarantined event received from the topic of this subscriber.
+   *
+   * @param entry the quarantined event
+   * @return true if the event has been processed successfully and removed from the quarantine
+   */
+  public boolean redrive(DeadLetterStore.Entry entry) {
+    Event event = deadLetters.event(entry);
+    EventMessage message =
+        new EventMessage(new EventMessage.Header(entry.eventId, entry.sourceInstanceId), event);
+    boolean processed =
+        event instanceof BatchEvent && routeBatchesInBulk()
+            ? routeBatch(message, publishedOn(event), entry.messageId)
+            : routeEvent(message, publishedOn(event), entry.messageId).join();
+    if (processed) {
+      deadLetters.resolve(entry.id);
+    }
+    return processed;
+  }
+
+  private static long publishedOn(Event event) {
+    if (event instanceof MultiSiteEvent && ((MultiSiteEvent) event).publishedOn != null) {
+      return ((MultiSiteEvent) event).publishedOn;
+    }
+    // Events published by older versions, or stream events, only have the creation time
+    return TimeUnit.SECONDS.toMillis(event.eventCreatedOn);
+  }
+
+  private Optional<EventMessage> decode(EventMessage message) {
+    if (!(message instanceof LazyEventMessage)) {
+      return Optional.of(message);
+    }
+
+    try {
+      return Optional.of(((LazyEventMessage) message).decode());
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log(
+          "Unable to decode event %s received from topic %s", message.getHeader(), topic);
+      subscriberMetrics.incrementSubscriberFailedToConsumeMessage();
+      return Optional.empty();
+    }
+  }
+
+  private void dispatch(EventMessage event, long publishedOn, String messageId) {
+    dispatch(event, publishedOn, () -> routeEvent(event, publishedOn, messageId));
+  }
+
+  private void dispatch(
+      EventMessage event, long publishedOn, Supplier<CompletableFuture<Boolean>> route) {
+    UUID source = event.getHeader().sourceInstanceId;
+    checkpoints.started(topic, source, publishedOn);
+    Runnable task =
+        () -> {
+          CompletableFuture<Boolean> processed = CompletableFuture.completedFuture(false);
+          try {
+            processed = route.get();
+          } finally {
+            // Coalesced events are processed only after having been routed, whilst the failed
+            // ones hold the checkpoint of their source back
+            @SuppressWarnings("unused")
+            Future<?> possiblyIgnoredError =
+                processed.whenComplete(
+                    (p, e) ->
+                        checkpoints.completed(
+                            topic, source, publishedOn, e == null && Boolean.TRUE.equals(p)));
+          }
+        };
+
+    if (!executor.isPresent()) {
+      task.run();
+      return;
+    }
+
+    // Events without a routing key are processed in order between them
+    String routingKey = EventRoutingKey.of(event.getEvent()).orElse("");
+    executor.get().execute(routingKey, task);
+  }
+
+  @SuppressWarnings("unchecked")
+  private boolean routeBatch(EventMessage batch, long publishedOn, String messageId) {
+    List<Event> events = ((BatchEvent) batch.getEvent()).events;
+    try {
+      msgLog.log(Direction.CONSUME, topic, batch);
+      long start = System.nanoTime();
+      eventRouter.routeAll(events);
+      subscriberMetrics.recordRouterExecutionTime(
+          topic, batch.getEvent().getType(), System.nanoTime() - start);
+      long appliedOn = System.currentTimeMillis();
+      for (Event event : events) {
+        subscriberMetrics.recordConsumeLatency(topic, event.getType(), appliedOn - publishedOn);
         subscriberMetrics.incrementSubscriberConsumedMessage();
-        subscriberMetrics.updateReplicationStatusMetrics(event);
-      } catch (IOException e) {
-        logger.atSevere().withCause(e).log("Malformed event '%s'", event.getHeader());
-        subscriberMetrics.incrementSubscriberFailedToConsumeMessage();
-      } catch (PermissionBackendException | CacheNotFoundException e) {
-        logger.atSevere().withCause(e).log("Cannot handle message '%s'", event.getHeader());
-        subscriberMetrics.incrementSubscriberFailedToConsumeMessage();
+        subscriberMetrics.updateReplicationStatusMetrics(
+            new EventMessage(batch.getHeader(), event));
       }
+      return true;
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Malformed batch event '%s'", batch.getHeader());
+      subscriberMetrics.incrementSubscriberFailedToConsumeMessage();
+      deadLetters.recordFailure(topic, messageId, batch, e);
+    } catch (PermissionBackendException | CacheNotFoundException e) {
+      logger.atSevere().withCause(e).log("Cannot handle batch message '%s'", batch.getHeader());
+      subscriberMetrics.incrementSubscriberFailedToConsumeMessage();
+      deadLetters.recordFailure(topic, messageId, batch, e);
+    }
+    return false;
+  }
+
+  /**
+   * Route an event, whose processing may complete later on, e.g. when the router coalesces it with
+   * the events received afterwards.
+   *
+   * @return future completed with true once the event has been processed, false if it failed
+   */
+  @SuppressWarnings("unchecked")
+  private CompletableFuture<Boolean> routeEvent(
+      EventMessage event, long publishedOn, String messageId) {
+    try {
+      msgLog.log(Direction.CONSUME, topic, event);
+      String eventType = event.getEvent().getType();
+      long start = System.nanoTime();
+      CompletableFuture<?> routed = eventRouter.routeAsync(event.getEvent());
+      subscriberMetrics.recordRouterExecutionTime(topic, eventType, System.nanoTime() - start);
+      return routed.handle(
+          (r, e) -> {
+            if (e != null) {
+              logger.atSevere().withCause(e).log("Cannot process message '%s'", event.getHeader());
+              subscriberMetrics.incrementSubscriberFailedToConsumeMessage();
+              deadLetters.recordFailure(topic, messageId, event, e);
+              return false;
+            }
+            subscriberMetrics.recordConsumeLatency(
+                topic, eventType, System.currentTimeMillis() - publishedOn);
+            subscriberMetrics.incrementSubscriberConsumedMessage();
+            subscriberMetrics.updateReplicationStatusMetrics(event);
+            return true;
+          });
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Malformed event '%s'", event.getHeader());
+      subscriberMetrics.incrementSubscriberFailedToConsumeMessage();
+      deadLetters.recordFailure(topic, messageId, event, e);
+    } catch (PermissionBackendException | CacheNotFoundException e) {
+      logger.atSevere().withCause(e).log("Cannot handle message '%s'", event.getHeader());
+      subscriberMetrics.incrementSubscriberFailedToConsumeMessage();
+      deadLetters.recordFailure(topic, messageId, event, e);
     }
+    return CompletableFuture.completedFuture(false);
   }
 }
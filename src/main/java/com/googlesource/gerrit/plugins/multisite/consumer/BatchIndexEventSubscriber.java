@@ -33,12 +33,29 @@ public class BatchIndexEventSubscriber extends AbstractSubcriber {
       @InstanceId UUID instanceId,
       MessageLogger msgLog,
       SubscriberMetrics subscriberMetrics,
-      Configuration cfg) {
-    super(eventRouter, droppedEventListeners, instanceId, msgLog, subscriberMetrics, cfg);
+      Configuration cfg,
+      ConsumerExecutors consumerExecutors,
+      ConsumerCheckpoints checkpoints,
+      DeadLetterStore deadLetters) {
+    super(
+        eventRouter,
+        droppedEventListeners,
+        instanceId,
+        msgLog,
+        subscriberMetrics,
+        cfg,
+        consumerExecutors,
+        checkpoints,
+        deadLetters);
   }
 
   @Override
   protected EventTopic getTopic() {
     return EventTopic.BATCH_INDEX_TOPIC;
   }
+
+  @Override
+  protected boolean routeBatchesInBulk() {
+    return true;
+  }
 }
@@ -33,9 +33,21 @@ public class CacheEvictionEventSubscriber extends AbstractSubcriber {
       @InstanceId UUID instanceId,
       MessageLogger msgLog,
       SubscriberMetrics subscriberMetrics,
-      Configuration cfg) {
+      Configuration cfg,
+      ConsumerExecutors consumerExecutors,
+      ConsumerCheckpoints checkpoints,
+      DeadLetterStore deadLetters) {
 
-    super(eventRouter, droppedEventListeners, instanceId, msgLog, subscriberMetrics, cfg);
+    super(
+        eventRouter,
+        droppedEventListeners,
+        instanceId,
+        msgLog,
+        subscriberMetrics,
+        cfg,
+        consumerExecutors,
+        checkpoints,
+        deadLetters);
   }
 
   @Override
@@ -0,0 +1,291 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.consumer;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track, for each topic and source instance, of the publishing time of the events already
+ * applied locally, so that the events replayed by the broker at startup can be skipped up to that
+ * point.
+ *
+ * <p>The checkpoint of a source is the publishing time of its oldest event still being processed or
+ * failed to be processed, or of its newest event applied otherwise: events published before it are
+ * guaranteed to have been applied. Checkpoints are stored as one properties file per topic in the
+ * plugin data directory, together with the time the file was created and whether the plugin was
+ * stopped without leaving any event behind. They are saved at most once per second, and when the
+ * plugin stops.
+ *
+ * <p>A topic is replayed only if events may have been left behind when the plugin was last stopped.
+ * The events are then skipped up to the checkpoints stored at that point, whilst the events of the
+ * sources without a checkpoint are skipped up to the creation of the file. The events received out
+ * of order whilst running, or whilst not replaying, are always processed.
+ */
+@Singleton
+public class ConsumerCheckpoints implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String CHECKPOINTS_DIR = "checkpoints";
+  private static final String CREATED_ON_KEY = "createdOn";
+  private static final String STOPPED_CLEANLY_KEY = "stoppedCleanly";
+  private static final long SAVE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Path checkpointsDir;
+  private final boolean enabled;
+  private final Map<String, TopicCheckpoint> topics = new ConcurrentHashMap<>();
+
+  @Inject
+  ConsumerCheckpoints(SitePaths sitePaths, Configuration cfg) {
+    this(
+        sitePaths.data_dir.resolve(Configuration.PLUGIN_NAME).resolve(CHECKPOINTS_DIR),
+        cfg.broker().replayFromCheckpoint());
+  }
+
+  @VisibleForTesting
+  ConsumerCheckpoints(Path checkpointsDir, boolean enabled) {
+    this.checkpointsDir = checkpointsDir;
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param topic the consumed topic
+   * @return true if events of the topic had already been applied when the plugin was last stopped
+   */
+  public boolean hasCheckpoint(String topic) {
+    return enabled && !topic(topic).stored.isEmpty();
+  }
+
+  /**
+   * @param topic the consumed topic
+   * @return true if the topic has a checkpoint and events may have been left behind when the plugin
+   *     was last stopped, either because it did not stop cleanly or because some events were still
+   *     being processed or failed to be processed
+   */
+  public boolean needsReplay(String topic) {
+    return hasCheckpoint(topic) && !topic(topic).stoppedCleanly;
+  }
+
+  /**
+   * @param topic the consumed topic
+   * @param source the instance that published the event
+   * @param publishedOn the time in milliseconds the event was published
+   * @return true if the topic is replayed and the event was published before the checkpoint of its
+   *     source stored when the plugin was last stopped, or before the creation of the checkpoints
+   *     of the topic for a source without a checkpoint
+   */
+  public boolean isApplied(String topic, UUID source, long publishedOn) {
+    if (!needsReplay(topic)) {
+      return false;
+    }
+    TopicCheckpoint checkpoint = topic(topic);
+    return publishedOn < checkpoint.stored.getOrDefault(source, checkpoint.createdOn);
+  }
+
+  /** Record that an event is about to be processed. */
+  public void started(String topic, UUID source, long publishedOn) {
+    if (enabled) {
+      topic(topic).started(source, publishedOn);
+    }
+  }
+
+  /**
+   * Record that an event has been processed. The checkpoint of its source does not move past a
+   * failed event, which is therefore replayed at the next start.
+   *
+   * @param succeeded whether the event has been processed successfully
+   */
+  public void completed(String topic, UUID source, long publishedOn, boolean succeeded) {
+    if (enabled) {
+      TopicCheckpoint checkpoint = topic(topic);
+      checkpoint.completed(source, publishedOn, succeeded);
+      if (System.nanoTime() - checkpoint.savedAt > SAVE_INTERVAL_NANOS) {
+        save(topic, checkpoint, false);
+      }
+    }
+  }
+
+  /**
+   * Record that events of a topic have been received but left behind without being processed, so
+   * that the topic is replayed at the next start.
+   */
+  public void leftBehind(String topic) {
+    if (enabled) {
+      topic(topic).leftBehind = true;
+    }
+  }
+
+  /**
+   * Save the checkpoints once the consumers are stopped, recording whether any event may have been
+   * left behind.
+   */
+  public void saveOnStop() {
+    topics.forEach((topic, checkpoint) -> save(topic, checkpoint, true));
+  }
+
+  @Override
+  public void start() {
+    // do nothing
+  }
+
+  @Override
+  public void stop() {
+    saveOnStop();
+  }
+
+  private TopicCheckpoint topic(String topic) {
+    return topics.computeIfAbsent(topic, this::load);
+  }
+
+  private Path checkpointFile(String topic) {
+    return checkpointsDir.resolve(topic.replaceAll("[^A-Za-z0-9._-]", "_") + ".checkpoint");
+  }
+
+  private TopicCheckpoint load(String topic) {
+    TopicCheckpoint checkpoint = new TopicCheckpoint();
+    Path file = checkpointFile(topic);
+    if (!enabled || !Files.exists(file)) {
+      return checkpoint;
+    }
+
+    Properties props = new Properties();
+    try (InputStream in = Files.newInputStream(file)) {
+      props.load(in);
+      Map<UUID, Long> stored = new HashMap<>();
+      for (String source : props.stringPropertyNames()) {
+        if (!source.equals(CREATED_ON_KEY) && !source.equals(STOPPED_CLEANLY_KEY)) {
+          stored.put(UUID.fromString(source), Long.parseLong(props.getProperty(source).trim()));
+        }
+      }
+      checkpoint.applied.putAll(stored);
+      checkpoint.stored = ImmutableMap.copyOf(stored);
+      // The checkpoints stored by previous versions have neither the creation time nor the flag
+      String createdOn = props.getProperty(CREATED_ON_KEY);
+      checkpoint.createdOn =
+          createdOn != null
+              ? Long.parseLong(createdOn.trim())
+              : stored.values().stream().mapToLong(Long::longValue).min().orElse(Long.MIN_VALUE);
+      checkpoint.stoppedCleanly = Boolean.parseBoolean(props.getProperty(STOPPED_CLEANLY_KEY));
+    } catch (IOException | IllegalArgumentException e) {
+      logger.atWarning().withCause(e).log(
+          "Unable to read the checkpoint of topic %s from %s, ignoring it", topic, file);
+    }
+    return checkpoint;
+  }
+
+  private synchronized void save(String topic, TopicCheckpoint checkpoint, boolean stopping) {
+    Properties props = new Properties();
+    checkpoint
+        .snapshot()
+        .forEach((source, ts) -> props.setProperty(source.toString(), ts.toString()));
+    checkpoint.savedAt = System.nanoTime();
+    if (props.isEmpty()) {
+      return;
+    }
+    props.setProperty(CREATED_ON_KEY, Long.toString(checkpoint.createdOn));
+    props.setProperty(
+        STOPPED_CLEANLY_KEY, Boolean.toString(stopping && checkpoint.nothingLeftBehind()));
+
+    Path file = checkpointFile(topic);
+    try {
+      Files.createDirectories(checkpointsDir);
+      Path tmp = Files.createTempFile(checkpointsDir, file.getFileName().toString(), ".tmp");
+      try (OutputStream out = Files.newOutputStream(tmp)) {
+        props.store(out, "Checkpoint of topic " + topic);
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log(
+          "Unable to save the checkpoint of topic %s to %s", topic, file);
+    }
+  }
+
+  private static class TopicCheckpoint {
+    final Map<UUID, Long> applied = new ConcurrentHashMap<>();
+    final Map<UUID, TreeMap<Long, Integer>> inFlight = new ConcurrentHashMap<>();
+    // Publishing time of the oldest event failed to be processed, for each source
+    final Map<UUID, Long> failed = new ConcurrentHashMap<>();
+    ImmutableMap<UUID, Long> stored = ImmutableMap.of();
+    long createdOn = System.currentTimeMillis();
+    boolean stoppedCleanly;
+    volatile boolean leftBehind;
+    volatile long savedAt = System.nanoTime();
+
+    synchronized long checkpoint(UUID source) {
+      long checkpoint = Math.min(applied.getOrDefault(source, Long.MAX_VALUE), failed(source));
+      TreeMap<Long, Integer> pending = inFlight.get(source);
+      if (pending != null && !pending.isEmpty()) {
+        checkpoint = Math.min(checkpoint, pending.firstKey());
+      }
+      return checkpoint;
+    }
+
+    synchronized void started(UUID source, long publishedOn) {
+      inFlight.computeIfAbsent(source, s -> new TreeMap<>()).merge(publishedOn, 1, Integer::sum);
+    }
+
+    synchronized void completed(UUID source, long publishedOn, boolean succeeded) {
+      TreeMap<Long, Integer> pending = inFlight.get(source);
+      if (pending != null) {
+        pending.computeIfPresent(publishedOn, (ts, count) -> count > 1 ? count - 1 : null);
+      }
+      if (succeeded) {
+        applied.merge(source, publishedOn, Math::max);
+      } else {
+        failed.merge(source, publishedOn, Math::min);
+      }
+    }
+
+    synchronized boolean nothingLeftBehind() {
+      return !leftBehind
+          && failed.isEmpty()
+          && inFlight.values().stream().allMatch(TreeMap::isEmpty);
+    }
+
+    synchronized Map<UUID, Long> snapshot() {
+      Map<UUID, Long> checkpoints = new TreeMap<>();
+      applied.keySet().forEach(source -> checkpoints.put(source, checkpoint(source)));
+      failed.keySet().forEach(source -> checkpoints.put(source, checkpoint(source)));
+      return checkpoints;
+    }
+
+    private long failed(UUID source) {
+      return failed.getOrDefault(source, Long.MAX_VALUE);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.consumer;
+
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import com.googlesource.gerrit.plugins.multisite.ExecutorProvider;
+import com.googlesource.gerrit.plugins.multisite.KeyedExecutor;
+import com.googlesource.gerrit.plugins.multisite.KeyedExecutorMetrics;
+import com.googlesource.gerrit.plugins.multisite.PriorityExecutor;
+import com.googlesource.gerrit.plugins.multisite.PriorityExecutor.Priority;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.EventTopic;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Creates the worker pools of the subscribers configured for processing events in parallel. */
+@Singleton
+public class ConsumerExecutors implements LifecycleListener {
+  private final WorkQueue workQueue;
+  private final Configuration cfg;
+  private final KeyedExecutorMetrics metrics;
+  private final IndexPriorityMetrics indexPriorityMetrics;
+  private final Map<String, ScheduledExecutorService> pools = new ConcurrentHashMap<>();
+  private PriorityExecutor indexExecutor;
+
+  @Inject
+  ConsumerExecutors(
+      WorkQueue workQueue,
+      Configuration cfg,
+      KeyedExecutorMetrics metrics,
+      IndexPriorityMetrics indexPriorityMetrics) {
+    this.workQueue = workQueue;
+    this.cfg = cfg;
+    this.metrics = metrics;
+    this.indexPriorityMetrics = indexPriorityMetrics;
+  }
+
+  /**
+   * @param topic the topic consumed by the subscriber
+   * @return the executor of the subscriber, or empty if the events have to be processed on the
+   *     broker callback thread
+   */
+  Optional<SubscriberExecutor> create(EventTopic topic) {
+    Optional<Priority> indexPriority = indexPriority(topic);
+    if (indexPriority.isPresent()) {
+      Executor executor = indexExecutor().executor(indexPriority.get());
+      return Optional.of(newSubscriberExecutor(topic, executor));
+    }
+
+    int threads = topic.consumerThreads(cfg);
+    if (threads <= 1) {
+      return Optional.empty();
+    }
+
+    String poolName = "Consume-" + topic.topic(cfg);
+    ScheduledExecutorService pool = workQueue.createQueue(threads, poolName);
+    pools.put(poolName, pool);
+    return Optional.of(newSubscriberExecutor(topic, pool));
+  }
+
+  private Optional<Priority> indexPriority(EventTopic topic) {
+    if (cfg.index().priorityThreads() <= 0) {
+      return Optional.empty();
+    }
+
+    switch (topic) {
+      case INDEX_TOPIC:
+        return Optional.of(Priority.INTERACTIVE);
+      case BATCH_INDEX_TOPIC:
+        return Optional.of(Priority.BATCH);
+      default:
+        return Optional.empty();
+    }
+  }
+
+  /**
+   * The interactive and batch index events share the same pool, the interactive ones being
+   * processed first, so that a reindex of a whole site does not delay the changes under review.
+   */
+  private synchronized PriorityExecutor indexExecutor() {
+    if (indexExecutor == null) {
+      String poolName = "Consume-Index";
+      ScheduledExecutorService pool =
+          workQueue.createQueue(cfg.index().priorityThreads(), poolName);
+      pools.put(poolName, pool);
+      indexExecutor =
+          new PriorityExecutor(
+              pool, cfg.index().batchThreads(), indexPriorityMetrics::recordWaitTime);
+      indexPriorityMetrics.monitor(indexExecutor);
+    }
+    return indexExecutor;
+  }
+
+  private SubscriberExecutor newSubscriberExecutor(EventTopic topic, Executor executor) {
+    KeyedExecutor keyedExecutor = new KeyedExecutor(executor);
+    metrics.monitor("consumer/" + topic.name().toLowerCase(Locale.US), keyedExecutor);
+    return new SubscriberExecutor(keyedExecutor, cfg.broker().consumerMaxPending());
+  }
+
+  /**
+   * Shut down the worker pools, letting the events already received be processed up to a
+   * deadline.
+   *
+   * @param timeoutMs maximum time in milliseconds to wait for the pending events
+   */
+  void drain(long timeoutMs) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    for (Map.Entry<String, ScheduledExecutorService> pool : pools.entrySet()) {
+      ExecutorProvider.drain(
+          pool.getValue(),
+          pool.getKey(),
+          TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+    pools.clear();
+  }
+
+  @Override
+  public void start() {
+    // do nothing
+  }
+
+  @Override
+  public void stop() {
+    pools.values().forEach(ScheduledExecutorService::shutdown);
+    pools.clear();
+  }
+}
@@ -0,0 +1,448 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventGson;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.AccountIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.BatchEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.CacheEvictionEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.EventRoutingKey;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.GroupIndexEvent;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Quarantine of the received events that could not be processed.
+ *
+ * <p>The failures of each message are counted and the message is quarantined once it failed
+ * {@code broker.deadLetterMaxFailures} times, so that transient failures do not quarantine the
+ * messages received again, e.g. when the broker replays a topic.
+ *
+ * <p>The quarantined events are appended to a file in the plugin data directory, one JSON document
+ * per line, and kept in memory indexed by event type and project. Events re-driven successfully are
+ * marked as resolved by appending a resolution record, and the file is rewritten without the
+ * resolved events at startup. The quarantined messages are skipped when received again without
+ * being decoded nor routed.
+ */
+@Singleton
+public class DeadLetterStore implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String DEAD_LETTERS_FILE = "dead-letters.json";
+  private static final String RESOLVED = "resolved";
+  private static final int MAX_FAILED_MESSAGES = 10000;
+
+  public static class Entry {
+    public final long id;
+    public final String messageId;
+    public final UUID eventId;
+    public final UUID sourceInstanceId;
+    public final String topic;
+    public final String type;
+    @Nullable public final String project;
+    public final long failedOn;
+    public final String reason;
+    private final JsonObject event;
+
+    private Entry(
+        long id,
+        String messageId,
+        UUID eventId,
+        UUID sourceInstanceId,
+        String topic,
+        String type,
+        @Nullable String project,
+        long failedOn,
+        String reason,
+        JsonObject event) {
+      this.id = id;
+      this.messageId = messageId;
+      this.eventId = eventId;
+      this.sourceInstanceId = sourceInstanceId;
+      this.topic = topic;
+      this.type = type;
+      this.project = project;
+      this.failedOn = failedOn;
+      this.reason = reason;
+      this.event = event;
+    }
+
+    public String eventJson() {
+      return event.toString();
+    }
+  }
+
+  private final Path deadLettersFile;
+  private final boolean enabled;
+  private final int maxFailures;
+  private final Gson gson;
+  private final Map<Long, Entry> entries = new TreeMap<>();
+  private final Map<String, Long> entriesByMessageId = new HashMap<>();
+  private final SetMultimap<String, Long> entriesByType = LinkedHashMultimap.create();
+  private final SetMultimap<String, Long> entriesByProject = LinkedHashMultimap.create();
+  private final Map<String, Integer> failuresByMessageId =
+      new LinkedHashMap<String, Integer>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+          // Only the failures of the most recent messages are counted
+          return size() > MAX_FAILED_MESSAGES;
+        }
+      };
+  private long lastId;
+  private BufferedWriter writer;
+
+  @Inject
+  DeadLetterStore(
+      SitePaths sitePaths, Configuration cfg, @EventGson Gson gson, MetricMaker metricMaker) {
+    this(
+        sitePaths.data_dir.resolve(Configuration.PLUGIN_NAME).resolve(DEAD_LETTERS_FILE),
+        cfg.broker().deadLetterEnabled(),
+        cfg.broker().deadLetterMaxFailures(),
+        gson);
+    metricMaker.newCallbackMetric(
+        "multi_site/subscriber/dead_letters",
+        Integer.class,
+        new Description("Number of received events quarantined after failing to be processed")
+            .setGauge()
+            .setUnit("events"),
+        this::size);
+  }
+
+  @VisibleForTesting
+  DeadLetterStore(Path deadLettersFile, boolean enabled, int maxFailures, Gson gson) {
+    this.deadLettersFile = deadLettersFile;
+    this.enabled = enabled;
+    this.maxFailures = maxFailures;
+    this.gson = gson;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public synchronized void start() {
+    if (!enabled || writer != null) {
+      return;
+    }
+
+    try {
+      Files.createDirectories(deadLettersFile.getParent());
+      if (Files.exists(deadLettersFile)) {
+        load();
+        compact();
+      }
+      writer =
+          Files.newBufferedWriter(
+              deadLettersFile, UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log(
+          "Unable to open the dead letters file %s: failed events will not be quarantined",
+          deadLettersFile);
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (writer == null) {
+      return;
+    }
+
+    try {
+      writer.close();
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log(
+          "Unable to close the dead letters file %s", deadLettersFile);
+    }
+    writer = null;
+  }
+
+  /**
+   * @param messageId the identifier of the received message
+   * @return true if the message has already failed to be processed and has not been re-driven
+   */
+  public synchronized boolean isQuarantined(String messageId) {
+    return entriesByMessageId.containsKey(messageId);
+  }
+
+  /**
+   * Record the failure of an event, quarantining it once it failed the maximum number of times.
+   *
+   * @param topic the topic the event has been received from
+   * @param messageId the identifier of the received message, or of the event within a batch
+   * @param message the message whose event could not be processed
+   * @param cause the failure
+   */
+  public synchronized void recordFailure(
+      String topic, String messageId, EventMessage message, Throwable cause) {
+    if (writer == null || entriesByMessageId.containsKey(messageId)) {
+      return;
+    }
+
+    int failures = failuresByMessageId.merge(messageId, 1, Integer::sum);
+    if (failures < maxFailures) {
+      logger.atWarning().log(
+          "Message %s from topic %s failed %d time(s) out of %d before being quarantined",
+          messageId, topic, failures, maxFailures);
+      return;
+    }
+    failuresByMessageId.remove(messageId);
+
+    Event event = message.getEvent();
+    JsonObject record = new JsonObject();
+    record.addProperty("id", lastId + 1);
+    record.addProperty("messageId", messageId);
+    record.addProperty("eventId", message.getHeader().eventId.toString());
+    record.addProperty("sourceInstanceId", message.getHeader().sourceInstanceId.toString());
+    record.addProperty("topic", topic);
+    record.addProperty("type", event.getType());
+    projectOf(event).ifPresent(project -> record.addProperty("project", project));
+    record.addProperty("failedOn", System.currentTimeMillis());
+    record.addProperty("reason", String.valueOf(cause));
+    record.add("event", gson.toJsonTree(event, Event.class));
+    if (append(record)) {
+      index(parse(record));
+      logger.atWarning().log(
+          "Event %s of message %s from topic %s quarantined", event.getType(), messageId, topic);
+    }
+  }
+
+  /**
+   * @param type the type of the events to return, or empty for all types
+   * @param project the project of the events to return, or empty for all projects
+   * @return the quarantined events, in the order they failed
+   */
+  public synchronized List<Entry> list(Optional<String> type, Optional<String> project) {
+    Collection<Long> ids = entries.keySet();
+    if (type.isPresent()) {
+      ids = entriesByType.get(type.get());
+    }
+    if (project.isPresent()) {
+      Collection<Long> projectIds = entriesByProject.get(project.get());
+      ids = ids.stream().filter(projectIds::contains).collect(Collectors.toList());
+    }
+    return ids.stream().sorted().map(entries::get).collect(Collectors.toList());
+  }
+
+  public synchronized Optional<Entry> get(long id) {
+    return Optional.ofNullable(entries.get(id));
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @param entry a quarantined entry
+   * @return the event of the entry
+   */
+  public Event event(Entry entry) {
+    return gson.fromJson(entry.event, Event.class);
+  }
+
+  /**
+   * Remove an entry from the quarantine, once its event has been processed successfully.
+   *
+   * @param id the identifier of the entry
+   */
+  public synchronized void resolve(long id) {
+    Entry entry = entries.get(id);
+    if (entry == null) {
+      return;
+    }
+
+    JsonObject record = new JsonObject();
+    record.addProperty("id", id);
+    record.addProperty(RESOLVED, true);
+    if (append(record)) {
+      remove(entry);
+    }
+  }
+
+  private boolean append(JsonObject record) {
+    if (writer == null) {
+      return false;
+    }
+
+    try {
+      writer.write(record.toString());
+      writer.newLine();
+      writer.flush();
+      return true;
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log(
+          "Unable to append to the dead letters file %s", deadLettersFile);
+      return false;
+    }
+  }
+
+  /**
+   * Rewrite the file with the events still quarantined only. The highest id assigned so far is
+   * kept as a resolution record, so that it is not assigned again.
+   */
+  private void compact() throws IOException {
+    Path tmp =
+        Files.createTempFile(
+            deadLettersFile.getParent(), deadLettersFile.getFileName().toString(), ".tmp");
+    try (BufferedWriter out = Files.newBufferedWriter(tmp, UTF_8)) {
+      for (Entry entry : entries.values()) {
+        out.write(record(entry).toString());
+        out.newLine();
+      }
+      if (!entries.containsKey(lastId) && lastId > 0) {
+        JsonObject record = new JsonObject();
+        record.addProperty("id", lastId);
+        record.addProperty(RESOLVED, true);
+        out.write(record.toString());
+        out.newLine();
+      }
+    }
+    Files.move(
+        tmp, deadLettersFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void load() throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(deadLettersFile, UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        try {
+          JsonObject record = gson.fromJson(line, JsonObject.class);
+          long id = record.get("id").getAsLong();
+          lastId = Math.max(lastId, id);
+          if (record.has(RESOLVED)) {
+            Entry entry = entries.get(id);
+            if (entry != null) {
+              remove(entry);
+            }
+          } else {
+            index(parse(record));
+          }
+        } catch (RuntimeException e) {
+          // Malformed JSON, missing or invalid fields
+          logger.atWarning().withCause(e).log("Skipping invalid dead letter record %s", line);
+        }
+      }
+    }
+    logger.atInfo().log("%d quarantined event(s) loaded from %s", entries.size(), deadLettersFile);
+  }
+
+  private static Optional<String> projectOf(Event event) {
+    if (event instanceof BatchEvent) {
+      List<Optional<String>> projects =
+          ((BatchEvent) event)
+              .events.stream()
+                  .map(DeadLetterStore::projectOf)
+                  .distinct()
+                  .collect(Collectors.toList());
+      return projects.size() == 1 ? projects.get(0) : Optional.empty();
+    }
+    if (event instanceof AccountIndexEvent
+        || event instanceof GroupIndexEvent
+        || event instanceof CacheEvictionEvent
+        || (event instanceof ChangeIndexEvent && ((ChangeIndexEvent) event).deleted)) {
+      return Optional.empty();
+    }
+    // The routing key of the other events is their project
+    return EventRoutingKey.of(event);
+  }
+
+  private static JsonObject record(Entry entry) {
+    JsonObject record = new JsonObject();
+    record.addProperty("id", entry.id);
+    record.addProperty("messageId", entry.messageId);
+    record.addProperty("eventId", entry.eventId.toString());
+    record.addProperty("sourceInstanceId", entry.sourceInstanceId.toString());
+    record.addProperty("topic", entry.topic);
+    record.addProperty("type", entry.type);
+    if (entry.project != null) {
+      record.addProperty("project", entry.project);
+    }
+    record.addProperty("failedOn", entry.failedOn);
+    record.addProperty("reason", entry.reason);
+    record.add("event", entry.event);
+    return record;
+  }
+
+  private static Entry parse(JsonObject record) {
+    return new Entry(
+        record.get("id").getAsLong(),
+        record.get("messageId").getAsString(),
+        UUID.fromString(record.get("eventId").getAsString()),
+        UUID.fromString(record.get("sourceInstanceId").getAsString()),
+        record.get("topic").getAsString(),
+        record.get("type").getAsString(),
+        record.has("project") ? record.get("project").getAsString() : null,
+        record.get("failedOn").getAsLong(),
+        record.get("reason").getAsString(),
+        record.getAsJsonObject("event"));
+  }
+
+  private void index(Entry entry) {
+    lastId = Math.max(lastId, entry.id);
+    entries.put(entry.id, entry);
+    entriesByMessageId.put(entry.messageId, entry.id);
+    entriesByType.put(entry.type, entry.id);
+    if (entry.project != null) {
+      entriesByProject.put(entry.project, entry.id);
+    }
+  }
+
+  private void remove(Entry entry) {
+    entries.remove(entry.id);
+    entriesByMessageId.remove(entry.messageId);
+    entriesByType.remove(entry.type, entry.id);
+    if (entry.project != null) {
+      entriesByProject.remove(entry.project, entry.id);
+    }
+  }
+}
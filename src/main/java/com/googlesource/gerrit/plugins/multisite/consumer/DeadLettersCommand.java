@@ -0,0 +1,111 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.consumer;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+import org.kohsuke.args4j.Option;
+
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+@CommandMetaData(
+    name = "dead-letters",
+    description = "List and re-drive the received events quarantined after failing to be processed")
+public class DeadLettersCommand extends SshCommand {
+
+  @Option(name = "--type", metaVar = "TYPE", usage = "only the events of the given type")
+  private String type;
+
+  @Option(name = "--project", metaVar = "PROJECT", usage = "only the events of the given project")
+  private String project;
+
+  @Option(
+      name = "--id",
+      metaVar = "ID",
+      usage = "only the quarantined event with the given id, can be specified more than once")
+  private List<Long> ids = new ArrayList<>();
+
+  @Option(
+      name = "--redrive",
+      usage = "process the selected events again and release the successful ones")
+  private boolean redrive;
+
+  @Option(
+      name = "--verbose",
+      aliases = {"-v"},
+      usage = "print the quarantined events")
+  private boolean verbose;
+
+  @Inject private DeadLetterStore deadLetters;
+  @Inject private DynamicSet<AbstractSubcriber> subscribers;
+  @Inject private Configuration cfg;
+
+  @Override
+  protected void run() throws UnloggedFailure {
+    if (!deadLetters.isEnabled()) {
+      throw die("The dead letters quarantine is disabled, see broker.deadLetterEnabled");
+    }
+
+    List<DeadLetterStore.Entry> entries =
+        deadLetters.list(Optional.ofNullable(type), Optional.ofNullable(project)).stream()
+            .filter(entry -> ids.isEmpty() || ids.contains(entry.id))
+            .collect(Collectors.toList());
+    for (DeadLetterStore.Entry entry : entries) {
+      if (redrive) {
+        stdout.println(String.format("%d %s", entry.id, redrive(entry)));
+        continue;
+      }
+
+      stdout.println(
+          String.format(
+              "%d %s %s %s %s %s",
+              entry.id,
+              Instant.ofEpochMilli(entry.failedOn),
+              entry.topic,
+              entry.type,
+              entry.project != null ? entry.project : "-",
+              entry.reason));
+      if (verbose) {
+        stdout.println("  " + entry.eventJson());
+      }
+    }
+  }
+
+  private String redrive(DeadLetterStore.Entry entry) {
+    Optional<AbstractSubcriber> subscriber =
+        StreamSupport.stream(subscribers.spliterator(), false)
+            .filter(s -> s.getTopic().topic(cfg).equals(entry.topic))
+            .findFirst();
+    if (!subscriber.isPresent()) {
+      return "no subscriber for topic " + entry.topic;
+    }
+
+    try {
+      return subscriber.get().redrive(entry) ? "processed" : "failed again";
+    } catch (RuntimeException e) {
+      return "failed again: " + e;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.consumer;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.MultiSiteMetrics;
+import com.googlesource.gerrit.plugins.multisite.broker.LazyEventMessage;
+
+/** Counts the dropped events and the decoding work saved by not decoding them. */
+@Singleton
+public class DroppedEventMetrics extends MultiSiteMetrics implements DroppedEventListener {
+  private final Counter0 droppedEvents;
+  private final Counter0 undecodedBytes;
+  private final Counter0 savedDecodeTime;
+
+  @Inject
+  public DroppedEventMetrics(MetricMaker metricMaker) {
+    this.droppedEvents =
+        metricMaker.newCounter(
+            "multi_site/subscriber/dropped_events",
+            rateDescription("events", "Number of events dropped by the subscribers"));
+    this.undecodedBytes =
+        metricMaker.newCounter(
+            "multi_site/subscriber/dropped_events_undecoded_bytes",
+            rateDescription("bytes", "Size of the dropped events that were not decoded"));
+    this.savedDecodeTime =
+        metricMaker.newCounter(
+            "multi_site/subscriber/dropped_events_saved_decode_time",
+            new Description("Estimated time saved by not decoding the dropped events")
+                .setCumulative()
+                .setUnit(Description.Units.NANOSECONDS));
+  }
+
+  @Override
+  public void onEventDropped(EventMessage event) {
+    droppedEvents.increment();
+    if (event instanceof LazyEventMessage && !((LazyEventMessage) event).isDecoded()) {
+      LazyEventMessage lazyEvent = (LazyEventMessage) event;
+      undecodedBytes.incrementBy(lazyEvent.encodedSize());
+      savedDecodeTime.incrementBy(lazyEvent.estimatedDecodeNanos());
+    }
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.consumer;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import com.googlesource.gerrit.plugins.multisite.broker.BrokerApiWrapper;
+import com.googlesource.gerrit.plugins.multisite.index.ForwardedIndexExecutor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pauses the intake of messages from the broker when too many forwarded indexing tasks, including
+ * the scheduled retries, are waiting in the Forwarded-Index-Event queue, and resumes it once the
+ * queue has drained below the low-water mark.
+ */
+@Singleton
+public class ForwardedIndexBackpressure implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final long CHECK_INTERVAL_MS = 100;
+
+  private final BrokerApiWrapper brokerApi;
+  private final ScheduledExecutorService indexExecutor;
+  private final WorkQueue workQueue;
+  private final int highWaterMark;
+  private final int lowWaterMark;
+  private ScheduledFuture<?> checkTask;
+
+  @Inject
+  ForwardedIndexBackpressure(
+      BrokerApiWrapper brokerApi,
+      @ForwardedIndexExecutor ScheduledExecutorService indexExecutor,
+      WorkQueue workQueue,
+      Configuration cfg,
+      MetricMaker metricMaker) {
+    this.brokerApi = brokerApi;
+    this.indexExecutor = indexExecutor;
+    this.workQueue = workQueue;
+    this.highWaterMark = cfg.index().queueHighWaterMark();
+    this.lowWaterMark = cfg.index().queueLowWaterMark();
+
+    metricMaker.newCallbackMetric(
+        "multi_site/forwarded_index/queue_depth",
+        Integer.class,
+        new Description("Number of forwarded indexing tasks queued or scheduled for retry")
+            .setGauge()
+            .setUnit("tasks"),
+        this::queueDepth);
+    metricMaker.newCallbackMetric(
+        "multi_site/subscriber/consumers_paused",
+        Boolean.class,
+        new Description("Whether the intake of messages from the broker is paused").setGauge(),
+        brokerApi::isConsumersPaused);
+  }
+
+  @Override
+  public void start() {
+    if (highWaterMark > 0) {
+      checkTask =
+          workQueue
+              .getDefaultQueue()
+              .scheduleAtFixedRate(
+                  this::check, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (checkTask != null) {
+      checkTask.cancel(false);
+      checkTask = null;
+    }
+    brokerApi.resumeConsumers();
+  }
+
+  @VisibleForTesting
+  void check() {
+    int depth = queueDepth();
+    boolean paused = brokerApi.isConsumersPaused();
+    if (!paused && depth > highWaterMark) {
+      logger.atWarning().log(
+          "%d forwarded indexing tasks pending, pausing the consumption of broker messages",
+          depth);
+      brokerApi.pauseConsumers();
+    } else if (paused && depth <= lowWaterMark) {
+      logger.atInfo().log(
+          "%d forwarded indexing tasks pending, resuming the consumption of broker messages",
+          depth);
+      brokerApi.resumeConsumers();
+    }
+  }
+
+  private int queueDepth() {
+    if (indexExecutor instanceof ThreadPoolExecutor) {
+      ThreadPoolExecutor executor = (ThreadPoolExecutor) indexExecutor;
+      return executor.getQueue().size() + executor.getActiveCount();
+    }
+    return 0;
+  }
+}
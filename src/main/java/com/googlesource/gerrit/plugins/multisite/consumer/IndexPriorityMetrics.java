@@ -0,0 +1,78 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.consumer;
+
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer1;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.MultiSiteMetrics;
+import com.googlesource.gerrit.plugins.multisite.PriorityExecutor;
+import com.googlesource.gerrit.plugins.multisite.PriorityExecutor.Priority;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+@Singleton
+public class IndexPriorityMetrics extends MultiSiteMetrics {
+  private static final String PRIORITY = "priority";
+
+  private final MetricMaker metricMaker;
+  private final Timer1<String> waitTime;
+
+  @Inject
+  IndexPriorityMetrics(MetricMaker metricMaker) {
+    this.metricMaker = metricMaker;
+    this.waitTime =
+        metricMaker.newTimer(
+            "multi_site/subscriber/index_wait_time",
+            new Description("Time the received index events wait for a thread to process them")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS),
+            stringField(PRIORITY, "Priority of the index events, interactive or batch"));
+  }
+
+  /**
+   * Expose the number of index events waiting for a thread, per priority.
+   *
+   * @param executor the executor processing the received index events
+   */
+  void monitor(PriorityExecutor executor) {
+    CallbackMetric1<String, Integer> queueDepth =
+        metricMaker.newCallbackMetric(
+            "multi_site/subscriber/index_queue_depth",
+            Integer.class,
+            new Description("Number of received index events waiting for a thread")
+                .setGauge()
+                .setUnit("events"),
+            stringField(PRIORITY, "Priority of the index events, interactive or batch"));
+    metricMaker.newTrigger(
+        queueDepth,
+        () -> {
+          for (Priority priority : Priority.values()) {
+            queueDepth.set(name(priority), executor.queueDepth(priority));
+          }
+        });
+  }
+
+  void recordWaitTime(Priority priority, long waitNanos) {
+    waitTime.record(name(priority), waitNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private static String name(Priority priority) {
+    return priority.name().toLowerCase(Locale.US);
+  }
+}
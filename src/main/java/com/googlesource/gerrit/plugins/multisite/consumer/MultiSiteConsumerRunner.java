@@ -14,41 +14,98 @@
 
 package com.googlesource.gerrit.plugins.multisite.consumer;
 
-import com.gerritforge.gerrit.eventbroker.BrokerApi;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.extensions.events.LifecycleListener;
-import com.google.gerrit.extensions.registration.DynamicItem;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.googlesource.gerrit.plugins.multisite.Configuration;
+import com.googlesource.gerrit.plugins.multisite.broker.BrokerApiWrapper;
+import com.googlesource.gerrit.plugins.multisite.forwarder.router.IndexEventRouter;
+import java.util.concurrent.TimeUnit;
 
 @Singleton
 public class MultiSiteConsumerRunner implements LifecycleListener {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
   private final DynamicSet<AbstractSubcriber> consumers;
-  private DynamicItem<BrokerApi> brokerApi;
+  private BrokerApiWrapper brokerApi;
   private Configuration cfg;
+  private final ConsumerCheckpoints checkpoints;
+  private final ConsumerExecutors consumerExecutors;
+  private final IndexEventRouter indexEventRouter;
 
   @Inject
   public MultiSiteConsumerRunner(
-      DynamicItem<BrokerApi> brokerApi,
+      BrokerApiWrapper brokerApi,
       DynamicSet<AbstractSubcriber> consumers,
-      Configuration cfg) {
+      Configuration cfg,
+      ConsumerCheckpoints checkpoints,
+      ConsumerExecutors consumerExecutors,
+      IndexEventRouter indexEventRouter) {
     this.consumers = consumers;
     this.brokerApi = brokerApi;
     this.cfg = cfg;
+    this.checkpoints = checkpoints;
+    this.consumerExecutors = consumerExecutors;
+    this.indexEventRouter = indexEventRouter;
   }
 
   @Override
   public void start() {
+    indexEventRouter.replayPendingEvents();
+
     logger.atInfo().log("starting consumers");
     consumers.forEach(
-        consumer ->
-            brokerApi.get().receiveAsync(consumer.getTopic().topic(cfg), consumer.getConsumer()));
+        consumer -> brokerApi.receiveAsync(consumer.getTopic().topic(cfg), consumer.getConsumer()));
+
+    if (checkpoints.isEnabled()) {
+      consumers.forEach(consumer -> replayFromCheckpoint(consumer.getTopic().topic(cfg)));
+    }
+  }
+
+  private void replayFromCheckpoint(String topic) {
+    if (!checkpoints.hasCheckpoint(topic)) {
+      logger.atInfo().log("No checkpoint for topic %s, nothing to replay", topic);
+      return;
+    }
+    if (!checkpoints.needsReplay(topic)) {
+      logger.atInfo().log(
+          "No event of topic %s left behind at the last stop, nothing to replay", topic);
+      return;
+    }
+
+    // The broker API can only replay the whole topic, not seek to an offset: the replayed events
+    // published before the checkpoint stored at the last stop are skipped by the subscribers
+    // without being processed again, whilst the events published since are all processed
+    logger.atInfo().log("Replaying the events of topic %s since the last checkpoint", topic);
+    brokerApi.replayAllEvents(topic);
   }
 
+  /**
+   * Stop the consumers in order, so that the events already received are not lost: the intake of
+   * messages is stopped first, then the events received are processed and the forwarded indexing
+   * queue is drained up to {@code broker.shutdownDrainTimeoutMs}. The indexing work left behind is
+   * stored for being completed at the next start, whilst the topics with messages left behind are
+   * recorded in their checkpoints for being replayed.
+   */
   @Override
-  public void stop() {}
+  public void stop() {
+    logger.atInfo().log("stopping consumers");
+    brokerApi.stopConsumers();
+
+    long timeoutMs = cfg.broker().shutdownDrainTimeoutMs();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    consumerExecutors.drain(timeoutMs);
+    indexEventRouter.drain(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+
+    consumers.forEach(
+        consumer -> {
+          String topic = consumer.getTopic().topic(cfg);
+          if (brokerApi.hasMessagesLeftBehind(topic)) {
+            checkpoints.leftBehind(topic);
+          }
+        });
+    checkpoints.saveOnStop();
+  }
 }
@@ -33,8 +33,20 @@ public class ProjectUpdateEventSubscriber extends AbstractSubcriber {
       @InstanceId UUID instanceId,
       MessageLogger msgLog,
       SubscriberMetrics subscriberMetrics,
-      Configuration cfg) {
-    super(eventRouter, droppedEventListeners, instanceId, msgLog, subscriberMetrics, cfg);
+      Configuration cfg,
+      ConsumerExecutors consumerExecutors,
+      ConsumerCheckpoints checkpoints,
+      DeadLetterStore deadLetters) {
+    super(
+        eventRouter,
+        droppedEventListeners,
+        instanceId,
+        msgLog,
+        subscriberMetrics,
+        cfg,
+        consumerExecutors,
+        checkpoints,
+        deadLetters);
   }
 
   @Override
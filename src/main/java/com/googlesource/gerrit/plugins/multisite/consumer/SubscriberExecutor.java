@@ -0,0 +1,58 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.consumer;
+
+import com.googlesource.gerrit.plugins.multisite.KeyedExecutor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Hands the received events over to a pool of workers, keeping the order of the events sharing the
+ * same routing key.
+ *
+ * <p>The number of events waiting or being processed is bounded: when the limit is reached, the
+ * broker callback thread is blocked until a worker completes an event, so that the broker stops
+ * fetching new messages.
+ */
+class SubscriberExecutor {
+  private final KeyedExecutor executor;
+  private final Semaphore pendingEvents;
+
+  SubscriberExecutor(KeyedExecutor executor, int maxPendingEvents) {
+    this.executor = executor;
+    this.pendingEvents = new Semaphore(maxPendingEvents);
+  }
+
+  void execute(String routingKey, Runnable task) {
+    pendingEvents.acquireUninterruptibly();
+    try {
+      executor.execute(
+          routingKey,
+          () -> {
+            try {
+              task.run();
+            } finally {
+              pendingEvents.release();
+            }
+          });
+    } catch (RuntimeException e) {
+      pendingEvents.release();
+      throw e;
+    }
+  }
+
+  int pendingEvents() {
+    return executor.size();
+  }
+}
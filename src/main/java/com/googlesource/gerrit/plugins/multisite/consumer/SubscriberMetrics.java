@@ -21,6 +21,7 @@ import com.google.gerrit.entities.Project;
 import com.google.gerrit.metrics.Counter1;
 import com.google.gerrit.metrics.Description;
 import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer2;
 import com.google.gerrit.server.events.Event;
 import com.google.gerrit.server.events.ProjectEvent;
 import com.google.gerrit.server.events.RefUpdatedEvent;
@@ -38,6 +39,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 @Singleton
 public class SubscriberMetrics extends MultiSiteMetrics {
@@ -45,11 +47,15 @@ public class SubscriberMetrics extends MultiSiteMetrics {
   private static final String SUBSCRIBER_SUCCESS_COUNTER = "subscriber_msg_consumer_counter";
   private static final String SUBSCRIBER_FAILURE_COUNTER =
       "subscriber_msg_consumer_failure_counter";
+  private static final String TOPIC = "topic";
+  private static final String EVENT_TYPE = "event_type";
   private static final String REPLICATION_LAG_SEC =
       "multi_site/subscriber/subscriber_replication_status/sec_behind";
 
   private final Counter1<String> subscriberSuccessCounter;
   private final Counter1<String> subscriberFailureCounter;
+  private final Timer2<String, String> consumeLatency;
+  private final Timer2<String, String> routerExecutionTime;
   private final ProjectVersionLogger verLogger;
 
   private final Map<String, Long> replicationStatusPerProject = new HashMap<>();
@@ -78,6 +84,22 @@ public class SubscriberMetrics extends MultiSiteMetrics {
                 .setRate()
                 .setUnit("errors"),
             stringField(SUBSCRIBER_FAILURE_COUNTER, "Subscriber failed to consume messages count"));
+    this.consumeLatency =
+        metricMaker.newTimer(
+            "multi_site/subscriber/consume_latency",
+            new Description("Time elapsed between publishing an event and applying it locally")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS),
+            stringField(TOPIC, "Topic of the consumed message"),
+            stringField(EVENT_TYPE, "Type of the consumed event"));
+    this.routerExecutionTime =
+        metricMaker.newTimer(
+            "multi_site/subscriber/router_execution_time",
+            new Description("Time taken to route a consumed event to its local handler")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS),
+            stringField(TOPIC, "Topic of the consumed message"),
+            stringField(EVENT_TYPE, "Type of the consumed event"));
     metricMaker.newCallbackMetric(
         REPLICATION_LAG_SEC,
         Long.class,
@@ -101,6 +123,28 @@ public class SubscriberMetrics extends MultiSiteMetrics {
     subscriberFailureCounter.increment(SUBSCRIBER_FAILURE_COUNTER);
   }
 
+  /**
+   * Record the time elapsed between publishing an event and applying it.
+   *
+   * @param topic topic the event was consumed from
+   * @param eventType type of the event
+   * @param latencyMs milliseconds elapsed since the event was published
+   */
+  public void recordConsumeLatency(String topic, String eventType, long latencyMs) {
+    consumeLatency.record(topic, eventType, Math.max(0, latencyMs), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Record the time taken by the router to apply an event.
+   *
+   * @param topic topic the event was consumed from
+   * @param eventType type of the event
+   * @param elapsedNanos nanoseconds spent in the router
+   */
+  public void recordRouterExecutionTime(String topic, String eventType, long elapsedNanos) {
+    routerExecutionTime.record(topic, eventType, elapsedNanos, TimeUnit.NANOSECONDS);
+  }
+
   public void updateReplicationStatusMetrics(EventMessage eventMessage) {
     Event event = eventMessage.getEvent();
 
@@ -26,6 +26,11 @@ public class SubscriberModule extends LifecycleModule {
 
     DynamicSet.setOf(binder(), AbstractSubcriber.class);
     DynamicSet.setOf(binder(), DroppedEventListener.class);
+    DynamicSet.bind(binder(), DroppedEventListener.class).to(DroppedEventMetrics.class);
+    listener().to(ConsumerExecutors.class);
+    listener().to(ForwardedIndexBackpressure.class);
+    listener().to(ConsumerCheckpoints.class);
+    listener().to(DeadLetterStore.class);
 
     DynamicSet.bind(binder(), AbstractSubcriber.class).to(IndexEventSubscriber.class);
     DynamicSet.bind(binder(), AbstractSubcriber.class).to(BatchIndexEventSubscriber.class);
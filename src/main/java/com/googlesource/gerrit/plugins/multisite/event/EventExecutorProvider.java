@@ -17,13 +17,18 @@ package com.googlesource.gerrit.plugins.multisite.event;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
 import com.googlesource.gerrit.plugins.multisite.ExecutorProvider;
 
 @Singleton
 class EventExecutorProvider extends ExecutorProvider {
 
   @Inject
-  EventExecutorProvider(WorkQueue workQueue) {
-    super(workQueue, 1, "Forward-Stream-Event");
+  EventExecutorProvider(WorkQueue workQueue, Configuration config) {
+    super(
+        workQueue,
+        config.event().threadPoolSize(),
+        "Forward-Stream-Event",
+        config.broker().shutdownDrainTimeoutMs());
   }
 }
@@ -20,19 +20,19 @@ import com.google.gerrit.server.events.Event;
 import com.google.gerrit.server.events.EventListener;
 import com.google.gerrit.server.events.ProjectEvent;
 import com.google.inject.Inject;
+import com.googlesource.gerrit.plugins.multisite.KeyedExecutor;
 import com.googlesource.gerrit.plugins.multisite.forwarder.Context;
 import com.googlesource.gerrit.plugins.multisite.forwarder.StreamEventForwarder;
-import java.util.concurrent.Executor;
 
 class EventHandler implements EventListener {
-  private final Executor executor;
+  private final KeyedExecutor executor;
   private final DynamicSet<StreamEventForwarder> forwarders;
   private final ProjectsFilter projectsFilter;
 
   @Inject
   EventHandler(
       DynamicSet<StreamEventForwarder> forwarders,
-      @EventExecutor Executor executor,
+      @EventExecutor KeyedExecutor executor,
       ProjectsFilter projectsFilter) {
     this.forwarders = forwarders;
     this.executor = executor;
@@ -43,7 +43,9 @@ class EventHandler implements EventListener {
   public void onEvent(Event event) {
     if (!Context.isForwardedEvent() && event instanceof ProjectEvent) {
       if (projectsFilter.matches(event)) {
-        executor.execute(new EventTask(event));
+        // Events of the same project are forwarded in order, different projects in parallel
+        ProjectEvent projectEvent = (ProjectEvent) event;
+        executor.execute(projectEvent.getProjectNameKey().get(), new EventTask(event));
       }
     }
   }
@@ -17,6 +17,10 @@ package com.googlesource.gerrit.plugins.multisite.event;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.gerrit.server.events.EventListener;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.KeyedExecutor;
+import com.googlesource.gerrit.plugins.multisite.KeyedExecutorMetrics;
 import com.googlesource.gerrit.plugins.multisite.validation.ProjectVersionRefUpdate;
 import java.util.concurrent.Executor;
 
@@ -29,4 +33,14 @@ public class EventModule extends LifecycleModule {
     DynamicSet.bind(binder(), EventListener.class).to(EventHandler.class);
     DynamicSet.bind(binder(), EventListener.class).to(ProjectVersionRefUpdate.class);
   }
+
+  @Provides
+  @Singleton
+  @EventExecutor
+  KeyedExecutor getKeyedEventExecutor(
+      @EventExecutor Executor executor, KeyedExecutorMetrics metrics) {
+    KeyedExecutor keyedExecutor = new KeyedExecutor(executor);
+    metrics.monitor("stream_event", keyedExecutor);
+    return keyedExecutor;
+  }
 }
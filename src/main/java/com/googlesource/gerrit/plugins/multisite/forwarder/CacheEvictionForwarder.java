@@ -15,6 +15,7 @@
 package com.googlesource.gerrit.plugins.multisite.forwarder;
 
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.CacheEvictionEvent;
+import java.util.concurrent.CompletableFuture;
 
 public interface CacheEvictionForwarder {
   /**
@@ -25,4 +26,16 @@ public interface CacheEvictionForwarder {
    * @return true if successful, otherwise false.
    */
   boolean evict(ForwarderTask task, CacheEvictionEvent cacheEvictionEvent);
+
+  /**
+   * Forward a cache eviction event to the other master without waiting for the outcome.
+   *
+   * @param task that triggered the forwarding of the cache event.
+   * @param cacheEvictionEvent the details of the cache eviction event.
+   * @return future completed with true if successful, otherwise false.
+   */
+  default CompletableFuture<Boolean> evictAsync(
+      ForwarderTask task, CacheEvictionEvent cacheEvictionEvent) {
+    return CompletableFuture.completedFuture(evict(task, cacheEvictionEvent));
+  }
 }
@@ -14,37 +14,59 @@
 
 package com.googlesource.gerrit.plugins.multisite.forwarder;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.entities.Account;
 import com.google.gerrit.server.index.account.AccountIndexer;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.googlesource.gerrit.plugins.multisite.Configuration;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.AccountIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.index.ForwardedIndexExecutor;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Index an account using {@link AccountIndexer}. This class is meant to be used on the receiving
  * side of the {@link IndexEventForwarder} since it will prevent indexed account to be forwarded
  * again causing an infinite forwarding loop between the 2 nodes. It will also make sure no
  * concurrent indexing is done for the same account id
+ *
+ * <p>The accounts to index asynchronously are kept pending until the All-Users refs are replicated.
+ * They are then indexed in parallel on the forwarded indexing queue by a single background flush at
+ * a time, and stored in {@link PendingAccounts} until indexed so that a restart does not lose them.
  */
 @Singleton
 public class ForwardedIndexAccountHandler
     extends ForwardedIndexingHandler<Account.Id, AccountIndexEvent> {
 
   private final AccountIndexer indexer;
-  private Map<Account.Id, Operation> accountsToIndex;
+  private final ScheduledExecutorService indexExecutor;
+  private final PendingAccounts pendingAccounts;
+  private final ConcurrentMap<Account.Id, PendingAccount> accountsToIndex;
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private final AtomicBoolean saveScheduled = new AtomicBoolean();
 
   @Inject
-  ForwardedIndexAccountHandler(AccountIndexer indexer, Configuration config) {
+  ForwardedIndexAccountHandler(
+      AccountIndexer indexer,
+      Configuration config,
+      @ForwardedIndexExecutor ScheduledExecutorService indexExecutor,
+      PendingAccounts pendingAccounts) {
     super(config.index().numStripedLocks());
     this.indexer = indexer;
-    this.accountsToIndex = new HashMap<>();
+    this.indexExecutor = indexExecutor;
+    this.pendingAccounts = pendingAccounts;
+    this.accountsToIndex = new ConcurrentHashMap<>();
+    for (Account.Id id : pendingAccounts.load()) {
+      accountsToIndex.put(id, new PendingAccount(Operation.INDEX));
+    }
   }
 
   @Override
@@ -58,28 +80,107 @@ public class ForwardedIndexAccountHandler
     throw new UnsupportedOperationException("Delete from account index not supported");
   }
 
-  public synchronized void indexAsync(Account.Id id, Operation operation) {
-    accountsToIndex.put(id, operation);
+  /**
+   * Keep an account pending until the next flush, replacing the pending indexing of the same
+   * account if any.
+   *
+   * @param id the account to index.
+   * @param operation the indexing operation.
+   */
+  public void indexAsync(Account.Id id, Operation operation) {
+    if (accountsToIndex.put(id, new PendingAccount(operation)) == null) {
+      schedule(saveScheduled, this::savePendingAccounts);
+    }
   }
 
-  public synchronized void doAsyncIndex() {
-    accountsToIndex =
-        accountsToIndex.entrySet().stream()
-            .filter(e -> !checkedIndex(e))
-            .collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue()));
+  /** Flush the pending accounts in the background. Does nothing if a flush is already queued. */
+  public void doAsyncIndex() {
+    schedule(flushScheduled, this::flushInBackground);
   }
 
-  private boolean checkedIndex(Map.Entry<Account.Id, Operation> account) {
-    try {
-      index(account.getKey(), account.getValue(), Optional.empty());
-      return true;
-    } catch (IOException e) {
-      log.error("Account {} index failed", account.getKey(), e);
-      return false;
+  /**
+   * Index the pending accounts on the calling thread, e.g. upon shutdown once the forwarded
+   * indexing queue is stopped. The accounts that fail to be indexed are kept pending.
+   */
+  public void flush() {
+    for (Map.Entry<Account.Id, PendingAccount> account : accountsToIndex.entrySet()) {
+      if (account.getValue().claim()) {
+        indexPending(account.getKey(), account.getValue());
+      }
     }
+    savePendingAccounts();
   }
 
   public Set<Account.Id> pendingAccountsToIndex() {
-    return accountsToIndex.keySet();
+    return ImmutableSet.copyOf(accountsToIndex.keySet());
+  }
+
+  private void flushInBackground() {
+    for (Map.Entry<Account.Id, PendingAccount> account : accountsToIndex.entrySet()) {
+      Account.Id id = account.getKey();
+      PendingAccount pending = account.getValue();
+      if (pending.claim()) {
+        try {
+          indexExecutor.execute(() -> indexPending(id, pending));
+        } catch (RejectedExecutionException e) {
+          pending.release();
+          log.warn("Account {} index not scheduled: the indexing queue is stopped", id);
+          return;
+        }
+      }
+    }
+  }
+
+  private void indexPending(Account.Id id, PendingAccount pending) {
+    try {
+      index(id, pending.operation, Optional.empty());
+    } catch (IOException | RuntimeException e) {
+      log.error("Account {} index failed", id, e);
+      pending.release();
+      return;
+    }
+
+    // A newer indexing of the account received in the meantime stays pending
+    if (accountsToIndex.remove(id, pending)) {
+      schedule(saveScheduled, this::savePendingAccounts);
+    }
+  }
+
+  private synchronized void savePendingAccounts() {
+    pendingAccounts.save(ImmutableSet.copyOf(accountsToIndex.keySet()));
+  }
+
+  private void schedule(AtomicBoolean scheduled, Runnable task) {
+    if (!scheduled.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      indexExecutor.execute(
+          () -> {
+            scheduled.set(false);
+            task.run();
+          });
+    } catch (RejectedExecutionException e) {
+      // The forwarded indexing queue is stopped: the pending accounts are flushed upon shutdown
+      scheduled.set(false);
+    }
+  }
+
+  private static class PendingAccount {
+    private final Operation operation;
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    PendingAccount(Operation operation) {
+      this.operation = operation;
+    }
+
+    boolean claim() {
+      return claimed.compareAndSet(false, true);
+    }
+
+    void release() {
+      claimed.set(false);
+    }
   }
 }
@@ -14,21 +14,32 @@
 
 package com.googlesource.gerrit.plugins.multisite.forwarder;
 
+import static com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedIndexingHandler.Operation.INDEX;
+
 import com.google.common.base.Splitter;
 import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.exceptions.StorageException;
+import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.index.change.ChangeIndexer;
 import com.google.gerrit.server.notedb.ChangeNotes;
+import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.util.ManualRequestContext;
 import com.google.gerrit.server.util.OneOffRequestContext;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.googlesource.gerrit.plugins.multisite.Configuration;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
-import com.googlesource.gerrit.plugins.multisite.index.ChangeChecker;
 import com.googlesource.gerrit.plugins.multisite.index.ChangeCheckerImpl;
 import com.googlesource.gerrit.plugins.multisite.index.ForwardedIndexExecutor;
+import java.io.IOException;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.Lock;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Repository;
 
 /**
  * Index a change using {@link ChangeIndexer}. This class is meant to be used on the receiving side
@@ -41,6 +52,10 @@ public class ForwardedIndexChangeHandler
     extends ForwardedIndexingHandlerWithRetries<String, ChangeIndexEvent> {
   private final ChangeIndexer indexer;
   private final ChangeCheckerImpl.Factory changeCheckerFactory;
+  private final GitRepositoryManager gitRepoMgr;
+  private final ChangeNotes.Factory notesFactory;
+  private final ChangeData.Factory changeDataFactory;
+  private final RefUpdateWaiters refWaiters;
 
   @Inject
   ForwardedIndexChangeHandler(
@@ -48,10 +63,71 @@ public class ForwardedIndexChangeHandler
       Configuration configuration,
       @ForwardedIndexExecutor ScheduledExecutorService indexExecutor,
       OneOffRequestContext oneOffCtx,
-      ChangeCheckerImpl.Factory changeCheckerFactory) {
-    super(indexExecutor, configuration, oneOffCtx);
+      ChangeCheckerImpl.Factory changeCheckerFactory,
+      GitRepositoryManager gitRepoMgr,
+      ChangeNotes.Factory notesFactory,
+      ChangeData.Factory changeDataFactory,
+      ForwardedIndexRetryMetrics retryMetrics,
+      RefUpdateWaiters refWaiters) {
+    super(indexExecutor, configuration, oneOffCtx, retryMetrics);
     this.indexer = indexer;
     this.changeCheckerFactory = changeCheckerFactory;
+    this.gitRepoMgr = gitRepoMgr;
+    this.notesFactory = notesFactory;
+    this.changeDataFactory = changeDataFactory;
+    this.refWaiters = refWaiters;
+  }
+
+  /**
+   * Index multiple changes of the same project in the local node, loading all of them from a single
+   * repository and request context. Indexing will not be forwarded to the other node.
+   *
+   * @param projectName The project of the changes.
+   * @param indexEvents The index events of the changes, in the order they have to be indexed.
+   * @throws IOException If an error occur while indexing.
+   */
+  public void indexAll(Project.NameKey projectName, List<ChangeIndexEvent> indexEvents)
+      throws IOException {
+    log.debug("index {} changes of project {}", indexEvents.size(), projectName);
+    try (ManualRequestContext ctx = oneOffCtx.open();
+        Repository repo = gitRepoMgr.openRepository(projectName)) {
+      Context.setForwardedEvent(true);
+      for (ChangeIndexEvent indexEvent : indexEvents) {
+        String id = projectName.get() + "~" + indexEvent.changeId;
+        Lock idLock = idLock(id);
+        idLock.lock();
+        try {
+          indexFromRepository(repo, projectName, id, indexEvent);
+        } finally {
+          idLock.unlock();
+        }
+      }
+    } catch (RepositoryNotFoundException e) {
+      log.warn("Project {} not present yet in the local node", projectName);
+      for (ChangeIndexEvent indexEvent : indexEvents) {
+        String id = projectName.get() + "~" + indexEvent.changeId;
+        try {
+          index(id, INDEX, Optional.of(indexEvent));
+        } catch (RuntimeException ex) {
+          log.warn("{} {} could not be indexed (event={})", indexName(), id, indexEvent, ex);
+          rescheduleIndex(id, Optional.of(indexEvent), 1);
+        }
+      }
+    } finally {
+      Context.unsetForwardedEvent();
+    }
+  }
+
+  private void indexFromRepository(
+      Repository repo, Project.NameKey projectName, String id, ChangeIndexEvent indexEvent) {
+    Optional<ChangeIndexEvent> event = Optional.of(indexEvent);
+    try {
+      indexOnce(repo, projectName, id, event, 0);
+    } catch (RuntimeException e) {
+      // Any failure is retried on its own, without stopping the indexing of the other changes
+      log.warn("{} {} could not be indexed (event={})", indexName(), id, indexEvent, e);
+      rescheduleIndex(id, event, 1);
+    }
   }
 
   @Override
@@ -61,31 +137,102 @@ public class ForwardedIndexChangeHandler
 
   @Override
   protected void attemptToIndex(String id, Optional<ChangeIndexEvent> indexEvent, int retryCount) {
-    ChangeChecker checker = changeCheckerFactory.create(id);
-    Optional<ChangeNotes> changeNotes = checker.getChangeNotes();
-    if (changeNotes.isPresent()) {
-      reindexAndCheckIsUpToDate(id, indexEvent, checker, retryCount);
+    Project.NameKey projectName = parseProjectName(id);
+    refWaiters.cancel(projectName.get(), RefNames.changeMetaRef(parseChangeId(id)));
+    Optional<Repository> repo = openRepository(projectName);
+    if (!repo.isPresent()) {
+      rescheduleChangeNotPresent(projectName, id, indexEvent, retryCount);
+      return;
+    }
+
+    try (Repository projectRepo = repo.get();
+        ManualRequestContext ctx = oneOffCtx.open()) {
+      indexOnce(projectRepo, projectName, id, indexEvent, retryCount);
+    }
+  }
+
+  /**
+   * Index a change loading its notes only once: the same notes are indexed, through change data
+   * built on them rather than reloaded by the indexer, and then checked against the index event,
+   * reading the target branch from the repository kept open by the caller.
+   */
+  private void indexOnce(
+      Repository repo,
+      Project.NameKey projectName,
+      String id,
+      Optional<ChangeIndexEvent> indexEvent,
+      int retryCount) {
+    Optional<ChangeNotes> notes = loadNotes(repo, projectName, id);
+    if (!notes.isPresent()) {
+      rescheduleChangeNotPresent(projectName, id, indexEvent, retryCount);
+      return;
+    }
+
+    indexer.index(changeDataFactory.create(notes.get()));
+    checkIsUpToDate(
+        id, indexEvent, changeCheckerFactory.create(id, notes.get(), repo), retryCount);
+  }
+
+  /**
+   * Reschedule the indexing of a change not present yet, waking up the retry as soon as the meta
+   * ref of the change is updated, either locally or by a replication from another site.
+   */
+  private void rescheduleChangeNotPresent(
+      Project.NameKey projectName,
+      String id,
+      Optional<ChangeIndexEvent> indexEvent,
+      int retryCount) {
+    log.warn(
+        "Change {} not present yet in local Git repository (event={}) after {} attempt(s)",
+        id,
+        indexEvent,
+        retryCount);
+    if (rescheduleIndex(id, indexEvent, retryCount + 1)) {
+      refWaiters.await(
+          projectName.get(),
+          RefNames.changeMetaRef(parseChangeId(id)),
+          () -> wakeUpPendingRetry(id));
     } else {
-      log.warn(
-          "Change {} not present yet in local Git repository (event={}) after {} attempt(s)",
-          id,
-          indexEvent,
-          retryCount);
-      if (!rescheduleIndex(id, indexEvent, retryCount + 1)) {
-        log.error(
-            "Change {} could not be found in the local Git repository (event={})", id, indexEvent);
-      }
+      log.error(
+          "Change {} could not be found in the local Git repository (event={})", id, indexEvent);
     }
   }
 
   @Override
   protected void reindex(String id) {
-    try (ManualRequestContext ctx = oneOffCtx.open()) {
-      ChangeChecker checker = changeCheckerFactory.create(id);
-      Optional<ChangeNotes> changeNotes = checker.getChangeNotes();
-      ChangeNotes notes = changeNotes.get();
-      notes.reload();
-      indexer.index(notes.getChange());
+    Project.NameKey projectName = parseProjectName(id);
+    Optional<Repository> repo = openRepository(projectName);
+    if (repo.isPresent()) {
+      try (Repository projectRepo = repo.get();
+          ManualRequestContext ctx = oneOffCtx.open()) {
+        loadNotes(projectRepo, projectName, id)
+            .ifPresent(notes -> indexer.index(changeDataFactory.create(notes)));
+      }
+    }
+  }
+
+  private Optional<Repository> openRepository(Project.NameKey projectName) {
+    try {
+      return Optional.of(gitRepoMgr.openRepository(projectName));
+    } catch (RepositoryNotFoundException e) {
+      log.warn("Project {} not present yet in the local node", projectName);
+    } catch (IOException e) {
+      log.warn("Unable to open the repository of project {}", projectName, e);
+    }
+    return Optional.empty();
+  }
+
+  private Optional<ChangeNotes> loadNotes(
+      Repository repo, Project.NameKey projectName, String id) {
+    Change.Id changeId = parseChangeId(id);
+    try {
+      if (repo.exactRef(RefNames.changeMetaRef(changeId)) == null) {
+        return Optional.empty();
+      }
+      return Optional.of(notesFactory.create(repo, projectName, changeId));
+    } catch (IOException | StorageException e) {
+      log.warn("Unable to load change {} from the local Git repository", id, e);
+      return Optional.empty();
     }
   }
 
@@ -100,6 +247,10 @@ public class ForwardedIndexChangeHandler
     log.debug("Change {} successfully deleted from index", id);
   }
 
+  private static Project.NameKey parseProjectName(String id) {
+    return Project.nameKey(id.substring(0, id.lastIndexOf('~')));
+  }
+
   private static Change.Id parseChangeId(String id) {
     Change.Id changeId = Change.id(Integer.parseInt(Splitter.on("~").splitToList(id).get(1)));
     return changeId;
@@ -44,8 +44,9 @@ public class ForwardedIndexGroupHandler
       Configuration config,
       GroupChecker groupChecker,
       OneOffRequestContext oneOffRequestContext,
-      @ForwardedIndexExecutor ScheduledExecutorService indexExecutor) {
-    super(indexExecutor, config, oneOffRequestContext);
+      @ForwardedIndexExecutor ScheduledExecutorService indexExecutor,
+      ForwardedIndexRetryMetrics retryMetrics) {
+    super(indexExecutor, config, oneOffRequestContext, retryMetrics);
     this.indexer = indexer;
     this.groupChecker = groupChecker;
   }
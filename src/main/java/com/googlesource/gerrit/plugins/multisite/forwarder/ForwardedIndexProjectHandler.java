@@ -44,8 +44,9 @@ public class ForwardedIndexProjectHandler
       ProjectChecker projectChecker,
       OneOffRequestContext oneOffRequestContext,
       @ForwardedIndexExecutor ScheduledExecutorService indexExecutor,
-      Configuration config) {
-    super(indexExecutor, config, oneOffRequestContext);
+      Configuration config,
+      ForwardedIndexRetryMetrics retryMetrics) {
+    super(indexExecutor, config, oneOffRequestContext, retryMetrics);
     this.indexer = indexer;
     this.projectChecker = projectChecker;
   }
@@ -0,0 +1,65 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder;
+
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.MultiSiteMetrics;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Singleton
+public class ForwardedIndexRetryMetrics extends MultiSiteMetrics {
+  private static final String INDEX_TYPE = "index_type";
+
+  private final Set<ForwardedIndexingHandlerWithRetries<?, ?>> handlers =
+      ConcurrentHashMap.newKeySet();
+
+  @Inject
+  public ForwardedIndexRetryMetrics(MetricMaker metricMaker) {
+    CallbackMetric1<String, Integer> pendingRetries =
+        metricMaker.newCallbackMetric(
+            "multi_site/forwarded_index/pending_retries",
+            Integer.class,
+            new Description("Number of ids waiting for a retry of their indexing")
+                .setGauge()
+                .setUnit("retries"),
+            stringField(INDEX_TYPE, "Type of index"));
+    CallbackMetric1<String, Long> oldestRetryAge =
+        metricMaker.newCallbackMetric(
+            "multi_site/forwarded_index/oldest_retry_age",
+            Long.class,
+            new Description("Time since the oldest pending retry of an indexing was scheduled")
+                .setGauge()
+                .setUnit(Description.Units.MILLISECONDS),
+            stringField(INDEX_TYPE, "Type of index"));
+    metricMaker.newTrigger(
+        pendingRetries,
+        oldestRetryAge,
+        () -> {
+          for (ForwardedIndexingHandlerWithRetries<?, ?> handler : handlers) {
+            pendingRetries.set(handler.indexName(), handler.pendingRetryCount());
+            oldestRetryAge.set(handler.indexName(), handler.oldestPendingRetryAgeMs());
+          }
+        });
+  }
+
+  void register(ForwardedIndexingHandlerWithRetries<?, ?> handler) {
+    handlers.add(handler);
+  }
+}
@@ -50,6 +50,14 @@ public abstract class ForwardedIndexingHandler<T, E> {
     idLocks = Striped.lock(lockStripes);
   }
 
+  /**
+   * @param id the id to index.
+   * @return the lock that has to be held whilst indexing the id.
+   */
+  protected Lock idLock(T id) {
+    return idLocks.get(id);
+  }
+
   /**
    * Index an item in the local node, indexing will not be forwarded to the other node.
    *
@@ -62,7 +70,7 @@ public abstract class ForwardedIndexingHandler<T, E> {
     log.debug("{} {} {}", operation, id, event);
     try {
       Context.setForwardedEvent(true);
-      Lock idLock = idLocks.get(id);
+      Lock idLock = idLock(id);
       idLock.lock();
       try {
         switch (operation) {
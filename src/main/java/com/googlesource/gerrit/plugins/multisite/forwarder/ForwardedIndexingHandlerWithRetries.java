@@ -14,41 +14,59 @@
 
 package com.googlesource.gerrit.plugins.multisite.forwarder;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.gerrit.server.util.ManualRequestContext;
 import com.google.gerrit.server.util.OneOffRequestContext;
 import com.googlesource.gerrit.plugins.multisite.Configuration;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.IndexEvent;
 import com.googlesource.gerrit.plugins.multisite.index.UpToDateChecker;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * Base class to handle forwarded indexing. This class is meant to be extended by classes used on
  * the receiving side of the {@link IndexEvent} since it will prevent indexing to be forwarded again
  * causing an infinite forwarding loop between the 2 nodes. It will also make sure no concurrent
  * indexing is done for the same id.
+ *
+ * <p>Failed indexing is retried with an exponential backoff, randomized to avoid retrying the ids
+ * that failed together all at once. An id has at most one pending retry, which indexes the newest
+ * event received for it in the meantime.
  */
 public abstract class ForwardedIndexingHandlerWithRetries<T, E extends IndexEvent>
     extends ForwardedIndexingHandler<T, E> {
 
+  private static final double RETRY_JITTER = 0.25;
+
   private final int retryInterval;
+  private final int maxRetryInterval;
   private final int maxTries;
   private final ScheduledExecutorService indexExecutor;
+  private final Map<T, PendingRetry> pendingRetries = new ConcurrentHashMap<>();
   protected final OneOffRequestContext oneOffCtx;
 
   ForwardedIndexingHandlerWithRetries(
       ScheduledExecutorService indexExecutor,
       Configuration configuration,
-      OneOffRequestContext oneOffCtx) {
+      OneOffRequestContext oneOffCtx,
+      ForwardedIndexRetryMetrics retryMetrics) {
     super(configuration.index().numStripedLocks());
 
     Configuration.Index indexConfig = configuration.index();
     this.oneOffCtx = oneOffCtx;
     this.indexExecutor = indexExecutor;
     this.retryInterval = indexConfig != null ? indexConfig.retryInterval() : 0;
+    this.maxRetryInterval = indexConfig != null ? indexConfig.maxRetryInterval() : 0;
     this.maxTries = indexConfig != null ? indexConfig.maxTries() : 0;
+    retryMetrics.register(this);
   }
 
   protected abstract void reindex(T id);
@@ -68,32 +86,120 @@ public abstract class ForwardedIndexingHandlerWithRetries<T, E extends IndexEven
       return false;
     }
 
+    PendingRetry retry = new PendingRetry(indexEvent, retryCount);
+    PendingRetry pending = pendingRetries.merge(id, retry, PendingRetry::merge);
+    if (pending != retry) {
+      log.debug(
+          "{} {} has already a pending retry, merged with event {}", indexName(), id, indexEvent);
+      return true;
+    }
+
+    long delayMs = retryDelayMs(retryCount);
     log.warn(
         "Retrying for the #{} time to index {} {} after {} msecs",
         retryCount,
         indexName(),
         id,
-        retryInterval);
-    @SuppressWarnings("unused")
-    Future<?> possiblyIgnoredError =
-        indexExecutor.schedule(
-            () -> {
-              try (ManualRequestContext ctx = oneOffCtx.open()) {
-                Context.setForwardedEvent(true);
-                attemptToIndex(id, indexEvent, retryCount);
-              } catch (Exception e) {
-                log.warn("{} {} could not be indexed", indexName(), id, e);
-              }
-            },
-            retryInterval,
-            TimeUnit.MILLISECONDS);
+        delayMs);
+    try {
+      pending.scheduled =
+          indexExecutor.schedule(() -> retry(id, pending), delayMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      log.warn("{} {} retry not scheduled: the indexing queue is shut down", indexName(), id);
+    }
     return true;
   }
 
+  private void retry(T id, PendingRetry pending) {
+    if (!pendingRetries.remove(id, pending)) {
+      return;
+    }
+    try (ManualRequestContext ctx = oneOffCtx.open()) {
+      Context.setForwardedEvent(true);
+      attemptToIndex(id, pending.indexEvent(), pending.retryCount());
+    } catch (Exception e) {
+      log.warn("{} {} could not be indexed", indexName(), id, e);
+    } finally {
+      Context.unsetForwardedEvent();
+    }
+  }
+
+  /**
+   * Run the pending retry of an id as soon as possible, without waiting for its delay, e.g. because
+   * what the retry is waiting for has just become available.
+   *
+   * @param id the id whose retry is woken up
+   */
+  protected void wakeUpPendingRetry(T id) {
+    PendingRetry pending = pendingRetries.get(id);
+    if (pending != null) {
+      log.debug("Waking up the pending retry of {} {}", indexName(), id);
+      try {
+        indexExecutor.execute(() -> retry(id, pending));
+      } catch (RejectedExecutionException e) {
+        log.warn("{} {} retry not woken up: the indexing queue is shut down", indexName(), id);
+        return;
+      }
+      Future<?> scheduled = pending.scheduled;
+      if (scheduled != null) {
+        scheduled.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * @param retryCount the number of the retry, starting from 1
+   * @return the delay of the retry: the retry interval doubled at each retry, up to the maximum
+   *     retry interval, and randomized by up to 25% either way
+   */
+  @VisibleForTesting
+  long retryDelayMs(int retryCount) {
+    long backoffMs = ((long) retryInterval) << Math.min(Math.max(retryCount - 1, 0), 30);
+    double jitter = RETRY_JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+    return Math.min(maxRetryInterval, Math.round(backoffMs * (1 + jitter)));
+  }
+
+  int pendingRetryCount() {
+    return pendingRetries.size();
+  }
+
+  long oldestPendingRetryAgeMs() {
+    long now = System.currentTimeMillis();
+    return pendingRetries.values().stream()
+        .mapToLong(retry -> now - retry.scheduledOn)
+        .max()
+        .orElse(0L);
+  }
+
+  /**
+   * @return the index events of the retries not executed yet, either because they are still
+   *     scheduled or because the indexing queue has been shut down before they could run
+   */
+  public List<E> pendingRetries() {
+    return pendingRetries.values().stream()
+        .map(PendingRetry::indexEvent)
+        .filter(Optional::isPresent)
+        .map(Optional::get)
+        .collect(Collectors.toList());
+  }
+
   public final void reindexAndCheckIsUpToDate(
       T id, Optional<E> indexEvent, UpToDateChecker<E> upToDateChecker, int retryCount) {
     reindex(id);
+    checkIsUpToDate(id, indexEvent, upToDateChecker, retryCount);
+  }
 
+  /**
+   * Check that an id already reindexed is up-to-date with its index event, rescheduling its
+   * indexing otherwise.
+   *
+   * @param id the reindexed id
+   * @param indexEvent the index event of the id
+   * @param upToDateChecker the checker of the reindexed id
+   * @param retryCount the number of retries already done
+   */
+  protected final void checkIsUpToDate(
+      T id, Optional<E> indexEvent, UpToDateChecker<E> upToDateChecker, int retryCount) {
     if (!upToDateChecker.isUpToDate(indexEvent)) {
       log.warn("{} {} is not up-to-date. Rescheduling", indexName(), id);
       rescheduleIndex(id, indexEvent, retryCount + 1);
@@ -106,4 +212,35 @@ public abstract class ForwardedIndexingHandlerWithRetries<T, E extends IndexEven
       log.debug("{} {} successfully indexed", indexName(), id);
     }
   }
+
+  private class PendingRetry {
+    private final long scheduledOn = System.currentTimeMillis();
+    private volatile Future<?> scheduled;
+    private Optional<E> indexEvent;
+    private int retryCount;
+
+    PendingRetry(Optional<E> indexEvent, int retryCount) {
+      this.indexEvent = indexEvent;
+      this.retryCount = retryCount;
+    }
+
+    /** Keep the newest event and the fewest retries done, as a new failure restarts the count */
+    synchronized PendingRetry merge(PendingRetry other) {
+      if (!indexEvent.isPresent()
+          || (other.indexEvent.isPresent()
+              && other.indexEvent.get().eventCreatedOn >= indexEvent.get().eventCreatedOn)) {
+        indexEvent = other.indexEvent;
+      }
+      retryCount = Math.min(retryCount, other.retryCount);
+      return this;
+    }
+
+    synchronized Optional<E> indexEvent() {
+      return indexEvent;
+    }
+
+    synchronized int retryCount() {
+      return retryCount;
+    }
+  }
 }
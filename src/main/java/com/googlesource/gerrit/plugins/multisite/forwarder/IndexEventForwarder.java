@@ -15,6 +15,7 @@
 package com.googlesource.gerrit.plugins.multisite.forwarder;
 
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.IndexEvent;
+import java.util.concurrent.CompletableFuture;
 
 public interface IndexEventForwarder {
 
@@ -35,4 +36,27 @@ public interface IndexEventForwarder {
    * @return true if successful, otherwise false.
    */
   boolean batchIndex(ForwarderTask task, IndexEvent event);
+
+  /**
+   * Publish an indexing event to the broker using interactive topic without waiting for the
+   * outcome.
+   *
+   * @param task that triggered the forwarding of the index event.
+   * @param event the details of the index event.
+   * @return future completed with true if successful, otherwise false.
+   */
+  default CompletableFuture<Boolean> indexAsync(ForwarderTask task, IndexEvent event) {
+    return CompletableFuture.completedFuture(index(task, event));
+  }
+
+  /**
+   * Publish an indexing event to the broker using batch topic without waiting for the outcome.
+   *
+   * @param task that triggered the forwarding of the index event.
+   * @param event the details of the index event.
+   * @return future completed with true if successful, otherwise false.
+   */
+  default CompletableFuture<Boolean> batchIndexAsync(ForwarderTask task, IndexEvent event) {
+    return CompletableFuture.completedFuture(batchIndex(task, event));
+  }
 }
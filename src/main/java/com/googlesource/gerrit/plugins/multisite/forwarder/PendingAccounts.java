@@ -0,0 +1,119 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Stores the accounts waiting to be indexed, so that they are still indexed after a restart of the
+ * plugin instead of leaving their index stale.
+ *
+ * <p>The accounts are stored as one account id per line in the plugin data directory.
+ */
+@Singleton
+public class PendingAccounts {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String PENDING_ACCOUNTS_FILE = "pending-accounts.txt";
+
+  private final Path pendingAccountsFile;
+
+  @Inject
+  PendingAccounts(SitePaths sitePaths) {
+    this(sitePaths.data_dir.resolve(Configuration.PLUGIN_NAME).resolve(PENDING_ACCOUNTS_FILE));
+  }
+
+  @VisibleForTesting
+  PendingAccounts(Path pendingAccountsFile) {
+    this.pendingAccountsFile = pendingAccountsFile;
+  }
+
+  /**
+   * Store the pending accounts, replacing the ones stored previously.
+   *
+   * @param accounts the accounts to store
+   */
+  public synchronized void save(Collection<Account.Id> accounts) {
+    try {
+      if (accounts.isEmpty()) {
+        Files.deleteIfExists(pendingAccountsFile);
+        return;
+      }
+
+      Files.createDirectories(pendingAccountsFile.getParent());
+      Path tmpFile = pendingAccountsFile.resolveSibling(pendingAccountsFile.getFileName() + ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, UTF_8)) {
+        for (Account.Id account : accounts) {
+          writer.write(Integer.toString(account.get()));
+          writer.newLine();
+        }
+      }
+      Files.move(
+          tmpFile,
+          pendingAccountsFile,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log(
+          "Unable to store the %d pending account(s) in %s: their index could be stale after a"
+              + " restart",
+          accounts.size(), pendingAccountsFile);
+    }
+  }
+
+  /**
+   * Load the stored accounts. They stay stored until replaced by the next {@link #save}.
+   *
+   * @return the accounts pending when they were last stored
+   */
+  public synchronized Set<Account.Id> load() {
+    Set<Account.Id> accounts = new LinkedHashSet<>();
+    if (!Files.exists(pendingAccountsFile)) {
+      return accounts;
+    }
+
+    try {
+      for (String line : Files.readAllLines(pendingAccountsFile, UTF_8)) {
+        Optional<Account.Id> account = Account.Id.tryParse(line.trim());
+        if (account.isPresent()) {
+          accounts.add(account.get());
+        } else if (!line.trim().isEmpty()) {
+          logger.atWarning().log("Skipping invalid pending account %s", line);
+        }
+      }
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log(
+          "Unable to load the pending accounts from %s", pendingAccountsFile);
+    }
+    return accounts;
+  }
+}
@@ -0,0 +1,84 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the tasks waiting for a ref of a project to be updated, e.g. the retry of the
+ * indexing of a change whose meta ref has not been replicated yet.
+ *
+ * <p>A waiting task is woken up as soon as the ref is updated locally or its replication is
+ * notified by another site, instead of waiting for its retry interval.
+ */
+@Singleton
+public class RefUpdateWaiters implements GitReferenceUpdatedListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  // Keyed by "<ref name>:<project name>": the ref name goes first because Git does not allow ':'
+  // in ref names whilst project names may contain it, so that the key is never ambiguous
+  private final Map<String, Runnable> waiters = new ConcurrentHashMap<>();
+
+  /**
+   * Wait for a ref to be updated, replacing the task already waiting for the same ref.
+   *
+   * @param projectName the project of the ref
+   * @param refName the name of the ref
+   * @param wakeUp the task to run when the ref is updated; it must not block
+   */
+  public void await(String projectName, String refName, Runnable wakeUp) {
+    waiters.put(key(projectName, refName), wakeUp);
+  }
+
+  public void cancel(String projectName, String refName) {
+    waiters.remove(key(projectName, refName));
+  }
+
+  /**
+   * Wake up the task waiting for a ref, if any.
+   *
+   * @param projectName the project of the updated ref
+   * @param refName the name of the updated ref
+   */
+  public void refUpdated(String projectName, String refName) {
+    Runnable wakeUp = waiters.remove(key(projectName, refName));
+    if (wakeUp != null) {
+      logger.atFine().log(
+          "%s of project %s updated, waking up its waiting task", refName, projectName);
+      wakeUp.run();
+    }
+  }
+
+  @Override
+  public void onGitReferenceUpdated(Event event) {
+    String refName = event.getRefName();
+    if (refName.startsWith(RefNames.REFS_CHANGES) && refName.endsWith(RefNames.META_SUFFIX)) {
+      refUpdated(event.getProjectName(), refName);
+    }
+  }
+
+  int size() {
+    return waiters.size();
+  }
+
+  private static String key(String projectName, String refName) {
+    return refName + ":" + projectName;
+  }
+}
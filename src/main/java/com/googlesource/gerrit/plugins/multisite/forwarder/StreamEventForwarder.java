@@ -15,6 +15,7 @@
 package com.googlesource.gerrit.plugins.multisite.forwarder;
 
 import com.google.gerrit.server.events.Event;
+import java.util.concurrent.CompletableFuture;
 
 public interface StreamEventForwarder {
   /**
@@ -24,4 +25,14 @@ public interface StreamEventForwarder {
    * @return true if successful, otherwise false.
    */
   boolean send(Event event);
+
+  /**
+   * Forward a stream event to the other master without waiting for the outcome.
+   *
+   * @param event the event to forward.
+   * @return future completed with true if successful, otherwise false.
+   */
+  default CompletableFuture<Boolean> sendAsync(Event event) {
+    return CompletableFuture.completedFuture(send(event));
+  }
 }
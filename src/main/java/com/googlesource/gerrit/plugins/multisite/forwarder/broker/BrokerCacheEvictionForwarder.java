@@ -22,6 +22,7 @@ import com.googlesource.gerrit.plugins.multisite.forwarder.CacheEvictionForwarde
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwarderTask;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.CacheEvictionEvent;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.EventTopic;
+import java.util.concurrent.CompletableFuture;
 
 @Singleton
 public class BrokerCacheEvictionForwarder extends BrokerForwarder
@@ -36,4 +37,9 @@ public class BrokerCacheEvictionForwarder extends BrokerForwarder
   public boolean evict(ForwarderTask task, CacheEvictionEvent event) {
     return send(task, EventTopic.CACHE_TOPIC, event);
   }
+
+  @Override
+  public CompletableFuture<Boolean> evictAsync(ForwarderTask task, CacheEvictionEvent event) {
+    return sendAsync(task, EventTopic.CACHE_TOPIC, event);
+  }
 }
@@ -19,6 +19,7 @@ import com.googlesource.gerrit.plugins.multisite.broker.BrokerApiWrapper;
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwarderTask;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.EventTopic;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.MultiSiteEvent;
+import java.util.concurrent.CompletableFuture;
 
 public abstract class BrokerForwarder {
   private static final CharSequence HIGH_AVAILABILITY_PLUGIN = "/plugins/high-availability/";
@@ -48,4 +49,15 @@ public abstract class BrokerForwarder {
 
     return broker.send(eventTopic.topic(cfg), event);
   }
+
+  protected CompletableFuture<Boolean> sendAsync(
+      ForwarderTask task, EventTopic eventTopic, MultiSiteEvent event) {
+    // Events generated by the high-availability plugin should be
+    // discarded. Sending them around would cause infinite loops.
+    if (currentThreadBelongsToHighAvailabilityPlugin(task)) {
+      return CompletableFuture.completedFuture(true);
+    }
+
+    return broker.sendAsync(eventTopic.topic(cfg), event);
+  }
 }
@@ -21,6 +21,7 @@ import com.googlesource.gerrit.plugins.multisite.forwarder.ForwarderTask;
 import com.googlesource.gerrit.plugins.multisite.forwarder.IndexEventForwarder;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.EventTopic;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.IndexEvent;
+import java.util.concurrent.CompletableFuture;
 
 public class BrokerIndexEventForwarder extends BrokerForwarder implements IndexEventForwarder {
 
@@ -38,4 +39,14 @@ public class BrokerIndexEventForwarder extends BrokerForwarder implements IndexE
   public boolean batchIndex(ForwarderTask task, IndexEvent event) {
     return send(task, EventTopic.BATCH_INDEX_TOPIC, event);
   }
+
+  @Override
+  public CompletableFuture<Boolean> indexAsync(ForwarderTask task, IndexEvent event) {
+    return sendAsync(task, EventTopic.INDEX_TOPIC, event);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> batchIndexAsync(ForwarderTask task, IndexEvent event) {
+    return sendAsync(task, EventTopic.BATCH_INDEX_TOPIC, event);
+  }
 }
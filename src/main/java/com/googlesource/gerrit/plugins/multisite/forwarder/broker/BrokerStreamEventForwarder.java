@@ -21,6 +21,7 @@ import com.googlesource.gerrit.plugins.multisite.Configuration;
 import com.googlesource.gerrit.plugins.multisite.broker.BrokerApiWrapper;
 import com.googlesource.gerrit.plugins.multisite.forwarder.StreamEventForwarder;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.EventTopic;
+import java.util.concurrent.CompletableFuture;
 
 @Singleton
 public class BrokerStreamEventForwarder implements StreamEventForwarder {
@@ -37,4 +38,9 @@ public class BrokerStreamEventForwarder implements StreamEventForwarder {
   public boolean send(Event event) {
     return broker.send(EventTopic.STREAM_EVENT_TOPIC.topic(cfg), event);
   }
+
+  @Override
+  public CompletableFuture<Boolean> sendAsync(Event event) {
+    return broker.sendAsync(EventTopic.STREAM_EVENT_TOPIC.topic(cfg), event);
+  }
 }
@@ -0,0 +1,92 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder.events;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.gerrit.server.events.Event;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import com.google.gson.annotations.JsonAdapter;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Envelope carrying multiple events published to the same topic as a single broker message. */
+public class BatchEvent extends MultiSiteEvent {
+  static final String TYPE = "multi-site-batch";
+
+  @JsonAdapter(EventsAdapter.class)
+  public List<Event> events;
+
+  public BatchEvent(List<Event> events) {
+    super(TYPE);
+    this.events = events;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(events);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    BatchEvent that = (BatchEvent) o;
+    return Objects.equal(events, that.events);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this).add("size", events.size()).toString();
+  }
+
+  /**
+   * Serializes each event with its own class, rather than with the declared {@link Event} type
+   * which has only the deserializer registered by {@code EventGson}, so that the concrete events
+   * and all their fields survive the round trip.
+   */
+  static class EventsAdapter implements JsonSerializer<List<Event>>, JsonDeserializer<List<Event>> {
+    @Override
+    public JsonElement serialize(
+        List<Event> events, Type typeOfSrc, JsonSerializationContext context) {
+      JsonArray array = new JsonArray();
+      for (Event event : events) {
+        array.add(context.serialize(event, event.getClass()));
+      }
+      return array;
+    }
+
+    @Override
+    public List<Event> deserialize(
+        JsonElement json, Type typeOfT, JsonDeserializationContext context)
+        throws JsonParseException {
+      if (!json.isJsonArray()) {
+        throw new JsonParseException("Not an array of events: " + json);
+      }
+      List<Event> events = new ArrayList<>();
+      for (JsonElement event : json.getAsJsonArray()) {
+        events.add(context.deserialize(event, Event.class));
+      }
+      return events;
+    }
+  }
+}
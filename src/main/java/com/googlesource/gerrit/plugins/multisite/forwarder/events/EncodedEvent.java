@@ -0,0 +1,75 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder.events;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.gerrit.common.Nullable;
+
+/**
+ * Envelope carrying an event serialized by a non-JSON codec or compressed, as a Base64 encoded
+ * payload.
+ */
+public class EncodedEvent extends MultiSiteEvent {
+  static final String TYPE = "multi-site-encoded";
+
+  public String codec;
+  public int version;
+  public String payload;
+  public String compression;
+  public String routingKey;
+  // Type of the event carried, only known on the publishing side as it is not serialized
+  public transient String eventType;
+
+  public EncodedEvent(String codec, int version, String payload) {
+    this(codec, version, payload, null);
+  }
+
+  public EncodedEvent(String codec, int version, String payload, @Nullable String compression) {
+    super(TYPE);
+    this.codec = codec;
+    this.version = version;
+    this.payload = payload;
+    this.compression = compression;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(codec, version, payload, compression, routingKey);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    EncodedEvent that = (EncodedEvent) o;
+    return version == that.version
+        && Objects.equal(codec, that.codec)
+        && Objects.equal(payload, that.payload)
+        && Objects.equal(compression, that.compression)
+        && Objects.equal(routingKey, that.routingKey);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("codec", codec)
+        .add("version", version)
+        .add("compression", compression)
+        .add("routingKey", routingKey)
+        .add("size", payload == null ? 0 : payload.length())
+        .toString();
+  }
+}
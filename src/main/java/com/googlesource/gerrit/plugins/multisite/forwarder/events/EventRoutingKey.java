@@ -0,0 +1,86 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder.events;
+
+import com.google.common.base.Strings;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.ProjectEvent;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Stable key identifying the events that must be processed in order.
+ *
+ * <p>Events of the same project share the project name as key, cache evictions are keyed by cache
+ * name and cache key. Change deletions do not carry the project name and are keyed by change
+ * number instead. Events without a key can be processed in any order.
+ */
+public class EventRoutingKey {
+
+  private EventRoutingKey() {}
+
+  public static Optional<String> of(Event event) {
+    if (event instanceof ChangeIndexEvent) {
+      ChangeIndexEvent changeIndex = (ChangeIndexEvent) event;
+      return changeIndex.deleted
+          ? Optional.of("change/" + changeIndex.changeId)
+          : projectKey(changeIndex.projectName);
+    }
+    if (event instanceof ProjectIndexEvent) {
+      return projectKey(((ProjectIndexEvent) event).projectName);
+    }
+    if (event instanceof ProjectListUpdateEvent) {
+      return projectKey(((ProjectListUpdateEvent) event).projectName);
+    }
+    if (event instanceof ProjectEvent) {
+      return Optional.ofNullable(((ProjectEvent) event).getProjectNameKey())
+          .map(Project.NameKey::get);
+    }
+    if (event instanceof CacheEvictionEvent) {
+      CacheEvictionEvent cacheEviction = (CacheEvictionEvent) event;
+      return Optional.of(cacheEviction.cacheName + "/" + cacheEviction.key);
+    }
+    if (event instanceof AccountIndexEvent) {
+      return Optional.of("account/" + ((AccountIndexEvent) event).accountId);
+    }
+    if (event instanceof GroupIndexEvent) {
+      return Optional.of("group/" + ((GroupIndexEvent) event).groupUUID);
+    }
+    if (event instanceof BatchEvent) {
+      return commonKey(((BatchEvent) event).events);
+    }
+    if (event instanceof EncodedEvent) {
+      return Optional.ofNullable(((EncodedEvent) event).routingKey);
+    }
+    return Optional.empty();
+  }
+
+  private static Optional<String> projectKey(String projectName) {
+    return Optional.ofNullable(Strings.emptyToNull(projectName));
+  }
+
+  private static Optional<String> commonKey(List<Event> events) {
+    Optional<String> key = Optional.empty();
+    for (Event event : events) {
+      Optional<String> eventKey = of(event);
+      if (!eventKey.isPresent() || (key.isPresent() && !key.equals(eventKey))) {
+        return Optional.empty();
+      }
+      key = eventKey;
+    }
+    return key;
+  }
+}
@@ -39,6 +39,14 @@ public enum EventTopic {
     return aliasKey + "Topic";
   }
 
+  public int consumerThreads(Configuration config) {
+    return config.broker().getConsumerThreads(consumerThreadsKey());
+  }
+
+  public String consumerThreadsKey() {
+    return aliasKey + "ConsumerThreads";
+  }
+
   public static EventTopic of(String topicString) {
     EventTopic[] topics = EventTopic.values();
     for (EventTopic topic : topics) {
@@ -16,9 +16,12 @@ package com.googlesource.gerrit.plugins.multisite.forwarder.events;
 
 import static com.google.gerrit.server.events.EventTypes.register;
 
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.server.events.Event;
 
 public abstract class MultiSiteEvent extends Event {
+  /** Time in milliseconds the event was published to the broker, if known. */
+  @Nullable public Long publishedOn;
 
   public static void registerEventTypes() {
     register(ChangeIndexEvent.TYPE, ChangeIndexEvent.class);
@@ -27,6 +30,8 @@ public abstract class MultiSiteEvent extends Event {
     register(ProjectIndexEvent.TYPE, ProjectIndexEvent.class);
     register(CacheEvictionEvent.TYPE, CacheEvictionEvent.class);
     register(ProjectListUpdateEvent.TYPE, ProjectListUpdateEvent.class);
+    register(BatchEvent.TYPE, BatchEvent.class);
+    register(EncodedEvent.TYPE, EncodedEvent.class);
   }
 
   protected MultiSiteEvent(String type) {
@@ -17,8 +17,38 @@ package com.googlesource.gerrit.plugins.multisite.forwarder.router;
 import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.googlesource.gerrit.plugins.multisite.forwarder.CacheNotFoundException;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface ForwardedEventRouter<EventType> {
   void route(EventType sourceEvent)
       throws IOException, PermissionBackendException, CacheNotFoundException;
+
+  /**
+   * Route an event whose processing may complete after this method returns, e.g. because it is
+   * coalesced with the events received later on. The default implementation routes the event
+   * synchronously.
+   *
+   * @param sourceEvent the event to route
+   * @return future completed once the event has been processed, or exceptionally if its processing
+   *     failed
+   */
+  default CompletableFuture<?> routeAsync(EventType sourceEvent)
+      throws IOException, PermissionBackendException, CacheNotFoundException {
+    route(sourceEvent);
+    return CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * Route a list of events received together. Routers able to process multiple events at once
+   * override this method, whilst the default implementation routes the events one by one.
+   *
+   * @param sourceEvents the events to route, in the order they were received.
+   */
+  default void routeAll(List<EventType> sourceEvents)
+      throws IOException, PermissionBackendException, CacheNotFoundException {
+    for (EventType sourceEvent : sourceEvents) {
+      route(sourceEvent);
+    }
+  }
 }
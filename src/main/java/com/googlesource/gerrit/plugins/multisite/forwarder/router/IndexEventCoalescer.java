@@ -0,0 +1,173 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder.router;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.IndexEvent;
+import com.googlesource.gerrit.plugins.multisite.index.ForwardedIndexExecutor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds the index events received from the other sites for a time window and reindexes only once
+ * per id, using the newest event received within the window.
+ *
+ * <p>When catching up after a broker or site outage the same change, group or project is received
+ * many times in a row: reindexing it once per window avoids most of the index writes.
+ *
+ * <p>Each coalesced event is completed once the newest event of its id has been routed, so that
+ * the event is not considered applied before the index is actually updated.
+ */
+@Singleton
+public class IndexEventCoalescer {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  public interface Router {
+    void route(IndexEvent event) throws IOException;
+  }
+
+  private final ScheduledExecutorService executor;
+  private final long windowMs;
+  private final IndexEventCoalescerMetrics metrics;
+  private final Map<String, PendingEvent> pendingEvents = new ConcurrentHashMap<>();
+
+  @Inject
+  IndexEventCoalescer(
+      @ForwardedIndexExecutor ScheduledExecutorService executor,
+      Configuration cfg,
+      IndexEventCoalescerMetrics metrics) {
+    this(executor, cfg.index().receiverCoalesceWindowMs(), metrics);
+  }
+
+  @VisibleForTesting
+  public IndexEventCoalescer(
+      ScheduledExecutorService executor, long windowMs, IndexEventCoalescerMetrics metrics) {
+    this.executor = executor;
+    this.windowMs = windowMs;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Coalesce an index event with the other events of the same id.
+   *
+   * @param indexType type of index, e.g. change, group or project
+   * @param id id of the indexed entity
+   * @param event the index event
+   * @param router routes the newest event of the id once the window expires, or immediately when
+   *     coalescing is disabled
+   * @return future completed once the newest event of the id has been routed, or exceptionally if
+   *     routing failed
+   * @throws IOException if the event is routed immediately and routing fails
+   */
+  public CompletableFuture<Void> coalesce(
+      String indexType, String id, IndexEvent event, Router router) throws IOException {
+    if (windowMs <= 0) {
+      router.route(event);
+      return CompletableFuture.completedFuture(null);
+    }
+
+    metrics.incrementReceived(indexType);
+    String key = indexType + "/" + id;
+    CompletableFuture<Void> routed = new CompletableFuture<>();
+    AtomicBoolean windowOpened = new AtomicBoolean();
+    pendingEvents.compute(
+        key,
+        (k, current) -> {
+          if (current == null) {
+            windowOpened.set(true);
+            return new PendingEvent(event, router, ImmutableList.of(routed));
+          }
+          metrics.incrementCoalesced(indexType);
+          return current.merge(event, router, routed);
+        });
+
+    if (windowOpened.get()) {
+      @SuppressWarnings("unused")
+      Future<?> possiblyIgnoredError =
+          executor.schedule(() -> flush(key), windowMs, TimeUnit.MILLISECONDS);
+    }
+    return routed;
+  }
+
+  /**
+   * Discard the pending event of an id, e.g. because the entity has been deleted. The discarded
+   * events are completed straight away.
+   *
+   * @param indexType type of index, e.g. change, group or project
+   * @param id id of the indexed entity
+   */
+  public void discard(String indexType, String id) {
+    PendingEvent pending = pendingEvents.remove(indexType + "/" + id);
+    if (pending != null) {
+      metrics.incrementCoalesced(indexType);
+      pending.routed.forEach(routed -> routed.complete(null));
+    }
+  }
+
+  /** Route immediately all the pending events. */
+  public void flushAll() {
+    new ArrayList<>(pendingEvents.keySet()).forEach(this::flush);
+  }
+
+  @VisibleForTesting
+  int pendingEvents() {
+    return pendingEvents.size();
+  }
+
+  private void flush(String key) {
+    PendingEvent pending = pendingEvents.remove(key);
+    if (pending != null) {
+      try {
+        pending.router.route(pending.event);
+        pending.routed.forEach(routed -> routed.complete(null));
+      } catch (IOException | RuntimeException e) {
+        logger.atSevere().withCause(e).log("Unable to route %s event %s", key, pending.event);
+        pending.routed.forEach(routed -> routed.completeExceptionally(e));
+      }
+    }
+  }
+
+  private static class PendingEvent {
+    final IndexEvent event;
+    final Router router;
+    final ImmutableList<CompletableFuture<Void>> routed;
+
+    PendingEvent(IndexEvent event, Router router, ImmutableList<CompletableFuture<Void>> routed) {
+      this.event = event;
+      this.router = router;
+      this.routed = routed;
+    }
+
+    PendingEvent merge(IndexEvent newEvent, Router newRouter, CompletableFuture<Void> newRouted) {
+      ImmutableList<CompletableFuture<Void>> allRouted =
+          ImmutableList.<CompletableFuture<Void>>builder().addAll(routed).add(newRouted).build();
+      return event.eventCreatedOn > newEvent.eventCreatedOn
+          ? new PendingEvent(event, router, allRouted)
+          : new PendingEvent(newEvent, newRouter, allRouted);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder.router;
+
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.MultiSiteMetrics;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Singleton
+public class IndexEventCoalescerMetrics extends MultiSiteMetrics {
+  private static final String INDEX_TYPE = "index_type";
+
+  private final Counter1<String> receivedEvents;
+  private final Counter1<String> coalescedEvents;
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  @Inject
+  public IndexEventCoalescerMetrics(MetricMaker metricMaker) {
+    this.receivedEvents =
+        metricMaker.newCounter(
+            "multi_site/forwarded_index/coalescer_received_events",
+            rateDescription("events", "Number of index events received by the coalescer"),
+            stringField(INDEX_TYPE, "Type of index"));
+    this.coalescedEvents =
+        metricMaker.newCounter(
+            "multi_site/forwarded_index/coalescer_coalesced_events",
+            rateDescription(
+                "events", "Number of index events superseded by a newer event of the same id"),
+            stringField(INDEX_TYPE, "Type of index"));
+    metricMaker.newCallbackMetric(
+        "multi_site/forwarded_index/coalescer_hit_rate",
+        Double.class,
+        new Description("Percentage of the received index events that did not trigger a reindex")
+            .setGauge()
+            .setUnit("percent"),
+        this::hitRate);
+  }
+
+  public void incrementReceived(String indexType) {
+    received.incrementAndGet();
+    receivedEvents.increment(indexType);
+  }
+
+  public void incrementCoalesced(String indexType) {
+    coalesced.incrementAndGet();
+    coalescedEvents.increment(indexType);
+  }
+
+  double hitRate() {
+    long total = received.get();
+    return total == 0 ? 0.0 : coalesced.get() * 100.0 / total;
+  }
+}
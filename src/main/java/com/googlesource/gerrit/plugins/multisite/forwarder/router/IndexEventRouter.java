@@ -19,9 +19,11 @@ import static com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedIndex
 
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.server.config.AllUsersName;
 import com.google.inject.Inject;
+import com.googlesource.gerrit.plugins.multisite.ExecutorProvider;
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedIndexAccountHandler;
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedIndexChangeHandler;
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedIndexGroupHandler;
@@ -32,19 +34,33 @@ import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEve
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.GroupIndexEvent;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.IndexEvent;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.index.ForwardedIndexExecutor;
 import com.googlesource.gerrit.plugins.replication.events.RefReplicationDoneEvent;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class IndexEventRouter implements ForwardedEventRouter<IndexEvent>, LifecycleListener {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final String CHANGE_INDEX = "change";
+  private static final String GROUP_INDEX = "group";
+  private static final String PROJECT_INDEX = "project";
 
   private final ForwardedIndexAccountHandler indexAccountHandler;
   private final ForwardedIndexChangeHandler indexChangeHandler;
   private final ForwardedIndexGroupHandler indexGroupHandler;
   private final ForwardedIndexProjectHandler indexProjectHandler;
   private final AllUsersName allUsersName;
+  private final IndexEventCoalescer coalescer;
+  private final ScheduledExecutorService indexExecutor;
+  private final PendingIndexEvents pendingEvents;
 
   @Inject
   public IndexEventRouter(
@@ -52,16 +68,57 @@ public class IndexEventRouter implements ForwardedEventRouter<IndexEvent>, Lifec
       ForwardedIndexChangeHandler indexChangeHandler,
       ForwardedIndexGroupHandler indexGroupHandler,
       ForwardedIndexProjectHandler indexProjectHandler,
-      AllUsersName allUsersName) {
+      AllUsersName allUsersName,
+      IndexEventCoalescer coalescer,
+      @ForwardedIndexExecutor ScheduledExecutorService indexExecutor,
+      PendingIndexEvents pendingEvents) {
     this.indexAccountHandler = indexAccountHandler;
     this.indexChangeHandler = indexChangeHandler;
     this.indexGroupHandler = indexGroupHandler;
     this.indexProjectHandler = indexProjectHandler;
     this.allUsersName = allUsersName;
+    this.coalescer = coalescer;
+    this.indexExecutor = indexExecutor;
+    this.pendingEvents = pendingEvents;
   }
 
   @Override
   public void route(IndexEvent sourceEvent) throws IOException {
+    @SuppressWarnings("unused")
+    Future<?> possiblyIgnoredError = routeAsync(sourceEvent);
+  }
+
+  /**
+   * Route an index event, coalescing the indexing of changes, groups and projects with the events
+   * of the same entity received within the coalescing window.
+   *
+   * @return future completed once the entity has been indexed
+   */
+  @Override
+  public CompletableFuture<Void> routeAsync(IndexEvent sourceEvent) throws IOException {
+    if (sourceEvent instanceof ChangeIndexEvent) {
+      ChangeIndexEvent changeIndexEvent = (ChangeIndexEvent) sourceEvent;
+      // Change deletions do not carry the project name, hence changes are coalesced by number
+      String changeNumber = Integer.toString(changeIndexEvent.changeId);
+      if (changeIndexEvent.deleted) {
+        coalescer.discard(CHANGE_INDEX, changeNumber);
+      } else {
+        return coalescer.coalesce(CHANGE_INDEX, changeNumber, changeIndexEvent, this::routeNow);
+      }
+    } else if (sourceEvent instanceof GroupIndexEvent) {
+      GroupIndexEvent groupIndexEvent = (GroupIndexEvent) sourceEvent;
+      return coalescer.coalesce(
+          GROUP_INDEX, groupIndexEvent.groupUUID, groupIndexEvent, this::routeNow);
+    } else if (sourceEvent instanceof ProjectIndexEvent) {
+      ProjectIndexEvent projectIndexEvent = (ProjectIndexEvent) sourceEvent;
+      return coalescer.coalesce(
+          PROJECT_INDEX, projectIndexEvent.projectName, projectIndexEvent, this::routeNow);
+    }
+    routeNow(sourceEvent);
+    return CompletableFuture.completedFuture(null);
+  }
+
+  private void routeNow(IndexEvent sourceEvent) throws IOException {
     if (sourceEvent instanceof ChangeIndexEvent) {
       ChangeIndexEvent changeIndexEvent = (ChangeIndexEvent) sourceEvent;
       ForwardedIndexingHandler.Operation operation = changeIndexEvent.deleted ? DELETE : INDEX;
@@ -85,6 +142,47 @@ public class IndexEventRouter implements ForwardedEventRouter<IndexEvent>, Lifec
     }
   }
 
+  /**
+   * Route a list of index events, indexing the changes of the same project together so that the
+   * repository of the project is opened only once.
+   *
+   * <p>The changes deleted in the same list are not indexed before their deletion, whilst the
+   * changes indexed after their deletion are indexed once the deletion has been routed. The events
+   * are not coalesced, so that the whole list is processed when this method returns.
+   */
+  @Override
+  public void routeAll(List<IndexEvent> sourceEvents) throws IOException {
+    Map<Project.NameKey, List<ChangeIndexEvent>> changesByProject = new LinkedHashMap<>();
+    for (IndexEvent sourceEvent : sourceEvents) {
+      if (sourceEvent instanceof ChangeIndexEvent) {
+        ChangeIndexEvent changeIndexEvent = (ChangeIndexEvent) sourceEvent;
+        if (changeIndexEvent.deleted) {
+          // Change deletions do not carry the project name, hence look for the change in all
+          // the projects. Indexing a change deleted later on in the same list is pointless.
+          for (List<ChangeIndexEvent> projectChanges : changesByProject.values()) {
+            projectChanges.removeIf(e -> e.changeId == changeIndexEvent.changeId);
+          }
+          coalescer.discard(CHANGE_INDEX, Integer.toString(changeIndexEvent.changeId));
+          routeNow(changeIndexEvent);
+        } else {
+          changesByProject
+              .computeIfAbsent(
+                  Project.nameKey(changeIndexEvent.projectName), p -> new ArrayList<>())
+              .add(changeIndexEvent);
+        }
+      } else {
+        routeNow(sourceEvent);
+      }
+    }
+
+    for (Map.Entry<Project.NameKey, List<ChangeIndexEvent>> projectChanges :
+        changesByProject.entrySet()) {
+      if (!projectChanges.getValue().isEmpty()) {
+        indexChangeHandler.indexAll(projectChanges.getKey(), projectChanges.getValue());
+      }
+    }
+  }
+
   public void onRefReplicated(RefReplicationDoneEvent replicationEvent) throws IOException {
     if (replicationEvent.getProjectNameKey().equals(allUsersName)) {
       Account.Id accountId = Account.Id.fromRef(replicationEvent.getRefName());
@@ -99,18 +197,68 @@ public class IndexEventRouter implements ForwardedEventRouter<IndexEvent>, Lifec
   @Override
   public void start() {}
 
+  /**
+   * Process the index events stored when the plugin was last stopped, before any new event is
+   * received from the broker, and index the accounts still pending since then.
+   */
+  public void replayPendingEvents() {
+    if (!indexAccountHandler.pendingAccountsToIndex().isEmpty()) {
+      indexAccountHandler.doAsyncIndex();
+    }
+
+    List<IndexEvent> events = pendingEvents.load();
+    if (events.isEmpty()) {
+      return;
+    }
+
+    logger.atInfo().log("Processing %d index event(s) pending since the last stop", events.size());
+    for (IndexEvent event : events) {
+      try {
+        route(event);
+      } catch (IOException | RuntimeException e) {
+        logger.atSevere().withCause(e).log("Unable to process pending index event %s", event);
+      }
+    }
+  }
+
+  /**
+   * Complete the forwarded indexing work upon shutdown. The coalesced events are indexed and the
+   * forwarded indexing queue, including the scheduled retries, is drained up to the timeout. The
+   * pending accounts are then indexed and any event still pending is stored for being processed
+   * at the next start, whilst the accounts failing to be indexed stay stored in {@link
+   * com.googlesource.gerrit.plugins.multisite.forwarder.PendingAccounts}.
+   *
+   * @param timeoutMs maximum time in milliseconds to wait for the forwarded indexing queue
+   */
+  public void drain(long timeoutMs) {
+    coalescer.flushAll();
+    ExecutorProvider.drain(indexExecutor, "Forwarded-Index-Event", timeoutMs);
+    indexPendingAccounts();
+
+    List<IndexEvent> pending = new ArrayList<>();
+    pending.addAll(indexChangeHandler.pendingRetries());
+    pending.addAll(indexGroupHandler.pendingRetries());
+    pending.addAll(indexProjectHandler.pendingRetries());
+    pendingEvents.save(pending);
+  }
+
   @Override
   public void stop() {
+    coalescer.flushAll();
+    indexPendingAccounts();
+  }
+
+  private void indexPendingAccounts() {
     Set<Account.Id> accountsToIndex = indexAccountHandler.pendingAccountsToIndex();
     if (!accountsToIndex.isEmpty()) {
       logger.atWarning().log("Forcing reindex of accounts %s upon shutdown", accountsToIndex);
-      indexAccountHandler.doAsyncIndex();
+      indexAccountHandler.flush();
     }
 
     Set<Account.Id> accountsIndexFailed = indexAccountHandler.pendingAccountsToIndex();
     if (!accountsIndexFailed.isEmpty()) {
-      logger.atSevere().log(
-          "The accounts %s failed to be indexed and their Lucene index is stale",
+      logger.atWarning().log(
+          "The accounts %s failed to be indexed and will be indexed at the next start",
           accountsIndexFailed);
     }
   }
@@ -0,0 +1,131 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder.router;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventGson;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.IndexEvent;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stores the forwarded index events that could not be processed before the plugin was stopped, so
+ * that they can be processed at the next start instead of being recovered by a full reindex.
+ *
+ * <p>The events are stored as one JSON document per line in the plugin data directory.
+ */
+@Singleton
+public class PendingIndexEvents {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String PENDING_INDEX_EVENTS_FILE = "pending-index-events.json";
+
+  private final Path pendingEventsFile;
+  private final Gson gson;
+
+  @Inject
+  PendingIndexEvents(SitePaths sitePaths, @EventGson Gson gson) {
+    this(
+        sitePaths.data_dir.resolve(Configuration.PLUGIN_NAME).resolve(PENDING_INDEX_EVENTS_FILE),
+        gson);
+  }
+
+  @VisibleForTesting
+  PendingIndexEvents(Path pendingEventsFile, Gson gson) {
+    this.pendingEventsFile = pendingEventsFile;
+    this.gson = gson;
+  }
+
+  /**
+   * Store the pending events, replacing the ones stored previously.
+   *
+   * @param events the events to store
+   */
+  public synchronized void save(List<? extends IndexEvent> events) {
+    try {
+      if (events.isEmpty()) {
+        Files.deleteIfExists(pendingEventsFile);
+        return;
+      }
+
+      Files.createDirectories(pendingEventsFile.getParent());
+      Path tmpFile = pendingEventsFile.resolveSibling(pendingEventsFile.getFileName() + ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, UTF_8)) {
+        for (IndexEvent event : events) {
+          writer.write(gson.toJson(event, Event.class));
+          writer.newLine();
+        }
+      }
+      Files.move(
+          tmpFile,
+          pendingEventsFile,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      logger.atWarning().log(
+          "%d pending index event(s) stored in %s for processing at the next start",
+          events.size(), pendingEventsFile);
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log(
+          "Unable to store %d pending index event(s) in %s: their index could be stale",
+          events.size(), pendingEventsFile);
+    }
+  }
+
+  /**
+   * Load and remove the stored events.
+   *
+   * @return the events stored when the plugin was last stopped
+   */
+  public synchronized List<IndexEvent> load() {
+    if (!Files.exists(pendingEventsFile)) {
+      return Collections.emptyList();
+    }
+
+    List<IndexEvent> events = new ArrayList<>();
+    try {
+      for (String line : Files.readAllLines(pendingEventsFile, UTF_8)) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        try {
+          events.add((IndexEvent) gson.fromJson(line, Event.class));
+        } catch (JsonParseException | ClassCastException e) {
+          logger.atWarning().withCause(e).log("Skipping invalid pending index event %s", line);
+        }
+      }
+      Files.delete(pendingEventsFile);
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log(
+          "Unable to load the pending index events from %s", pendingEventsFile);
+    }
+    return events;
+  }
+}
@@ -18,18 +18,23 @@ import com.google.gerrit.server.events.Event;
 import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.google.inject.Inject;
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedEventHandler;
+import com.googlesource.gerrit.plugins.multisite.forwarder.RefUpdateWaiters;
 import com.googlesource.gerrit.plugins.replication.events.RefReplicationDoneEvent;
 import java.io.IOException;
 
 public class StreamEventRouter implements ForwardedEventRouter<Event> {
   private final ForwardedEventHandler streamEventHandler;
   private final IndexEventRouter indexEventRouter;
+  private final RefUpdateWaiters refWaiters;
 
   @Inject
   public StreamEventRouter(
-      ForwardedEventHandler streamEventHandler, IndexEventRouter indexEventRouter) {
+      ForwardedEventHandler streamEventHandler,
+      IndexEventRouter indexEventRouter,
+      RefUpdateWaiters refWaiters) {
     this.streamEventHandler = streamEventHandler;
     this.indexEventRouter = indexEventRouter;
+    this.refWaiters = refWaiters;
   }
 
   @Override
@@ -41,7 +46,10 @@ public class StreamEventRouter implements ForwardedEventRouter<Event> {
        *
        * It is better to risk to reindex once more rather than missing a reindexing event.
        */
-      indexEventRouter.onRefReplicated((RefReplicationDoneEvent) sourceEvent);
+      RefReplicationDoneEvent replicationEvent = (RefReplicationDoneEvent) sourceEvent;
+      refWaiters.refUpdated(
+          replicationEvent.getProjectNameKey().get(), replicationEvent.getRefName());
+      indexEventRouter.onRefReplicated(replicationEvent);
     }
 
     streamEventHandler.dispatch(sourceEvent);
@@ -0,0 +1,173 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.index;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.AllUsersName;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Optional;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Bounded cache of the timestamps and target branches computed by the {@link ChangeCheckerImpl}.
+ *
+ * <p>The entries are keyed by the SHA-1 of the change meta ref and of the draft comments refs of
+ * the change, so that an unchanged change is checked by looking up its refs, without loading its
+ * notes and draft comments again.
+ */
+@Singleton
+public class ChangeCheckerCache {
+  private final GitRepositoryManager repoManager;
+  private final AllUsersName allUsers;
+  @Nullable private final Cache<Key, Computed> cache;
+
+  @Inject
+  ChangeCheckerCache(
+      Configuration config,
+      GitRepositoryManager repoManager,
+      AllUsersName allUsers,
+      MetricMaker metricMaker) {
+    this.repoManager = repoManager;
+    this.allUsers = allUsers;
+    int cacheSize = config.index().changeCheckerCacheSize();
+    this.cache =
+        cacheSize > 0
+            ? CacheBuilder.newBuilder().maximumSize(cacheSize).recordStats().build()
+            : null;
+
+    metricMaker.newCallbackMetric(
+        "multi_site/change_checker/cache_hits",
+        Long.class,
+        new Description("Number of change checks served by the cache")
+            .setCumulative()
+            .setUnit("checks"),
+        () -> cache == null ? 0L : cache.stats().hitCount());
+    metricMaker.newCallbackMetric(
+        "multi_site/change_checker/cache_misses",
+        Long.class,
+        new Description("Number of change checks that loaded the change notes")
+            .setCumulative()
+            .setUnit("checks"),
+        () -> cache == null ? 0L : cache.stats().missCount());
+  }
+
+  boolean isEnabled() {
+    return cache != null;
+  }
+
+  /**
+   * Read the current state of a change.
+   *
+   * @param changeId id of the change in the project~number format
+   * @param repo repository of the project of the change, kept open by the caller
+   * @param id number of the change
+   * @return the key of the current state of the change, or empty if the change does not exist
+   * @throws IOException if the refs of the change cannot be read
+   */
+  Optional<Key> currentKey(String changeId, Repository repo, Change.Id id) throws IOException {
+    Ref metaRef = repo.exactRef(RefNames.changeMetaRef(id));
+    if (metaRef == null) {
+      return Optional.empty();
+    }
+
+    ImmutableMap.Builder<String, ObjectId> drafts = ImmutableMap.builder();
+    try (Repository allUsersRepo = repoManager.openRepository(allUsers)) {
+      for (Ref draftRef :
+          allUsersRepo.getRefDatabase().getRefsByPrefix(RefNames.refsDraftCommentsPrefix(id))) {
+        drafts.put(draftRef.getName(), draftRef.getObjectId());
+      }
+    }
+    return Optional.of(new Key(changeId, metaRef.getObjectId(), drafts.build()));
+  }
+
+  Optional<Computed> get(Key key) {
+    return cache == null ? Optional.empty() : Optional.ofNullable(cache.getIfPresent(key));
+  }
+
+  void put(Key key, Computed computed) {
+    if (cache != null) {
+      cache.put(key, computed);
+    }
+  }
+
+  static final class Key {
+    private final String changeId;
+    private final ObjectId metaId;
+    private final ImmutableMap<String, ObjectId> drafts;
+
+    Key(String changeId, ObjectId metaId, ImmutableMap<String, ObjectId> drafts) {
+      this.changeId = changeId;
+      this.metaId = metaId.copy();
+      this.drafts = drafts;
+    }
+
+    ObjectId metaId() {
+      return metaId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return changeId.equals(other.changeId)
+          && metaId.equals(other.metaId)
+          && drafts.equals(other.drafts);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(changeId, metaId, drafts);
+    }
+
+    @Override
+    public String toString() {
+      return changeId + "@" + metaId.name();
+    }
+  }
+
+  static final class Computed {
+    private final long changeTs;
+    private final String targetBranch;
+
+    Computed(long changeTs, String targetBranch) {
+      this.changeTs = changeTs;
+      this.targetBranch = targetBranch;
+    }
+
+    long changeTs() {
+      return changeTs;
+    }
+
+    String targetBranch() {
+      return targetBranch;
+    }
+  }
+}
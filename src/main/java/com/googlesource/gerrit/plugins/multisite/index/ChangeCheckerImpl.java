@@ -14,8 +14,10 @@
 
 package com.googlesource.gerrit.plugins.multisite.index;
 
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Change;
 import com.google.gerrit.entities.HumanComment;
+import com.google.gerrit.entities.Project;
 import com.google.gerrit.exceptions.StorageException;
 import com.google.gerrit.server.CommentsUtil;
 import com.google.gerrit.server.change.ChangeFinder;
@@ -23,8 +25,8 @@ import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.notedb.ChangeNotes;
 import com.google.gerrit.server.util.ManualRequestContext;
 import com.google.gerrit.server.util.OneOffRequestContext;
-import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.google.inject.assistedinject.AssistedInject;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
 import java.io.IOException;
 import java.sql.Timestamp;
@@ -42,25 +44,57 @@ public class ChangeCheckerImpl implements ChangeChecker {
   private final OneOffRequestContext oneOffReqCtx;
   private final String changeId;
   private final ChangeFinder changeFinder;
+  private final ChangeCheckerCache cache;
   private Optional<Long> computedChangeTs = Optional.empty();
   private Optional<ChangeNotes> changeNotes = Optional.empty();
+  @Nullable private String targetBranch;
+  @Nullable private final Repository repo;
 
   public interface Factory {
     public ChangeChecker create(String changeId);
+
+    /**
+     * Create a checker of change notes already loaded from a repository that is kept open by the
+     * caller, so that neither the notes nor the repository are loaded again.
+     */
+    public ChangeChecker create(String changeId, ChangeNotes changeNotes, Repository repo);
   }
 
-  @Inject
+  @AssistedInject
   public ChangeCheckerImpl(
       GitRepositoryManager gitRepoMgr,
       CommentsUtil commentsUtil,
       ChangeFinder changeFinder,
       OneOffRequestContext oneOffReqCtx,
+      ChangeCheckerCache cache,
       @Assisted String changeId) {
     this.changeFinder = changeFinder;
     this.gitRepoMgr = gitRepoMgr;
     this.commentsUtil = commentsUtil;
     this.oneOffReqCtx = oneOffReqCtx;
+    this.cache = cache;
     this.changeId = changeId;
+    this.repo = null;
+  }
+
+  @AssistedInject
+  public ChangeCheckerImpl(
+      GitRepositoryManager gitRepoMgr,
+      CommentsUtil commentsUtil,
+      ChangeFinder changeFinder,
+      OneOffRequestContext oneOffReqCtx,
+      ChangeCheckerCache cache,
+      @Assisted String changeId,
+      @Assisted ChangeNotes changeNotes,
+      @Assisted Repository repo) {
+    this.changeFinder = changeFinder;
+    this.gitRepoMgr = gitRepoMgr;
+    this.commentsUtil = commentsUtil;
+    this.oneOffReqCtx = oneOffReqCtx;
+    this.cache = cache;
+    this.changeId = changeId;
+    this.changeNotes = Optional.of(changeNotes);
+    this.repo = repo;
   }
 
   @Override
@@ -78,6 +112,10 @@ public class ChangeCheckerImpl implements ChangeChecker {
 
   @Override
   public Optional<ChangeNotes> getChangeNotes() {
+    if (repo != null) {
+      return changeNotes;
+    }
+
     try (ManualRequestContext ctx = oneOffReqCtx.open()) {
       this.changeNotes = changeFinder.findOne(changeId);
       return changeNotes;
@@ -108,7 +146,15 @@ public class ChangeCheckerImpl implements ChangeChecker {
   @Override
   public Optional<Long> getComputedChangeTs() {
     if (!computedChangeTs.isPresent()) {
-      computedChangeTs = computeLastChangeTs();
+      Optional<ChangeCheckerCache.Key> key = currentCacheKey();
+      Optional<ChangeCheckerCache.Computed> cached = key.flatMap(cache::get);
+      if (cached.isPresent()) {
+        computedChangeTs = Optional.of(cached.get().changeTs());
+        targetBranch = cached.get().targetBranch();
+      } else {
+        computedChangeTs = computeLastChangeTs();
+        key.ifPresent(this::cacheComputedChangeTs);
+      }
     }
     return computedChangeTs;
   }
@@ -125,14 +171,13 @@ public class ChangeCheckerImpl implements ChangeChecker {
 
   private String getBranchTargetSha() {
     try {
-      try (Repository repo = gitRepoMgr.openRepository(changeNotes.get().getProjectName())) {
-        String refName = changeNotes.get().getChange().getDest().branch();
-        Ref ref = repo.exactRef(refName);
-        if (ref == null) {
-          log.warn("Unable to find target ref {} for change {}", refName, changeId);
-          return null;
-        }
-        return ref.getTarget().getObjectId().getName();
+      if (repo != null) {
+        return getBranchTargetSha(repo);
+      }
+      Project.NameKey projectName =
+          changeNotes.isPresent() ? changeNotes.get().getProjectName() : parseProjectName();
+      try (Repository repo = gitRepoMgr.openRepository(projectName)) {
+        return getBranchTargetSha(repo);
       }
     } catch (IOException e) {
       log.warn("Unable to resolve target branch SHA for change {}", changeId, e);
@@ -140,6 +185,58 @@ public class ChangeCheckerImpl implements ChangeChecker {
     }
   }
 
+  private String getBranchTargetSha(Repository repo) throws IOException {
+    String refName =
+        targetBranch != null ? targetBranch : changeNotes.get().getChange().getDest().branch();
+    Ref ref = repo.exactRef(refName);
+    if (ref == null) {
+      log.warn("Unable to find target ref {} for change {}", refName, changeId);
+      return null;
+    }
+    return ref.getTarget().getObjectId().getName();
+  }
+
+  private Optional<ChangeCheckerCache.Key> currentCacheKey() {
+    if (!cache.isEnabled()) {
+      return Optional.empty();
+    }
+
+    int separator = changeId.lastIndexOf('~');
+    Optional<Change.Id> id =
+        separator < 0 ? Optional.empty() : Change.Id.tryParse(changeId.substring(separator + 1));
+    if (!id.isPresent()) {
+      return Optional.empty();
+    }
+
+    try {
+      if (repo != null) {
+        return cache.currentKey(changeId, repo, id.get());
+      }
+      try (Repository repo = gitRepoMgr.openRepository(parseProjectName())) {
+        return cache.currentKey(changeId, repo, id.get());
+      }
+    } catch (IOException e) {
+      log.warn("Unable to read the refs of change {}", changeId, e);
+      return Optional.empty();
+    }
+  }
+
+  private void cacheComputedChangeTs(ChangeCheckerCache.Key key) {
+    // The notes may have been updated after the refs were read: the key would then be stale
+    if (computedChangeTs.isPresent()
+        && changeNotes.isPresent()
+        && key.metaId().equals(changeNotes.get().getMetaId())) {
+      cache.put(
+          key,
+          new ChangeCheckerCache.Computed(
+              computedChangeTs.get(), changeNotes.get().getChange().getDest().branch()));
+    }
+  }
+
+  private Project.NameKey parseProjectName() {
+    return Project.nameKey(changeId.substring(0, changeId.lastIndexOf('~')));
+  }
+
   private Optional<Long> computeLastChangeTs() {
     return getChangeNotes().map(notes -> getTsFromChangeAndDraftComments(notes));
   }
@@ -0,0 +1,122 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.index;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Holds the change index events for a time window and forwards only the newest one per change.
+ *
+ * <p>During review storms the same change is reindexed several times in a row, each time with a
+ * different target SHA-1. The first event of a change opens the window; any further event for the
+ * same change received before the window expires replaces the pending one if it is not older.
+ *
+ * <p>The events are keyed by change number, which is unique on the site, because the deletion
+ * events do not carry the project of the change. A deletion is forwarded straight away and drops
+ * the pending event of the change, which would otherwise reindex the deleted change afterwards.
+ */
+@Singleton
+class ChangeIndexCoalescer {
+  private final ScheduledExecutorService executor;
+  private final long windowMs;
+  private final Map<Integer, PendingChange> pendingChanges = new ConcurrentHashMap<>();
+
+  @Inject
+  ChangeIndexCoalescer(@IndexExecutor ScheduledExecutorService executor, Configuration cfg) {
+    this(executor, cfg.index().coalesceWindowMs());
+  }
+
+  @VisibleForTesting
+  ChangeIndexCoalescer(ScheduledExecutorService executor, long windowMs) {
+    this.executor = executor;
+    this.windowMs = windowMs;
+  }
+
+  /**
+   * Coalesce a change index event with the other events of the same change.
+   *
+   * @param event the change index event
+   * @param forwarder callback forwarding the newest event of the change once the window expires,
+   *     or immediately when coalescing is disabled
+   */
+  void coalesce(ChangeIndexEvent event, Consumer<ChangeIndexEvent> forwarder) {
+    if (event.deleted) {
+      pendingChanges.remove(event.changeId);
+      forwarder.accept(event);
+      return;
+    }
+
+    if (windowMs <= 0) {
+      forwarder.accept(event);
+      return;
+    }
+
+    Integer key = event.changeId;
+    PendingChange pending = new PendingChange(event, forwarder);
+    AtomicBoolean windowOpened = new AtomicBoolean();
+    pendingChanges.compute(
+        key,
+        (k, current) -> {
+          if (current == null) {
+            windowOpened.set(true);
+            return pending;
+          }
+          return PendingChange.newest(current, pending);
+        });
+
+    if (windowOpened.get()) {
+      @SuppressWarnings("unused")
+      Future<?> possiblyIgnoredError =
+          executor.schedule(() -> flush(key), windowMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @VisibleForTesting
+  int pendingChanges() {
+    return pendingChanges.size();
+  }
+
+  private void flush(Integer key) {
+    PendingChange pending = pendingChanges.remove(key);
+    if (pending != null) {
+      pending.forwarder.accept(pending.event);
+    }
+  }
+
+  private static class PendingChange {
+    final ChangeIndexEvent event;
+    final Consumer<ChangeIndexEvent> forwarder;
+
+    PendingChange(ChangeIndexEvent event, Consumer<ChangeIndexEvent> forwarder) {
+      this.event = event;
+      this.forwarder = forwarder;
+    }
+
+    static PendingChange newest(PendingChange current, PendingChange candidate) {
+      return candidate.event.eventCreatedOn >= current.event.eventCreatedOn ? candidate : current;
+    }
+  }
+}
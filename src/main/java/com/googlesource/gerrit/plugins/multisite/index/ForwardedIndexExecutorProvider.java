@@ -25,6 +25,10 @@ class ForwardedIndexExecutorProvider extends ExecutorProvider {
 
   @Inject
   ForwardedIndexExecutorProvider(WorkQueue workQueue, Configuration config) {
-    super(workQueue, config.index().threadPoolSize(), "Forwarded-Index-Event");
+    super(
+        workQueue,
+        config.index().threadPoolSize(),
+        "Forwarded-Index-Event",
+        config.broker().shutdownDrainTimeoutMs());
   }
 }
@@ -29,10 +29,15 @@ import com.googlesource.gerrit.plugins.multisite.forwarder.events.AccountIndexEv
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.GroupIndexEvent;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectIndexEvent;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +53,7 @@ class IndexEventHandler
   private final ChangeCheckerImpl.Factory changeChecker;
   private final ProjectsFilter projectsFilter;
   private final GroupChecker groupChecker;
+  private final ChangeIndexCoalescer changeIndexCoalescer;
 
   @Inject
   IndexEventHandler(
@@ -55,12 +61,14 @@ class IndexEventHandler
       DynamicSet<IndexEventForwarder> forwarders,
       ChangeCheckerImpl.Factory changeChecker,
       ProjectsFilter projectsFilter,
-      GroupChecker groupChecker) {
+      GroupChecker groupChecker,
+      ChangeIndexCoalescer changeIndexCoalescer) {
     this.forwarders = forwarders;
     this.executor = executor;
     this.changeChecker = changeChecker;
     this.projectsFilter = projectsFilter;
     this.groupChecker = groupChecker;
+    this.changeIndexCoalescer = changeIndexCoalescer;
   }
 
   @Override
@@ -111,18 +119,21 @@ class IndexEventHandler
       try {
         checker
             .newIndexEvent(projectName, id, false)
-            .map(
-                event -> {
-                  if (Thread.currentThread().getName().contains("Batch")) {
-                    return new BatchIndexChangeTask(event);
-                  }
-                  return new IndexChangeTask(event);
-                })
             .ifPresent(
-                task -> {
-                  if (queuedTasks.add(task)) {
-                    executor.execute(task);
-                  }
+                event -> {
+                  // The batch thread is recognised here, before the event is possibly held back
+                  boolean batch = Thread.currentThread().getName().contains("Batch");
+                  changeIndexCoalescer.coalesce(
+                      event,
+                      newestEvent -> {
+                        IndexTask task =
+                            batch
+                                ? new BatchIndexChangeTask(newestEvent)
+                                : new IndexChangeTask(newestEvent);
+                        if (queuedTasks.add(task)) {
+                          executor.execute(task);
+                        }
+                      });
                 });
       } catch (Exception e) {
         log.warn("Unable to create task to handle change {}~{}", projectName, id, e);
@@ -132,10 +143,15 @@ class IndexEventHandler
 
   private void executeDeleteChangeTask(int id) {
     if (!Context.isForwardedEvent()) {
-      IndexChangeTask task = new IndexChangeTask(new ChangeIndexEvent("", id, true));
-      if (queuedTasks.add(task)) {
-        executor.execute(task);
-      }
+      // Drops the pending indexing of the change, which would otherwise be forwarded afterwards
+      changeIndexCoalescer.coalesce(
+          new ChangeIndexEvent("", id, true),
+          deletion -> {
+            IndexChangeTask task = new IndexChangeTask(deletion);
+            if (queuedTasks.add(task)) {
+              executor.execute(task);
+            }
+          });
     }
   }
 
@@ -143,11 +159,28 @@ class IndexEventHandler
 
     @Override
     public void run() {
-      queuedTasks.remove(this);
-      execute();
+      CompletableFuture<Void> forwarded;
+      try {
+        forwarded = execute();
+      } catch (RuntimeException e) {
+        queuedTasks.remove(this);
+        throw e;
+      }
+      // The same event is not forwarded again until it has been published
+      @SuppressWarnings("unused")
+      Future<?> possiblyIgnoredError =
+          forwarded.whenComplete((result, e) -> queuedTasks.remove(this));
     }
 
-    abstract void execute();
+    /** @return future completed once the event has been published by all the forwarders */
+    abstract CompletableFuture<Void> execute();
+
+    CompletableFuture<Void> forwardToAll(
+        Function<IndexEventForwarder, CompletableFuture<Boolean>> forward) {
+      List<CompletableFuture<Boolean>> forwarded = new ArrayList<>();
+      forwarders.forEach(f -> forwarded.add(forward.apply(f)));
+      return CompletableFuture.allOf(forwarded.toArray(new CompletableFuture<?>[0]));
+    }
   }
 
   class IndexChangeTask extends IndexTask {
@@ -158,8 +191,8 @@ class IndexEventHandler
     }
 
     @Override
-    public void execute() {
-      forwarders.forEach(f -> f.index(this, changeIndexEvent));
+    public CompletableFuture<Void> execute() {
+      return forwardToAll(f -> f.indexAsync(this, changeIndexEvent));
     }
 
     @Override
@@ -189,15 +222,15 @@ class IndexEventHandler
     }
 
     @Override
-    public void execute() {
-      forwarders.forEach(f -> f.batchIndex(this, changeIndexEvent));
+    public CompletableFuture<Void> execute() {
+      return forwardToAll(f -> f.batchIndexAsync(this, changeIndexEvent));
     }
 
     @Override
     public boolean equals(Object o) {
       if (this == o) return true;
       if (o == null || getClass() != o.getClass()) return false;
-      IndexChangeTask that = (IndexChangeTask) o;
+      BatchIndexChangeTask that = (BatchIndexChangeTask) o;
       return Objects.equal(changeIndexEvent, that.changeIndexEvent);
     }
 
@@ -220,8 +253,8 @@ class IndexEventHandler
     }
 
     @Override
-    public void execute() {
-      forwarders.forEach(f -> f.index(this, accountIndexEvent));
+    public CompletableFuture<Void> execute() {
+      return forwardToAll(f -> f.indexAsync(this, accountIndexEvent));
     }
 
     @Override
@@ -251,8 +284,8 @@ class IndexEventHandler
     }
 
     @Override
-    public void execute() {
-      forwarders.forEach(f -> f.index(this, groupIndexEvent));
+    public CompletableFuture<Void> execute() {
+      return forwardToAll(f -> f.indexAsync(this, groupIndexEvent));
     }
 
     @Override
@@ -282,8 +315,8 @@ class IndexEventHandler
     }
 
     @Override
-    public void execute() {
-      forwarders.forEach(f -> f.index(this, projectIndexEvent));
+    public CompletableFuture<Void> execute() {
+      return forwardToAll(f -> f.indexAsync(this, projectIndexEvent));
     }
 
     @Override
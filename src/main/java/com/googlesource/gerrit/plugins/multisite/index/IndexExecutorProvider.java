@@ -25,6 +25,10 @@ class IndexExecutorProvider extends ExecutorProvider {
 
   @Inject
   IndexExecutorProvider(WorkQueue workQueue, Configuration config) {
-    super(workQueue, config.index().threadPoolSize(), "Forward-Index-Event");
+    super(
+        workQueue,
+        config.index().threadPoolSize(),
+        "Forward-Index-Event",
+        config.broker().shutdownDrainTimeoutMs());
   }
 }
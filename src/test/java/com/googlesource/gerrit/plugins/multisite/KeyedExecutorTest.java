@@ -0,0 +1,128 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyedExecutorTest {
+  private Queue<Runnable> submitted;
+  private List<String> executed;
+  private KeyedExecutor objectUnderTest;
+
+  @Before
+  public void setUp() {
+    submitted = new ArrayDeque<>();
+    executed = new ArrayList<>();
+    objectUnderTest = new KeyedExecutor(submitted::add);
+  }
+
+  @Test
+  public void shouldSubmitOnlyOneTaskPerKeyAtATime() {
+    objectUnderTest.execute("project1", task("project1-1"));
+    objectUnderTest.execute("project1", task("project1-2"));
+    objectUnderTest.execute("project2", task("project2-1"));
+
+    assertThat(submitted).hasSize(2);
+    assertThat(objectUnderTest.queueDepths()).containsExactly("project1", 2, "project2", 1);
+    assertThat(objectUnderTest.size()).isEqualTo(3);
+    assertThat(objectUnderTest.maxQueueDepth()).isEqualTo(2);
+    assertThat(objectUnderTest.activeKeys()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldExecuteTasksOfTheSameKeyInOrder() {
+    objectUnderTest.execute("project1", task("project1-1"));
+    objectUnderTest.execute("project2", task("project2-1"));
+    objectUnderTest.execute("project1", task("project1-2"));
+    objectUnderTest.execute("project1", task("project1-3"));
+
+    runAll();
+
+    assertThat(executed)
+        .containsExactly("project1-1", "project2-1", "project1-2", "project1-3")
+        .inOrder();
+    assertThat(objectUnderTest.queueDepths()).isEmpty();
+  }
+
+  @Test
+  public void shouldKeepExecutingTasksAfterAFailure() {
+    objectUnderTest.execute(
+        "project1",
+        () -> {
+          throw new IllegalStateException("test failure");
+        });
+    objectUnderTest.execute("project1", task("project1-2"));
+
+    runAll();
+
+    assertThat(executed).containsExactly("project1-2");
+  }
+
+  @Test
+  public void shouldRestartKeyQueueOnceDrained() {
+    objectUnderTest.execute("project1", task("project1-1"));
+    runAll();
+
+    objectUnderTest.execute("project1", task("project1-2"));
+    runAll();
+
+    assertThat(executed).containsExactly("project1-1", "project1-2").inOrder();
+  }
+
+  @Test
+  public void shouldDrainTheQueuedTasksInlineOnceTheExecutorIsStopped() {
+    AtomicBoolean stopped = new AtomicBoolean();
+    objectUnderTest =
+        new KeyedExecutor(
+            task -> {
+              if (stopped.get()) {
+                throw new RejectedExecutionException("stopped");
+              }
+              submitted.add(task);
+            });
+    objectUnderTest.execute("project1", task("project1-1"));
+    objectUnderTest.execute("project1", task("project1-2"));
+    objectUnderTest.execute("project1", task("project1-3"));
+
+    stopped.set(true);
+    runAll();
+    objectUnderTest.execute("project2", task("project2-1"));
+
+    assertThat(executed)
+        .containsExactly("project1-1", "project1-2", "project1-3", "project2-1")
+        .inOrder();
+    assertThat(objectUnderTest.size()).isEqualTo(0);
+  }
+
+  private Runnable task(String name) {
+    return () -> executed.add(name);
+  }
+
+  private void runAll() {
+    Runnable next;
+    while ((next = submitted.poll()) != null) {
+      next.run();
+    }
+  }
+}
@@ -0,0 +1,113 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static com.googlesource.gerrit.plugins.multisite.PriorityExecutor.Priority.BATCH;
+import static com.googlesource.gerrit.plugins.multisite.PriorityExecutor.Priority.INTERACTIVE;
+
+import com.googlesource.gerrit.plugins.multisite.PriorityExecutor.Priority;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PriorityExecutorTest {
+  private Queue<Runnable> submitted;
+  private List<String> executed;
+  private List<Priority> waited;
+  private PriorityExecutor objectUnderTest;
+  private Executor interactive;
+  private Executor batch;
+
+  @Before
+  public void setUp() {
+    submitted = new ArrayDeque<>();
+    executed = new ArrayList<>();
+    waited = new ArrayList<>();
+    objectUnderTest =
+        new PriorityExecutor(submitted::add, 1, (priority, nanos) -> waited.add(priority));
+    interactive = objectUnderTest.executor(INTERACTIVE);
+    batch = objectUnderTest.executor(BATCH);
+  }
+
+  @Test
+  public void shouldExecuteInteractiveTasksFirst() {
+    batch.execute(task("batch-1"));
+    batch.execute(task("batch-2"));
+    interactive.execute(task("interactive-1"));
+
+    assertThat(objectUnderTest.queueDepth(BATCH)).isEqualTo(2);
+    assertThat(objectUnderTest.queueDepth(INTERACTIVE)).isEqualTo(1);
+
+    runAll();
+
+    assertThat(executed).containsExactly("interactive-1", "batch-1", "batch-2").inOrder();
+    assertThat(waited).containsExactly(INTERACTIVE, BATCH, BATCH).inOrder();
+  }
+
+  @Test
+  public void shouldNotExecuteMoreBatchTasksThanTheirThreadsAtTheSameTime() {
+    batch.execute(
+        () -> {
+          executed.add("batch-1");
+          // Any thread available whilst the batch task is running is left to interactive tasks
+          batch.execute(task("batch-2"));
+          interactive.execute(task("interactive-1"));
+          runAll();
+          executed.add("batch-1 completed");
+        });
+
+    runAll();
+
+    assertThat(executed)
+        .containsExactly("batch-1", "interactive-1", "batch-1 completed", "batch-2")
+        .inOrder();
+    assertThat(objectUnderTest.queueDepth(BATCH)).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldNotKeepTheTasksRejectedByTheStoppedPool() {
+    objectUnderTest =
+        new PriorityExecutor(
+            task -> {
+              throw new RejectedExecutionException("stopped");
+            },
+            1,
+            (priority, nanos) -> waited.add(priority));
+
+    assertThrows(
+        RejectedExecutionException.class,
+        () -> objectUnderTest.executor(INTERACTIVE).execute(task("interactive-1")));
+    assertThat(objectUnderTest.queueDepth(INTERACTIVE)).isEqualTo(0);
+    assertThat(executed).isEmpty();
+  }
+
+  private Runnable task(String name) {
+    return () -> executed.add(name);
+  }
+
+  private void runAll() {
+    Runnable next;
+    while ((next = submitted.poll()) != null) {
+      next.run();
+    }
+  }
+}
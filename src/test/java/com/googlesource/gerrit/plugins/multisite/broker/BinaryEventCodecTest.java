@@ -0,0 +1,131 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.broker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventGsonProvider;
+import com.google.gerrit.server.events.RefUpdatedEvent;
+import com.google.gson.Gson;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.AccountIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.BatchEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.CacheEvictionEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.GroupIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.MultiSiteEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectListUpdateEvent;
+import java.io.IOException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryEventCodecTest {
+  private static final String PROJECT = "foo/bar";
+  private static final String SHA1 = "deadbeefdeadbeefdeadbeefdeadbeefdeadbeef";
+
+  private Gson gson;
+  private BinaryEventCodec codec;
+
+  @Before
+  public void setUp() {
+    MultiSiteEvent.registerEventTypes();
+    gson = new EventGsonProvider().get();
+    codec = new BinaryEventCodec(gson);
+  }
+
+  @Test
+  public void shouldRoundTripChangeIndexEvent() throws Exception {
+    ChangeIndexEvent event = new ChangeIndexEvent(PROJECT, 1234, false);
+    event.targetSha = SHA1;
+
+    assertRoundTrip(event);
+  }
+
+  @Test
+  public void shouldRoundTripChangeIndexEventWithNonHexTargetSha() throws Exception {
+    ChangeIndexEvent event = new ChangeIndexEvent(PROJECT, 1234, true);
+    event.targetSha = "not-a-sha1";
+
+    assertRoundTrip(event);
+  }
+
+  @Test
+  public void shouldRoundTripIndexEvents() throws Exception {
+    assertRoundTrip(new AccountIndexEvent(1000001));
+    assertRoundTrip(new GroupIndexEvent("group-uuid", ObjectId.fromString(SHA1)));
+    assertRoundTrip(new GroupIndexEvent("group-uuid", null));
+    assertRoundTrip(new ProjectIndexEvent(PROJECT));
+  }
+
+  @Test
+  public void shouldRoundTripProjectListUpdateEvent() throws Exception {
+    assertRoundTrip(new ProjectListUpdateEvent(PROJECT, true));
+  }
+
+  @Test
+  public void shouldDecodeCacheEvictionKeyAsJson() throws Exception {
+    CacheEvictionEvent event = new CacheEvictionEvent("projects", "foo/bar");
+
+    CacheEvictionEvent decoded =
+        (CacheEvictionEvent) codec.decode(BinaryEventCodec.VERSION, codec.encode(event));
+
+    assertThat(decoded.cacheName).isEqualTo("projects");
+    assertThat(decoded.key).isEqualTo(gson.fromJson(gson.toJson(event.key), Object.class));
+  }
+
+  @Test
+  public void shouldRoundTripBatchOfSupportedEvents() throws Exception {
+    assertRoundTrip(
+        new BatchEvent(
+            ImmutableList.of(new ProjectIndexEvent(PROJECT), new AccountIndexEvent(1000001))));
+  }
+
+  @Test
+  public void shouldNotEncodeStreamEvents() {
+    Event streamEvent = new RefUpdatedEvent();
+
+    assertThat(codec.canEncode(streamEvent)).isFalse();
+    assertThat(codec.canEncode(new BatchEvent(ImmutableList.of(streamEvent)))).isFalse();
+  }
+
+  @Test
+  public void shouldRejectUnsupportedVersion() throws Exception {
+    byte[] payload = codec.encode(new ProjectIndexEvent(PROJECT));
+
+    assertThrows(IOException.class, () -> codec.decode(BinaryEventCodec.VERSION + 1, payload));
+  }
+
+  @Test
+  public void shouldBeMoreCompactThanJson() throws Exception {
+    ChangeIndexEvent event = new ChangeIndexEvent(PROJECT, 1234, false);
+    event.targetSha = SHA1;
+
+    assertThat(codec.encode(event).length).isLessThan(gson.toJson(event).length() / 2);
+  }
+
+  private void assertRoundTrip(Event event) throws IOException {
+    event.eventCreatedOn = 1600000000L;
+
+    Event decoded = codec.decode(BinaryEventCodec.VERSION, codec.encode(event));
+
+    assertThat(decoded).isEqualTo(event);
+    assertThat(decoded.eventCreatedOn).isEqualTo(event.eventCreatedOn);
+    assertThat(decoded.getType()).isEqualTo(event.getType());
+  }
+}
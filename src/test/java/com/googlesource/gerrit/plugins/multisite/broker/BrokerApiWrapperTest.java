@@ -1,18 +1,46 @@
 package com.googlesource.gerrit.plugins.multisite.broker;
 
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.only;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.gerritforge.gerrit.eventbroker.BrokerApi;
+import com.gerritforge.gerrit.eventbroker.EventMessage;
 import com.google.gerrit.extensions.registration.DynamicItem;
+import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventGsonProvider;
+import com.google.gson.Gson;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
 import com.googlesource.gerrit.plugins.multisite.MessageLogger;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.BatchEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.EncodedEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.MultiSiteEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectIndexEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.eclipse.jgit.lib.Config;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.stubbing.Answer;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -20,43 +48,316 @@ import org.mockito.junit.MockitoJUnitRunner;
 public class BrokerApiWrapperTest {
   @Mock private BrokerMetrics brokerMetrics;
   @Mock private BrokerApi brokerApi;
-  @Mock Event event;
+  private Event event = new ProjectIndexEvent("test_project");
   @Mock MessageLogger msgLog;
+  @Mock ScheduledExecutorService publisherExecutor;
+  @Mock OutboundJournal journal;
   private UUID instanceId = UUID.randomUUID();
   private String topic = "index";
+  private Gson gson = new EventGsonProvider().get();
 
   private BrokerApiWrapper objectUnderTest;
 
   @Before
   public void setUp() {
-    objectUnderTest =
-        new BrokerApiWrapper(
-            DynamicItem.itemOf(BrokerApi.class, brokerApi), brokerMetrics, msgLog, instanceId);
+    objectUnderTest = newBrokerApiWrapper(new Config());
+  }
+
+  private BrokerApiWrapper newBrokerApiWrapper(Config multiSiteConfig) {
+    Configuration configuration = new Configuration(multiSiteConfig, new Config());
+    return new BrokerApiWrapper(
+        DynamicItem.itemOf(BrokerApi.class, brokerApi),
+        brokerMetrics,
+        msgLog,
+        instanceId,
+        configuration,
+        publisherExecutor,
+        journal,
+        new EventCodecs(DynamicSet.emptySet(), gson, brokerMetrics, configuration));
   }
 
   @Test
   public void shouldIncrementBrokerMetricCounterWhenMessagePublished() {
+    when(brokerApi.newMessage(any(), any())).thenCallRealMethod();
+    when(brokerApi.send(any(), any())).thenReturn(true);
+    objectUnderTest.send(topic, event);
+    long jsonBytes = gson.toJson(event, Event.class).getBytes(UTF_8).length;
+    verify(brokerMetrics, only())
+        .incrementBrokerPublishedMessage(eq(topic), eq(event.getType()), eq(jsonBytes), anyLong());
+  }
+
+  @Test
+  public void shouldRecordTheSizeAndTheTypeOfTheEncodedEvents() {
+    Config multiSiteConfig = new Config();
+    multiSiteConfig.setString("broker", null, "compressTopic", topic);
+    multiSiteConfig.setInt("broker", null, "compressionThreshold", 0);
+    objectUnderTest = newBrokerApiWrapper(multiSiteConfig);
+    when(brokerApi.newMessage(any(), any())).thenCallRealMethod();
     when(brokerApi.send(any(), any())).thenReturn(true);
+
     objectUnderTest.send(topic, event);
-    verify(brokerMetrics, only()).incrementBrokerPublishedMessage();
+
+    ArgumentCaptor<EventMessage> message = ArgumentCaptor.forClass(EventMessage.class);
+    verify(brokerApi).send(eq(topic), message.capture());
+    EncodedEvent encoded = (EncodedEvent) message.getValue().getEvent();
+    verify(brokerMetrics)
+        .incrementBrokerPublishedMessage(
+            eq(topic), eq(event.getType()), eq((long) encoded.payload.length()), anyLong());
   }
 
   @Test
   public void shouldIncrementBrokerFailedMetricCounterWhenMessagePublishingFailed() {
+    when(brokerApi.newMessage(any(), any())).thenCallRealMethod();
     when(brokerApi.send(any(), any())).thenReturn(false);
     objectUnderTest.send(topic, event);
-    verify(brokerMetrics, only()).incrementBrokerFailedToPublishMessage();
+    verify(brokerMetrics, only())
+        .incrementBrokerFailedToPublishMessage(
+            eq(topic), eq(event.getType()), eq(BrokerMetrics.REJECTED), anyLong());
   }
 
   @Test
   public void shouldIncrementBrokerFailedMetricCounterWhenUnexpectedException() {
+    when(brokerApi.newMessage(any(), any())).thenCallRealMethod();
     when(brokerApi.send(any(), any()))
-        .thenThrow(new RuntimeException("Unexpected runtime exception"));
+        .thenThrow(new IllegalStateException("Unexpected runtime exception"));
     try {
       objectUnderTest.send(topic, event);
     } catch (RuntimeException e) {
       // expected
     }
-    verify(brokerMetrics, only()).incrementBrokerFailedToPublishMessage();
+    verify(brokerMetrics, only())
+        .incrementBrokerFailedToPublishMessage(
+            eq(topic), eq(event.getType()), eq("IllegalStateException"), anyLong());
+  }
+
+  @Test
+  public void shouldAttachRoutingKeyToPublishedMessages() {
+    when(brokerApi.newMessage(any(), any())).thenCallRealMethod();
+    when(brokerApi.send(any(), any())).thenReturn(true);
+
+    objectUnderTest.send(topic, event);
+
+    ArgumentCaptor<EventMessage> message = ArgumentCaptor.forClass(EventMessage.class);
+    verify(brokerApi).send(eq(topic), message.capture());
+    assertThat(message.getValue()).isInstanceOf(RoutedEventMessage.class);
+    assertThat(((RoutedEventMessage) message.getValue()).getRoutingKey())
+        .isEqualTo("test_project");
+  }
+
+  @Test
+  public void shouldStampPublishedEventsWithThePublishingTime() {
+    when(brokerApi.newMessage(any(), any())).thenCallRealMethod();
+    when(brokerApi.send(any(), any())).thenReturn(true);
+    long before = System.currentTimeMillis();
+
+    objectUnderTest.send(topic, event);
+
+    assertThat(((MultiSiteEvent) event).publishedOn).isAtLeast(before);
+    assertThat(((MultiSiteEvent) event).publishedOn).isAtMost(System.currentTimeMillis());
+  }
+
+  @Test
+  public void shouldHoldReceivedMessagesWhilstConsumersArePaused() throws Exception {
+    List<EventMessage> consumed = new CopyOnWriteArrayList<>();
+    objectUnderTest.receiveAsync(topic, consumed::add);
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Consumer<EventMessage>> brokerConsumer =
+        ArgumentCaptor.forClass(Consumer.class);
+    verify(brokerApi).receiveAsync(eq(topic), brokerConsumer.capture());
+    EventMessage message =
+        new EventMessage(new EventMessage.Header(UUID.randomUUID(), UUID.randomUUID()), event);
+
+    objectUnderTest.pauseConsumers();
+    Thread brokerThread = new Thread(() -> brokerConsumer.getValue().accept(message));
+    brokerThread.start();
+    brokerThread.join(100);
+    assertThat(brokerThread.isAlive()).isTrue();
+    assertThat(consumed).isEmpty();
+
+    objectUnderTest.resumeConsumers();
+    brokerThread.join(TimeUnit.SECONDS.toMillis(10));
+    assertThat(brokerThread.isAlive()).isFalse();
+    assertThat(consumed).containsExactly(message);
+  }
+
+  @Test
+  public void shouldNotProcessReceivedMessagesOnceConsumersAreStopped() {
+    List<EventMessage> consumed = new CopyOnWriteArrayList<>();
+    objectUnderTest.receiveAsync(topic, consumed::add);
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Consumer<EventMessage>> brokerConsumer =
+        ArgumentCaptor.forClass(Consumer.class);
+    verify(brokerApi).receiveAsync(eq(topic), brokerConsumer.capture());
+
+    objectUnderTest.stopConsumers();
+    brokerConsumer
+        .getValue()
+        .accept(
+            new EventMessage(
+                new EventMessage.Header(UUID.randomUUID(), UUID.randomUUID()), event));
+
+    assertThat(consumed).isEmpty();
+  }
+
+  @Test
+  public void shouldPublishBatchEnvelopeWhenBatchSizeIsReached() {
+    Config multiSiteConfig = new Config();
+    multiSiteConfig.setInt("broker", null, "batchSize", 2);
+    objectUnderTest = newBrokerApiWrapper(multiSiteConfig);
+    runPublisherTasksInline();
+    when(brokerApi.newMessage(any(), any())).thenCallRealMethod();
+    when(brokerApi.send(any(), any())).thenReturn(true);
+
+    objectUnderTest.send(topic, event);
+    verify(brokerApi, times(0)).send(any(), any());
+
+    objectUnderTest.send(topic, event);
+    ArgumentCaptor<EventMessage> message = ArgumentCaptor.forClass(EventMessage.class);
+    verify(brokerApi, times(1)).send(eq(topic), message.capture());
+    assertThat(message.getValue().getEvent()).isInstanceOf(BatchEvent.class);
+    assertThat(((BatchEvent) message.getValue().getEvent()).events).containsExactly(event, event);
+  }
+
+  @Test
+  public void shouldReportAndJournalTheBatchesFailingToBePublished() throws Exception {
+    Config multiSiteConfig = new Config();
+    multiSiteConfig.setInt("broker", null, "batchSize", 2);
+    objectUnderTest = newBrokerApiWrapper(multiSiteConfig);
+    runPublisherTasksInline();
+    when(journal.isEnabled()).thenReturn(true);
+    when(journal.isEmpty()).thenReturn(true);
+    when(brokerApi.newMessage(any(), any())).thenCallRealMethod();
+    when(brokerApi.send(any(), any())).thenReturn(false);
+
+    CompletableFuture<Boolean> first = objectUnderTest.sendAsync(topic, event);
+    assertThat(first.isDone()).isFalse();
+    CompletableFuture<Boolean> second = objectUnderTest.sendAsync(topic, event);
+
+    assertThat(first.get()).isFalse();
+    assertThat(second.get()).isFalse();
+    verify(journal).append(eq(topic), any(BatchEvent.class));
+  }
+
+  @Test
+  public void shouldPublishPendingBatchOnStop() {
+    Config multiSiteConfig = new Config();
+    multiSiteConfig.setInt("broker", null, "batchSize", 10);
+    objectUnderTest = newBrokerApiWrapper(multiSiteConfig);
+    runPublisherTasksInline();
+    when(brokerApi.newMessage(any(), any())).thenCallRealMethod();
+    when(brokerApi.send(any(), any())).thenReturn(true);
+
+    objectUnderTest.send(topic, event);
+    objectUnderTest.stop();
+
+    verify(brokerApi, times(1)).send(eq(topic), any());
+  }
+
+  @Test
+  public void shouldPublishAsyncOnPublisherExecutor() throws Exception {
+    runPublisherTasksInline();
+    when(brokerApi.newMessage(any(), any())).thenCallRealMethod();
+    when(brokerApi.send(any(), any())).thenReturn(true);
+
+    assertThat(objectUnderTest.sendAsync(topic, event).get()).isTrue();
+    verify(publisherExecutor, times(1)).execute(any());
+    verify(brokerMetrics, only())
+        .incrementBrokerPublishedMessage(eq(topic), any(), anyLong(), anyLong());
+  }
+
+  @Test
+  public void shouldPublishAsyncTheEventsOfTheSameKeyOneAtATimeInOrder() throws Exception {
+    List<Runnable> submitted = new ArrayList<>();
+    doAnswer(invocation -> submitted.add(invocation.getArgument(0)))
+        .when(publisherExecutor)
+        .execute(any());
+    when(brokerApi.newMessage(any(), any())).thenCallRealMethod();
+    when(brokerApi.send(any(), any())).thenReturn(true);
+    Event first = new ChangeIndexEvent("test_project", 1, false);
+    Event second = new ChangeIndexEvent("test_project", 2, false);
+    Event otherProject = new ChangeIndexEvent("other_project", 1, false);
+
+    CompletableFuture<Boolean> firstPublished = objectUnderTest.sendAsync(topic, first);
+    CompletableFuture<Boolean> secondPublished = objectUnderTest.sendAsync(topic, second);
+    CompletableFuture<Boolean> otherPublished = objectUnderTest.sendAsync(topic, otherProject);
+    assertThat(submitted).hasSize(2);
+
+    submitted.get(0).run();
+    assertThat(firstPublished.get()).isTrue();
+    assertThat(secondPublished.isDone()).isFalse();
+    assertThat(otherPublished.isDone()).isFalse();
+
+    submitted.get(2).run();
+    submitted.get(1).run();
+    assertThat(secondPublished.get()).isTrue();
+    assertThat(otherPublished.get()).isTrue();
+    ArgumentCaptor<EventMessage> messages = ArgumentCaptor.forClass(EventMessage.class);
+    verify(brokerApi, times(3)).send(eq(topic), messages.capture());
+    assertThat(messages.getAllValues().stream().map(EventMessage::getEvent))
+        .containsExactly(first, second, otherProject)
+        .inOrder();
+  }
+
+  @Test
+  public void shouldStoreEventsNotPublishedBeforeStoppingInJournal() {
+    when(journal.isEnabled()).thenReturn(true);
+    when(journal.append(topic, event)).thenReturn(true);
+
+    objectUnderTest.sendAsync(topic, event);
+    objectUnderTest.stop();
+
+    verify(publisherExecutor).shutdownNow();
+    verify(journal).append(topic, event);
+    verify(brokerApi, never()).send(any(), any());
+  }
+
+  @Test
+  public void shouldStoreEventInJournalWhenMessagePublishingFailed() {
+    when(journal.isEnabled()).thenReturn(true);
+    when(journal.isEmpty()).thenReturn(true);
+    when(brokerApi.newMessage(any(), any())).thenCallRealMethod();
+    when(brokerApi.send(any(), any())).thenReturn(false);
+
+    objectUnderTest.send(topic, event);
+
+    verify(journal).append(topic, event);
+  }
+
+  @Test
+  public void shouldAppendToJournalWhileItIsNotEmpty() {
+    when(journal.isEnabled()).thenReturn(true);
+    when(journal.isEmpty()).thenReturn(false);
+    when(brokerApi.newMessage(any(), any())).thenCallRealMethod();
+
+    objectUnderTest.send(topic, event);
+
+    verify(journal).append(topic, event);
+    verify(brokerApi, times(0)).send(any(), any());
+  }
+
+  @Test
+  public void shouldReplayJournalInOrderUntilPublishingFails() {
+    Event secondEvent = new ProjectIndexEvent("another_project");
+    when(journal.peek())
+        .thenReturn(Optional.of(new OutboundJournal.Entry(topic, event)))
+        .thenReturn(Optional.of(new OutboundJournal.Entry(topic, secondEvent)));
+    when(brokerApi.newMessage(any(), any())).thenCallRealMethod();
+    when(brokerApi.send(any(), any())).thenReturn(true).thenReturn(false);
+
+    objectUnderTest.drainJournal();
+
+    verify(brokerApi, times(2)).send(eq(topic), any());
+    verify(journal, times(1)).remove();
+  }
+
+  private void runPublisherTasksInline() {
+    doAnswer(
+            (Answer<Void>)
+                invocation -> {
+                  ((Runnable) invocation.getArgument(0)).run();
+                  return null;
+                })
+        .when(publisherExecutor)
+        .execute(any());
   }
 }
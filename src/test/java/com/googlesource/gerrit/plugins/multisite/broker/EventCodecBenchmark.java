@@ -0,0 +1,155 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.broker;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventGsonProvider;
+import com.google.gson.Gson;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.AccountIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.BatchEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.CacheEvictionEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.MultiSiteEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectIndexEvent;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.jgit.lib.Config;
+
+/**
+ * Compares the end-to-end cost of publishing and receiving events as JSON, with the binary event
+ * codec and with the binary event codec plus compression.
+ *
+ * <p>The publishing path covers the encoding by {@link EventCodecs}, including the Base64 payload
+ * of the {@link com.googlesource.gerrit.plugins.multisite.forwarder.events.EncodedEvent} envelope,
+ * and the JSON serialization of the event sent to the broker. The receiving path covers the JSON
+ * parsing of the received event, then the Base64 decoding, decompression and decoding of the
+ * envelope. Prints the bytes sent to the broker per event and the nanoseconds per publish and
+ * receive operation for each sample event. It is not part of the test suite and can be run as a
+ * plain Java application from the test classpath.
+ */
+public class EventCodecBenchmark {
+  private static final String TOPIC = "gerrit_index";
+  private static final int WARMUP_ITERATIONS = 200_000;
+  private static final int MEASURED_ITERATIONS = 1_000_000;
+
+  private final Gson gson;
+  private final EventCodecs json;
+  private final EventCodecs binary;
+  private final EventCodecs compressed;
+
+  // Prevents the JIT from eliminating the benchmarked calls
+  private long blackhole;
+
+  private EventCodecBenchmark() {
+    MultiSiteEvent.registerEventTypes();
+    gson = new EventGsonProvider().get();
+    json = newEventCodecs(EventCodecs.JSON, false);
+    binary = newEventCodecs(BinaryEventCodec.NAME, false);
+    compressed = newEventCodecs(BinaryEventCodec.NAME, true);
+  }
+
+  public static void main(String[] args) throws IOException {
+    EventCodecBenchmark benchmark = new EventCodecBenchmark();
+    System.out.printf(
+        "%-20s %-14s %10s %12s %12s%n", "event", "codec", "wire B", "publish ns", "receive ns");
+    for (Event event : sampleEvents()) {
+      benchmark.run(event, "json", benchmark.json);
+      benchmark.run(event, "binary", benchmark.binary);
+      benchmark.run(event, "binary+gzip", benchmark.compressed);
+    }
+  }
+
+  private EventCodecs newEventCodecs(String codecName, boolean compress) {
+    Config multiSiteConfig = new Config();
+    multiSiteConfig.setString("broker", null, "codec", codecName);
+    multiSiteConfig.setInt("broker", null, "compressionThreshold", 0);
+    if (compress) {
+      multiSiteConfig.setString("broker", null, "compressTopic", TOPIC);
+    }
+    DynamicSet<EventCodec> codecSet = new DynamicSet<>();
+    codecSet.add("multi-site", new BinaryEventCodec(gson));
+    return new EventCodecs(
+        codecSet,
+        gson,
+        new BrokerMetrics(new DisabledMetricMaker()),
+        new Configuration(multiSiteConfig, new Config()));
+  }
+
+  private static List<Event> sampleEvents() {
+    ChangeIndexEvent changeIndex = new ChangeIndexEvent("platform/frameworks/base", 123456, false);
+    changeIndex.targetSha = "deadbeefdeadbeefdeadbeefdeadbeefdeadbeef";
+
+    List<Event> batched = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      ChangeIndexEvent event = new ChangeIndexEvent("platform/frameworks/base", 123456 + i, false);
+      event.targetSha = changeIndex.targetSha;
+      batched.add(event);
+    }
+
+    return ImmutableList.of(
+        changeIndex,
+        new AccountIndexEvent(1000001),
+        new ProjectIndexEvent("platform/frameworks/base"),
+        new CacheEvictionEvent("projects", "platform/frameworks/base"),
+        new BatchEvent(batched));
+  }
+
+  private String publish(EventCodecs codecs, Event event) {
+    return gson.toJson(codecs.encode(TOPIC, event), Event.class);
+  }
+
+  private Event receive(EventCodecs codecs, String wire) throws IOException {
+    return codecs.decode(TOPIC, gson.fromJson(wire, Event.class));
+  }
+
+  private void run(Event event, String codecName, EventCodecs codecs) throws IOException {
+    String wire = publish(codecs, event);
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      blackhole += publish(codecs, event).length();
+      blackhole += receive(codecs, wire).eventCreatedOn;
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      blackhole += publish(codecs, event).length();
+    }
+    long publish = nsPerOp(start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      blackhole += receive(codecs, wire).eventCreatedOn;
+    }
+    long receive = nsPerOp(start);
+
+    System.out.printf(
+        "%-20s %-14s %10d %12d %12d%n",
+        event.getType(), codecName, wire.getBytes(UTF_8).length, publish, receive);
+    if (blackhole == 42) {
+      System.out.println();
+    }
+  }
+
+  private static long nsPerOp(long start) {
+    return (System.nanoTime() - start) / MEASURED_ITERATIONS;
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.broker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage;
+import com.google.common.base.Strings;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventGsonProvider;
+import com.google.gerrit.server.events.RefUpdatedEvent;
+import com.google.gson.Gson;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.EncodedEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.MultiSiteEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectIndexEvent;
+import java.io.IOException;
+import java.util.UUID;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EventCodecsTest {
+  private static final String TOPIC = "GERRIT.EVENT.STREAM";
+  private static final int COMPRESSION_THRESHOLD = 512;
+
+  @Mock private BrokerMetrics brokerMetrics;
+
+  private Gson gson;
+  private BinaryEventCodec binaryCodec;
+
+  @Before
+  public void setUp() {
+    MultiSiteEvent.registerEventTypes();
+    gson = new EventGsonProvider().get();
+    binaryCodec = new BinaryEventCodec(gson);
+  }
+
+  @Test
+  public void shouldWrapEventsIntoEncodedEventWhenBinaryCodecIsConfigured() throws Exception {
+    EventCodecs codecs = newEventCodecs(BinaryEventCodec.NAME, false);
+    ProjectIndexEvent event = new ProjectIndexEvent("foo");
+
+    Event encoded = codecs.encode(TOPIC, event);
+
+    assertThat(encoded).isInstanceOf(EncodedEvent.class);
+    assertThat(codecs.decode(TOPIC, encoded)).isEqualTo(event);
+  }
+
+  @Test
+  public void shouldFallbackToJsonForUnsupportedEvents() {
+    EventCodecs codecs = newEventCodecs(BinaryEventCodec.NAME, false);
+    Event streamEvent = new RefUpdatedEvent();
+
+    assertThat(codecs.encode(TOPIC, streamEvent)).isSameInstanceAs(streamEvent);
+  }
+
+  @Test
+  public void shouldNotEncodeEventsWhenJsonCodecIsConfigured() {
+    EventCodecs codecs = newEventCodecs(EventCodecs.JSON, false);
+    ProjectIndexEvent event = new ProjectIndexEvent("foo");
+
+    assertThat(codecs.encode(TOPIC, event)).isSameInstanceAs(event);
+  }
+
+  @Test
+  public void shouldFailDecodingEventsOfUnknownCodec() {
+    EventCodecs codecs = newEventCodecs(EventCodecs.JSON, false);
+
+    assertThrows(
+        IOException.class, () -> codecs.decode(TOPIC, new EncodedEvent("unknown", 1, "")));
+  }
+
+  @Test
+  public void shouldCompressJsonEventsAboveThreshold() throws Exception {
+    EventCodecs codecs = newEventCodecs(EventCodecs.JSON, true);
+    ProjectIndexEvent event = new ProjectIndexEvent(Strings.repeat("foo/", COMPRESSION_THRESHOLD));
+
+    Event encoded = codecs.encode(TOPIC, event);
+
+    assertThat(encoded).isInstanceOf(EncodedEvent.class);
+    EncodedEvent envelope = (EncodedEvent) encoded;
+    assertThat(envelope.codec).isEqualTo(EventCodecs.JSON);
+    assertThat(envelope.compression).isEqualTo(EventCodecs.GZIP);
+    assertThat(gson.toJson(encoded).length()).isLessThan(gson.toJson(event).length());
+    verify(brokerMetrics).recordCompression(eq(TOPIC), anyLong(), anyLong(), anyLong());
+
+    assertThat(codecs.decode(TOPIC, encoded)).isEqualTo(event);
+    verify(brokerMetrics).recordDecompression(eq(TOPIC), anyLong());
+  }
+
+  @Test
+  public void shouldCompressBinaryEventsAboveThreshold() throws Exception {
+    EventCodecs codecs = newEventCodecs(BinaryEventCodec.NAME, true);
+    ProjectIndexEvent event = new ProjectIndexEvent(Strings.repeat("foo/", COMPRESSION_THRESHOLD));
+
+    EncodedEvent encoded = (EncodedEvent) codecs.encode(TOPIC, event);
+
+    assertThat(encoded.codec).isEqualTo(BinaryEventCodec.NAME);
+    assertThat(encoded.compression).isEqualTo(EventCodecs.GZIP);
+    assertThat(codecs.decode(TOPIC, encoded)).isEqualTo(event);
+  }
+
+  @Test
+  public void shouldNotCompressEventsBelowThreshold() {
+    EventCodecs codecs = newEventCodecs(EventCodecs.JSON, true);
+    ProjectIndexEvent event = new ProjectIndexEvent("foo");
+
+    assertThat(codecs.encode(TOPIC, event)).isSameInstanceAs(event);
+  }
+
+  @Test
+  public void shouldNotCompressEventsOfOtherTopics() {
+    EventCodecs codecs = newEventCodecs(EventCodecs.JSON, true);
+    ProjectIndexEvent event = new ProjectIndexEvent(Strings.repeat("foo/", COMPRESSION_THRESHOLD));
+
+    assertThat(codecs.encode("GERRIT.EVENT.INDEX", event)).isSameInstanceAs(event);
+  }
+
+  @Test
+  public void shouldDecodeLazyMessagesOnlyWhenRequested() throws Exception {
+    EventCodecs codecs = newEventCodecs(BinaryEventCodec.NAME, false);
+    ProjectIndexEvent event = new ProjectIndexEvent("foo");
+    EncodedEvent encoded = (EncodedEvent) codecs.encode(TOPIC, event);
+    EventMessage.Header header = new EventMessage.Header(UUID.randomUUID(), UUID.randomUUID());
+    LazyEventMessage message = new LazyEventMessage(header, encoded, TOPIC, codecs);
+
+    assertThat(message.isDecoded()).isFalse();
+    assertThat(message.getEvent()).isSameInstanceAs(encoded);
+    assertThat(message.encodedSize()).isEqualTo(encoded.payload.length());
+
+    assertThat(message.decode().getEvent()).isEqualTo(event);
+    assertThat(message.decode().getHeader()).isSameInstanceAs(header);
+    assertThat(message.isDecoded()).isTrue();
+  }
+
+  @Test
+  public void shouldComputeThePayloadSizeOfTheEventsPublishedAsJson() {
+    EventCodecs codecs = newEventCodecs(EventCodecs.JSON, false);
+    ProjectIndexEvent event = new ProjectIndexEvent("föö");
+
+    assertThat(codecs.payloadBytes(codecs.encode(TOPIC, event)))
+        .isEqualTo(gson.toJson(event, Event.class).getBytes(UTF_8).length);
+  }
+
+  @Test
+  public void shouldComputeThePayloadSizeOfTheEncodedEvents() {
+    EventCodecs codecs = newEventCodecs(BinaryEventCodec.NAME, false);
+    EncodedEvent encoded = (EncodedEvent) codecs.encode(TOPIC, new ProjectIndexEvent("foo"));
+
+    assertThat(codecs.payloadBytes(encoded)).isEqualTo(encoded.payload.length());
+  }
+
+  @Test
+  public void shouldNotEstimateDecodingTimeBeforeDecodingAnyEvent() {
+    EventCodecs codecs = newEventCodecs(BinaryEventCodec.NAME, false);
+    EncodedEvent encoded = (EncodedEvent) codecs.encode(TOPIC, new ProjectIndexEvent("foo"));
+
+    assertThat(codecs.estimatedDecodeNanos(encoded)).isEqualTo(0);
+  }
+
+  private EventCodecs newEventCodecs(String codecName, boolean compressTopic) {
+    Config multiSiteConfig = new Config();
+    multiSiteConfig.setString("broker", null, "codec", codecName);
+    multiSiteConfig.setInt("broker", null, "compressionThreshold", COMPRESSION_THRESHOLD);
+    if (compressTopic) {
+      multiSiteConfig.setString("broker", null, "compressTopic", TOPIC);
+    }
+    DynamicSet<EventCodec> codecSet = new DynamicSet<>();
+    codecSet.add("multi-site", binaryCodec);
+    return new EventCodecs(
+        codecSet, gson, brokerMetrics, new Configuration(multiSiteConfig, new Config()));
+  }
+}
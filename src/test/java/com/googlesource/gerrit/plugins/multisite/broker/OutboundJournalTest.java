@@ -0,0 +1,145 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.broker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.server.events.EventGsonProvider;
+import com.google.gson.Gson;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.MultiSiteEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectIndexEvent;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutboundJournalTest {
+  private static final String TOPIC = "GERRIT.EVENT.INDEX";
+  private static final int JOURNAL_MAX_SIZE = 1024;
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Gson gson;
+  private Path journalFile;
+  private OutboundJournal journal;
+
+  @Before
+  public void setUp() throws Exception {
+    MultiSiteEvent.registerEventTypes();
+    gson = new EventGsonProvider().get();
+    journalFile = tempFolder.getRoot().toPath().resolve(OutboundJournal.JOURNAL_FILE);
+    journal = newJournal();
+  }
+
+  @After
+  public void tearDown() {
+    journal.stop();
+  }
+
+  private OutboundJournal newJournal() {
+    OutboundJournal newJournal = new OutboundJournal(journalFile, true, JOURNAL_MAX_SIZE, gson);
+    newJournal.start();
+    return newJournal;
+  }
+
+  @Test
+  public void shouldReturnEntriesInAppendOrder() {
+    assertThat(journal.append(TOPIC, new ProjectIndexEvent("first"))).isTrue();
+    assertThat(journal.append(TOPIC, new ProjectIndexEvent("second"))).isTrue();
+    assertThat(journal.depth()).isEqualTo(2);
+
+    assertThat(journal.peek().get().event).isEqualTo(new ProjectIndexEvent("first"));
+    journal.remove();
+    assertThat(journal.peek().get().event).isEqualTo(new ProjectIndexEvent("second"));
+    assertThat(journal.peek().get().topic).isEqualTo(TOPIC);
+    journal.remove();
+
+    assertThat(journal.isEmpty()).isTrue();
+    assertThat(journal.peek().isPresent()).isFalse();
+  }
+
+  @Test
+  public void shouldKeepEntriesAcrossRestarts() {
+    journal.append(TOPIC, new ProjectIndexEvent("first"));
+    journal.append(TOPIC, new ProjectIndexEvent("second"));
+    journal.remove();
+    journal.stop();
+
+    journal = newJournal();
+
+    assertThat(journal.depth()).isEqualTo(1);
+    assertThat(journal.peek().get().event).isEqualTo(new ProjectIndexEvent("second"));
+  }
+
+  @Test
+  public void shouldRejectEntriesWhenFull() {
+    int appended = 0;
+    while (journal.append(TOPIC, new ProjectIndexEvent("project-" + appended))) {
+      appended++;
+    }
+
+    assertThat(appended).isGreaterThan(0);
+    assertThat(journal.depth()).isEqualTo(appended);
+  }
+
+  @Test
+  public void shouldReuseSpaceOfRemovedEntries() {
+    int appended = 0;
+    while (journal.append(TOPIC, new ProjectIndexEvent("project-" + appended))) {
+      appended++;
+    }
+    journal.remove();
+
+    assertThat(journal.append(TOPIC, new ProjectIndexEvent("project-0"))).isTrue();
+    assertThat(journal.peek().get().event).isEqualTo(new ProjectIndexEvent("project-1"));
+  }
+
+  @Test
+  public void shouldKeepTheCompactedEntriesAcrossRestarts() {
+    int appended = 0;
+    while (journal.append(TOPIC, new ProjectIndexEvent("project-" + appended))) {
+      appended++;
+    }
+    journal.remove();
+    journal.append(TOPIC, new ProjectIndexEvent("last"));
+
+    journal.stop();
+    journal = newJournal();
+
+    assertThat(journal.depth()).isEqualTo(appended);
+    assertThat(journal.peek().get().event).isEqualTo(new ProjectIndexEvent("project-1"));
+    assertThat(Files.exists(compactedFile())).isFalse();
+  }
+
+  @Test
+  public void shouldIgnoreACompactedJournalLeftBehindByACrash() throws Exception {
+    journal.append(TOPIC, new ProjectIndexEvent("first"));
+    journal.stop();
+    Files.write(compactedFile(), new byte[] {1, 2, 3});
+
+    journal = newJournal();
+
+    assertThat(journal.depth()).isEqualTo(1);
+    assertThat(journal.peek().get().event).isEqualTo(new ProjectIndexEvent("first"));
+    assertThat(Files.exists(compactedFile())).isFalse();
+  }
+
+  private Path compactedFile() {
+    return journalFile.resolveSibling(OutboundJournal.JOURNAL_FILE + ".compacted");
+  }
+}
@@ -16,12 +16,14 @@ package com.googlesource.gerrit.plugins.multisite.cache;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.gerrit.server.git.WorkQueue;
 import com.googlesource.gerrit.plugins.multisite.Configuration;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -42,6 +44,7 @@ public class CacheExecutorProviderTest {
     when(workQueueMock.createQueue(4, "Forward-Cache-Eviction-Event")).thenReturn(executorMock);
     Configuration configMock = mock(Configuration.class, Answers.RETURNS_DEEP_STUBS);
     when(configMock.cache().threadPoolSize()).thenReturn(4);
+    when(configMock.broker().shutdownDrainTimeoutMs()).thenReturn(5000);
 
     cacheExecutorProvider = new CacheExecutorProvider(workQueueMock, configMock);
   }
@@ -59,4 +62,23 @@ public class CacheExecutorProviderTest {
     verify(executorMock).shutdown();
     assertThat(cacheExecutorProvider.get()).isNull();
   }
+
+  @Test
+  public void shouldLetThePendingTasksRunUpToTheDrainTimeoutWhenStopping() throws Exception {
+    when(executorMock.awaitTermination(5000, TimeUnit.MILLISECONDS)).thenReturn(true);
+
+    cacheExecutorProvider.stop();
+
+    verify(executorMock).shutdown();
+    verify(executorMock, never()).shutdownNow();
+  }
+
+  @Test
+  public void shouldCancelThePendingTasksAfterTheDrainTimeout() throws Exception {
+    when(executorMock.awaitTermination(5000, TimeUnit.MILLISECONDS)).thenReturn(false);
+
+    cacheExecutorProvider.stop();
+
+    verify(executorMock).shutdownNow();
+  }
 }
@@ -0,0 +1,185 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.consumer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.nio.file.Path;
+import java.util.UUID;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConsumerCheckpointsTest {
+  private static final String TOPIC = "GERRIT.EVENT.INDEX";
+  private static final UUID SOURCE = UUID.randomUUID();
+  private static final UUID OTHER_SOURCE = UUID.randomUUID();
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Path checkpointsDir;
+  private ConsumerCheckpoints checkpoints;
+
+  @Before
+  public void setUp() {
+    checkpointsDir = tempFolder.getRoot().toPath().resolve(ConsumerCheckpoints.CHECKPOINTS_DIR);
+    checkpoints = new ConsumerCheckpoints(checkpointsDir, true);
+  }
+
+  @Test
+  public void shouldNotHaveACheckpointBeforeApplyingAnyEvent() {
+    assertThat(checkpoints.hasCheckpoint(TOPIC)).isFalse();
+    assertThat(checkpoints.isApplied(TOPIC, SOURCE, 100)).isFalse();
+  }
+
+  @Test
+  public void shouldSkipEventsPublishedBeforeTheLastAppliedOneBeforeStopping() {
+    apply(SOURCE, 100);
+    apply(SOURCE, 200);
+
+    ConsumerCheckpoints restored = restart();
+
+    assertThat(restored.isApplied(TOPIC, SOURCE, 150)).isTrue();
+    assertThat(restored.isApplied(TOPIC, SOURCE, 200)).isFalse();
+    assertThat(restored.isApplied(TOPIC, SOURCE, 250)).isFalse();
+  }
+
+  @Test
+  public void shouldNotSkipEventsReceivedOutOfOrderWhilstRunning() {
+    apply(SOURCE, 200);
+
+    assertThat(checkpoints.hasCheckpoint(TOPIC)).isFalse();
+    assertThat(checkpoints.isApplied(TOPIC, SOURCE, 150)).isFalse();
+  }
+
+  @Test
+  public void shouldKeepTheCheckpointOfEachSource() {
+    apply(SOURCE, 200);
+    apply(OTHER_SOURCE, 100);
+
+    ConsumerCheckpoints restored = restart();
+
+    assertThat(restored.isApplied(TOPIC, SOURCE, 150)).isTrue();
+    assertThat(restored.isApplied(TOPIC, OTHER_SOURCE, 150)).isFalse();
+  }
+
+  @Test
+  public void shouldNotSkipEventsPublishedAfterAnEventStillBeingProcessed() {
+    checkpoints.started(TOPIC, SOURCE, 100);
+    apply(SOURCE, 200);
+
+    ConsumerCheckpoints restored = restart();
+
+    assertThat(restored.isApplied(TOPIC, SOURCE, 50)).isTrue();
+    assertThat(restored.isApplied(TOPIC, SOURCE, 150)).isFalse();
+  }
+
+  @Test
+  public void shouldRestoreTheCheckpointsSavedOnStop() {
+    apply(SOURCE, 200);
+
+    ConsumerCheckpoints restored = restart();
+
+    assertThat(restored.hasCheckpoint(TOPIC)).isTrue();
+    assertThat(restored.isApplied(TOPIC, SOURCE, 150)).isTrue();
+    assertThat(restored.isApplied(TOPIC, SOURCE, 250)).isFalse();
+  }
+
+  @Test
+  public void shouldNotSkipEventsPublishedAfterAFailedEvent() {
+    apply(SOURCE, 100);
+    checkpoints.started(TOPIC, SOURCE, 150);
+    checkpoints.completed(TOPIC, SOURCE, 150, false);
+    apply(SOURCE, 200);
+
+    ConsumerCheckpoints restored = restart();
+
+    assertThat(restored.isApplied(TOPIC, SOURCE, 120)).isTrue();
+    assertThat(restored.isApplied(TOPIC, SOURCE, 150)).isFalse();
+    assertThat(restored.isApplied(TOPIC, SOURCE, 180)).isFalse();
+  }
+
+  @Test
+  public void shouldReplayTheTopicAfterAFailedEventEvenIfStoppedCleanly() {
+    checkpoints.started(TOPIC, SOURCE, 100);
+    checkpoints.completed(TOPIC, SOURCE, 100, false);
+    checkpoints.stop();
+
+    ConsumerCheckpoints restored = new ConsumerCheckpoints(checkpointsDir, true);
+
+    assertThat(restored.needsReplay(TOPIC)).isTrue();
+    assertThat(restored.isApplied(TOPIC, SOURCE, 100)).isFalse();
+  }
+
+  @Test
+  public void shouldSkipEventsOfAnUnknownSourcePublishedBeforeTheCheckpointsWereCreated() {
+    long createdOn = System.currentTimeMillis();
+    apply(SOURCE, 200);
+
+    ConsumerCheckpoints restored = restart();
+
+    assertThat(restored.isApplied(TOPIC, OTHER_SOURCE, createdOn - 1000)).isTrue();
+    assertThat(restored.isApplied(TOPIC, OTHER_SOURCE, System.currentTimeMillis() + 1000))
+        .isFalse();
+  }
+
+  @Test
+  public void shouldNotReplayTheTopicWhenStoppedWithoutLeavingEventsBehind() {
+    apply(SOURCE, 200);
+    checkpoints.stop();
+
+    ConsumerCheckpoints restored = new ConsumerCheckpoints(checkpointsDir, true);
+
+    assertThat(restored.hasCheckpoint(TOPIC)).isTrue();
+    assertThat(restored.needsReplay(TOPIC)).isFalse();
+    assertThat(restored.isApplied(TOPIC, SOURCE, 150)).isFalse();
+  }
+
+  @Test
+  public void shouldReplayTheTopicWhenLastSavedWhilstRunning() {
+    apply(SOURCE, 200);
+    checkpoints.stop();
+    ConsumerCheckpoints running = new ConsumerCheckpoints(checkpointsDir, true);
+    running.started(TOPIC, SOURCE, 300);
+    running.saveOnStop();
+
+    ConsumerCheckpoints restored = new ConsumerCheckpoints(checkpointsDir, true);
+
+    assertThat(restored.needsReplay(TOPIC)).isTrue();
+    assertThat(restored.isApplied(TOPIC, SOURCE, 150)).isTrue();
+    assertThat(restored.isApplied(TOPIC, SOURCE, 250)).isFalse();
+  }
+
+  @Test
+  public void shouldNotSkipAnyEventWhenDisabled() {
+    checkpoints = new ConsumerCheckpoints(checkpointsDir, false);
+    apply(SOURCE, 200);
+
+    assertThat(checkpoints.hasCheckpoint(TOPIC)).isFalse();
+    assertThat(checkpoints.isApplied(TOPIC, SOURCE, 150)).isFalse();
+  }
+
+  private ConsumerCheckpoints restart() {
+    checkpoints.leftBehind(TOPIC);
+    checkpoints.stop();
+    return new ConsumerCheckpoints(checkpointsDir, true);
+  }
+
+  private void apply(UUID source, long publishedOn) {
+    checkpoints.started(TOPIC, source, publishedOn);
+    checkpoints.completed(TOPIC, source, publishedOn, true);
+  }
+}
@@ -0,0 +1,187 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.consumer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventGsonProvider;
+import com.google.gson.Gson;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.AccountIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.MultiSiteEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectIndexEvent;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeadLetterStoreTest {
+  private static final String TOPIC = "GERRIT.EVENT.INDEX";
+  private static final IOException FAILURE = new IOException("poison");
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Gson gson;
+  private Path deadLettersFile;
+  private DeadLetterStore deadLetters;
+
+  @Before
+  public void setUp() {
+    MultiSiteEvent.registerEventTypes();
+    gson = new EventGsonProvider().get();
+    deadLettersFile = tempFolder.getRoot().toPath().resolve(DeadLetterStore.DEAD_LETTERS_FILE);
+    deadLetters = newDeadLetterStore(true);
+  }
+
+  @After
+  public void tearDown() {
+    deadLetters.stop();
+  }
+
+  private DeadLetterStore newDeadLetterStore(boolean enabled) {
+    return newDeadLetterStore(enabled, 1);
+  }
+
+  private DeadLetterStore newDeadLetterStore(boolean enabled, int maxFailures) {
+    DeadLetterStore store = new DeadLetterStore(deadLettersFile, enabled, maxFailures, gson);
+    store.start();
+    return store;
+  }
+
+  private static EventMessage message(Event event) {
+    return new EventMessage(new EventMessage.Header(UUID.randomUUID(), UUID.randomUUID()), event);
+  }
+
+  @Test
+  public void shouldQuarantineFailedEventsOnlyOnce() {
+    EventMessage message = message(new ChangeIndexEvent("foo", 1, false));
+
+    deadLetters.recordFailure(TOPIC, "message-1", message, FAILURE);
+    deadLetters.recordFailure(TOPIC, "message-1", message, FAILURE);
+
+    assertThat(deadLetters.isQuarantined("message-1")).isTrue();
+    assertThat(deadLetters.isQuarantined("message-2")).isFalse();
+    assertThat(deadLetters.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldQuarantineEventsOnlyOnceTheyFailedTheMaximumNumberOfTimes() {
+    deadLetters.stop();
+    deadLetters = newDeadLetterStore(true, 3);
+    EventMessage message = message(new ChangeIndexEvent("foo", 1, false));
+
+    deadLetters.recordFailure(TOPIC, "message-1", message, FAILURE);
+    deadLetters.recordFailure(TOPIC, "message-1", message, FAILURE);
+    assertThat(deadLetters.isQuarantined("message-1")).isFalse();
+
+    deadLetters.recordFailure(TOPIC, "message-1", message, FAILURE);
+    assertThat(deadLetters.isQuarantined("message-1")).isTrue();
+  }
+
+  @Test
+  public void shouldListQuarantinedEventsByTypeAndProject() {
+    deadLetters.recordFailure(TOPIC, "m1", message(new ChangeIndexEvent("foo", 1, false)), FAILURE);
+    deadLetters.recordFailure(TOPIC, "m2", message(new ProjectIndexEvent("foo")), FAILURE);
+    deadLetters.recordFailure(TOPIC, "m3", message(new ChangeIndexEvent("bar", 2, false)), FAILURE);
+    deadLetters.recordFailure(TOPIC, "m4", message(new AccountIndexEvent(3)), FAILURE);
+
+    assertThat(messageIds(Optional.of("change-index"), Optional.empty()))
+        .containsExactly("m1", "m3")
+        .inOrder();
+    assertThat(messageIds(Optional.empty(), Optional.of("foo")))
+        .containsExactly("m1", "m2")
+        .inOrder();
+    assertThat(messageIds(Optional.of("change-index"), Optional.of("bar"))).containsExactly("m3");
+    assertThat(messageIds(Optional.empty(), Optional.empty())).hasSize(4);
+  }
+
+  @Test
+  public void shouldKeepQuarantinedEventsAcrossRestarts() {
+    ChangeIndexEvent event = new ChangeIndexEvent("foo", 1, false);
+    EventMessage message = message(event);
+    deadLetters.recordFailure(TOPIC, "m1", message, FAILURE);
+    deadLetters.recordFailure(TOPIC, "m2", message(new ProjectIndexEvent("foo")), FAILURE);
+    deadLetters.resolve(deadLetters.list(Optional.empty(), Optional.empty()).get(1).id);
+    deadLetters.stop();
+
+    deadLetters = newDeadLetterStore(true);
+
+    assertThat(deadLetters.isQuarantined("m1")).isTrue();
+    assertThat(deadLetters.isQuarantined("m2")).isFalse();
+    DeadLetterStore.Entry entry = deadLetters.list(Optional.empty(), Optional.empty()).get(0);
+    assertThat(entry.topic).isEqualTo(TOPIC);
+    assertThat(entry.project).isEqualTo("foo");
+    assertThat(entry.eventId).isEqualTo(message.getHeader().eventId);
+    assertThat(entry.sourceInstanceId).isEqualTo(message.getHeader().sourceInstanceId);
+    assertThat(deadLetters.event(entry)).isEqualTo(event);
+  }
+
+  @Test
+  public void shouldNotAssignTheIdsOfResolvedEventsAgain() {
+    deadLetters.recordFailure(TOPIC, "m1", message(new ProjectIndexEvent("foo")), FAILURE);
+    long resolvedId = deadLetters.list(Optional.empty(), Optional.empty()).get(0).id;
+    deadLetters.resolve(resolvedId);
+    deadLetters.stop();
+
+    deadLetters = newDeadLetterStore(true);
+    deadLetters.recordFailure(TOPIC, "m2", message(new ProjectIndexEvent("foo")), FAILURE);
+
+    assertThat(deadLetters.list(Optional.empty(), Optional.empty()).get(0).id)
+        .isGreaterThan(resolvedId);
+  }
+
+  @Test
+  public void shouldRemoveTheResolvedEventsFromTheFileAtStartup() throws Exception {
+    deadLetters.recordFailure(TOPIC, "m1", message(new ProjectIndexEvent("foo")), FAILURE);
+    deadLetters.recordFailure(TOPIC, "m2", message(new ProjectIndexEvent("bar")), FAILURE);
+    deadLetters.resolve(deadLetters.list(Optional.empty(), Optional.of("foo")).get(0).id);
+    deadLetters.stop();
+    assertThat(Files.readAllLines(deadLettersFile)).hasSize(3);
+
+    deadLetters = newDeadLetterStore(true);
+
+    List<String> records = Files.readAllLines(deadLettersFile);
+    assertThat(records).hasSize(1);
+    assertThat(records.get(0)).contains("\"messageId\":\"m2\"");
+    assertThat(deadLetters.isQuarantined("m1")).isFalse();
+    assertThat(deadLetters.isQuarantined("m2")).isTrue();
+  }
+
+  @Test
+  public void shouldNotQuarantineEventsWhenDisabled() {
+    deadLetters.stop();
+    deadLetters = newDeadLetterStore(false);
+
+    deadLetters.recordFailure(TOPIC, "m1", message(new ProjectIndexEvent("foo")), FAILURE);
+
+    assertThat(deadLetters.isQuarantined("m1")).isFalse();
+  }
+
+  private Iterable<String> messageIds(Optional<String> type, Optional<String> project) {
+    return deadLetters.list(type, project).stream()
+        .map(entry -> entry.messageId)
+        .collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,108 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.consumer;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.git.WorkQueue;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import com.googlesource.gerrit.plugins.multisite.broker.BrokerApiWrapper;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ForwardedIndexBackpressureTest {
+  private static final int HIGH_WATER_MARK = 10;
+  private static final int LOW_WATER_MARK = 2;
+
+  @Mock private BrokerApiWrapper brokerApi;
+  @Mock private ScheduledThreadPoolExecutor indexExecutor;
+  @Mock private WorkQueue workQueue;
+  @Mock private MetricMaker metricMaker;
+
+  private BlockingQueue<Runnable> indexQueue;
+  private ForwardedIndexBackpressure objectUnderTest;
+
+  @Before
+  public void setUp() {
+    indexQueue = new LinkedBlockingQueue<>();
+    when(indexExecutor.getQueue()).thenReturn(indexQueue);
+
+    Config multiSiteConfig = new Config();
+    multiSiteConfig.setInt("index", null, "queueHighWaterMark", HIGH_WATER_MARK);
+    multiSiteConfig.setInt("index", null, "queueLowWaterMark", LOW_WATER_MARK);
+    objectUnderTest =
+        new ForwardedIndexBackpressure(
+            brokerApi,
+            indexExecutor,
+            workQueue,
+            new Configuration(multiSiteConfig, new Config()),
+            metricMaker);
+  }
+
+  @Test
+  public void shouldPauseConsumersAboveTheHighWaterMark() {
+    fillIndexQueue(HIGH_WATER_MARK + 1);
+
+    objectUnderTest.check();
+
+    verify(brokerApi).pauseConsumers();
+  }
+
+  @Test
+  public void shouldNotPauseConsumersAtTheHighWaterMark() {
+    fillIndexQueue(HIGH_WATER_MARK);
+
+    objectUnderTest.check();
+
+    verify(brokerApi, never()).pauseConsumers();
+  }
+
+  @Test
+  public void shouldKeepConsumersPausedAboveTheLowWaterMark() {
+    when(brokerApi.isConsumersPaused()).thenReturn(true);
+    fillIndexQueue(LOW_WATER_MARK + 1);
+
+    objectUnderTest.check();
+
+    verify(brokerApi, never()).resumeConsumers();
+  }
+
+  @Test
+  public void shouldResumeConsumersAtTheLowWaterMark() {
+    when(brokerApi.isConsumersPaused()).thenReturn(true);
+    fillIndexQueue(LOW_WATER_MARK);
+
+    objectUnderTest.check();
+
+    verify(brokerApi).resumeConsumers();
+  }
+
+  private void fillIndexQueue(int tasks) {
+    for (int i = 0; i < tasks; i++) {
+      indexQueue.add(() -> {});
+    }
+  }
+}
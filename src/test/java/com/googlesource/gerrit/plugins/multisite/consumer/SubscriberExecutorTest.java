@@ -0,0 +1,96 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.consumer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.googlesource.gerrit.plugins.multisite.KeyedExecutor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubscriberExecutorTest {
+  private static final int MAX_PENDING_EVENTS = 2;
+
+  private BlockingQueue<Runnable> submitted;
+  private List<String> executed;
+  private SubscriberExecutor objectUnderTest;
+
+  @Before
+  public void setUp() {
+    submitted = new LinkedBlockingQueue<>();
+    executed = new ArrayList<>();
+    objectUnderTest =
+        new SubscriberExecutor(new KeyedExecutor(submitted::add), MAX_PENDING_EVENTS);
+  }
+
+  @Test
+  public void shouldExecuteEventsOfTheSameKeyInOrder() {
+    objectUnderTest.execute("project1", task("project1-1"));
+    objectUnderTest.execute("project1", task("project1-2"));
+
+    runAll();
+
+    assertThat(executed).containsExactly("project1-1", "project1-2").inOrder();
+    assertThat(objectUnderTest.pendingEvents()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldBlockTheCallerWhenTooManyEventsArePending() throws Exception {
+    objectUnderTest.execute("project1", task("project1-1"));
+    objectUnderTest.execute("project2", task("project2-1"));
+
+    Thread caller = new Thread(() -> objectUnderTest.execute("project3", task("project3-1")));
+    caller.start();
+    caller.join(100);
+    assertThat(caller.isAlive()).isTrue();
+
+    submitted.poll().run();
+    caller.join(TimeUnit.SECONDS.toMillis(10));
+    assertThat(caller.isAlive()).isFalse();
+
+    runAll();
+    assertThat(executed).containsExactly("project1-1", "project2-1", "project3-1");
+  }
+
+  @Test
+  public void shouldReleaseThePendingSlotWhenTheEventFails() {
+    for (int i = 0; i <= MAX_PENDING_EVENTS; i++) {
+      objectUnderTest.execute(
+          "project1",
+          () -> {
+            throw new IllegalStateException("test failure");
+          });
+      runAll();
+    }
+
+    assertThat(objectUnderTest.pendingEvents()).isEqualTo(0);
+  }
+
+  private Runnable task(String name) {
+    return () -> executed.add(name);
+  }
+
+  private void runAll() {
+    Runnable next;
+    while ((next = submitted.poll()) != null) {
+      next.run();
+    }
+  }
+}
@@ -20,7 +20,9 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.gerrit.server.git.WorkQueue;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import org.eclipse.jgit.lib.Config;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -35,8 +37,10 @@ public class EventExecutorProviderTest {
   @Before
   public void setUp() throws Exception {
     WorkQueue workQueueMock = mock(WorkQueue.class);
-    when(workQueueMock.createQueue(1, "Forward-Stream-Event")).thenReturn(executorMock);
-    eventsExecutorProvider = new EventExecutorProvider(workQueueMock);
+    Configuration config = new Configuration(new Config(), new Config());
+    when(workQueueMock.createQueue(config.event().threadPoolSize(), "Forward-Stream-Event"))
+        .thenReturn(executorMock);
+    eventsExecutorProvider = new EventExecutorProvider(workQueueMock, config);
   }
 
   @Test
@@ -44,6 +48,17 @@ public class EventExecutorProviderTest {
     assertThat(eventsExecutorProvider.get()).isEqualTo(executorMock);
   }
 
+  @Test
+  public void shouldCreateQueueWithConfiguredThreadPoolSize() throws Exception {
+    Config multiSiteConfig = new Config();
+    multiSiteConfig.setInt("event", null, "threadPoolSize", 8);
+    WorkQueue workQueueMock = mock(WorkQueue.class);
+
+    new EventExecutorProvider(workQueueMock, new Configuration(multiSiteConfig, new Config()));
+
+    verify(workQueueMock).createQueue(8, "Forward-Stream-Event");
+  }
+
   @Test
   public void testStop() throws Exception {
     eventsExecutorProvider.start();
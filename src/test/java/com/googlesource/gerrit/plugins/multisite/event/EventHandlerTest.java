@@ -24,10 +24,12 @@ import static org.mockito.Mockito.when;
 
 import com.gerritforge.gerrit.globalrefdb.validation.ProjectsFilter;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.server.events.Event;
 import com.google.gerrit.server.events.ProjectEvent;
 import com.google.gerrit.server.events.RefUpdatedEvent;
+import com.googlesource.gerrit.plugins.multisite.KeyedExecutor;
 import com.googlesource.gerrit.plugins.multisite.event.EventHandler.EventTask;
 import com.googlesource.gerrit.plugins.multisite.forwarder.Context;
 import com.googlesource.gerrit.plugins.multisite.forwarder.StreamEventForwarder;
@@ -49,7 +51,10 @@ public class EventHandlerTest {
   public void setUp() {
     when(projectsFilter.matches(any(ProjectEvent.class))).thenReturn(true);
     eventHandler =
-        new EventHandler(asDynamicSet(forwarder), MoreExecutors.directExecutor(), projectsFilter);
+        new EventHandler(
+            asDynamicSet(forwarder),
+            new KeyedExecutor(MoreExecutors.directExecutor()),
+            projectsFilter);
   }
 
   private DynamicSet<StreamEventForwarder> asDynamicSet(StreamEventForwarder forwarder) {
@@ -61,6 +66,7 @@ public class EventHandlerTest {
   @Test
   public void shouldForwardAnyProjectEvent() throws Exception {
     ProjectEvent event = mock(ProjectEvent.class);
+    when(event.getProjectNameKey()).thenReturn(Project.nameKey("test_project"));
     eventHandler.onEvent(event);
     verify(forwarder).send(event);
   }
@@ -14,11 +14,18 @@
 
 package com.googlesource.gerrit.plugins.multisite.event;
 
+import static com.google.common.truth.Truth.assertThat;
 import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.Project;
 import com.google.gerrit.server.config.AllUsersName;
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedEventHandler;
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedIndexAccountHandler;
@@ -26,19 +33,26 @@ import com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedIndexChangeH
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedIndexGroupHandler;
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedIndexProjectHandler;
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedIndexingHandler;
+import com.googlesource.gerrit.plugins.multisite.forwarder.RefUpdateWaiters;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.AccountIndexEvent;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.GroupIndexEvent;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.IndexEvent;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.router.IndexEventCoalescer;
+import com.googlesource.gerrit.plugins.multisite.forwarder.router.IndexEventCoalescerMetrics;
 import com.googlesource.gerrit.plugins.multisite.forwarder.router.IndexEventRouter;
+import com.googlesource.gerrit.plugins.multisite.forwarder.router.PendingIndexEvents;
 import com.googlesource.gerrit.plugins.multisite.forwarder.router.StreamEventRouter;
 import com.googlesource.gerrit.plugins.replication.events.RefReplicationDoneEvent;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
 import org.eclipse.jgit.lib.ObjectId;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -51,6 +65,9 @@ public class IndexEventRouterTest {
   @Mock private ForwardedIndexGroupHandler indexGroupHandler;
   @Mock private ForwardedIndexProjectHandler indexProjectHandler;
   @Mock private ForwardedEventHandler forwardedEventHandler;
+  @Mock private ScheduledExecutorService indexExecutor;
+  @Mock private IndexEventCoalescerMetrics coalescerMetrics;
+  @Mock private PendingIndexEvents pendingEvents;
   private AllUsersName allUsersName = new AllUsersName("All-Users");
 
   @Before
@@ -61,7 +78,10 @@ public class IndexEventRouterTest {
             indexChangeHandler,
             indexGroupHandler,
             indexProjectHandler,
-            allUsersName);
+            allUsersName,
+            new IndexEventCoalescer(indexExecutor, 0, coalescerMetrics),
+            indexExecutor,
+            pendingEvents);
   }
 
   @Test
@@ -75,10 +95,43 @@ public class IndexEventRouterTest {
     verifyZeroInteractions(indexChangeHandler, indexGroupHandler, indexProjectHandler);
   }
 
+  @Test
+  public void routerShouldProcessTheEventsPendingSinceTheLastStop() throws Exception {
+    when(pendingEvents.load()).thenReturn(ImmutableList.of(new AccountIndexEvent(1)));
+
+    router.replayPendingEvents();
+
+    verify(indexAccountHandler)
+        .indexAsync(Account.id(1), ForwardedIndexingHandler.Operation.INDEX);
+  }
+
+  @Test
+  public void routerShouldStoreTheIndexEventsStillPendingAfterDraining() throws Exception {
+    ChangeIndexEvent changeEvent = new ChangeIndexEvent("project", 1, false);
+    when(indexChangeHandler.pendingRetries()).thenReturn(ImmutableList.of(changeEvent));
+    when(indexAccountHandler.pendingAccountsToIndex()).thenReturn(ImmutableSet.of(Account.id(2)));
+
+    router.drain(100);
+
+    verify(indexExecutor).shutdown();
+    verify(indexAccountHandler).flush();
+    verify(pendingEvents).save(ImmutableList.of(changeEvent));
+  }
+
+  @Test
+  public void routerShouldFlushTheAccountsPendingSinceTheLastStop() throws Exception {
+    when(indexAccountHandler.pendingAccountsToIndex()).thenReturn(ImmutableSet.of(Account.id(2)));
+
+    router.replayPendingEvents();
+
+    verify(indexAccountHandler).doAsyncIndex();
+  }
+
   @Test
   public void streamEventRouterShouldTriggerAccountIndexFlush() throws Exception {
 
-    StreamEventRouter streamEventRouter = new StreamEventRouter(forwardedEventHandler, router);
+    StreamEventRouter streamEventRouter =
+        new StreamEventRouter(forwardedEventHandler, router, new RefUpdateWaiters());
 
     final AccountIndexEvent event = new AccountIndexEvent(1);
     router.route(event);
@@ -145,6 +198,109 @@ public class IndexEventRouterTest {
     verifyZeroInteractions(indexAccountHandler, indexGroupHandler, indexProjectHandler);
   }
 
+  @Test
+  public void routerShouldDiscardTheCoalescedIndexingOfADeletedChange() throws Exception {
+    router =
+        new IndexEventRouter(
+            indexAccountHandler,
+            indexChangeHandler,
+            indexGroupHandler,
+            indexProjectHandler,
+            allUsersName,
+            new IndexEventCoalescer(indexExecutor, 500, coalescerMetrics),
+            indexExecutor,
+            pendingEvents);
+    ChangeIndexEvent deleted = new ChangeIndexEvent("", 1, true);
+
+    CompletableFuture<Void> indexed =
+        router.routeAsync(new ChangeIndexEvent("projectName", 1, false));
+    assertThat(indexed.isDone()).isFalse();
+    CompletableFuture<Void> deletion = router.routeAsync(deleted);
+
+    assertThat(indexed.isDone()).isTrue();
+    assertThat(deletion.isDone()).isTrue();
+    verify(indexChangeHandler)
+        .index("~1", ForwardedIndexingHandler.Operation.DELETE, Optional.of(deleted));
+    verifyNoMoreInteractions(indexChangeHandler);
+  }
+
+  @Test
+  public void routerShouldIndexTheChangesOfTheSameProjectTogether() throws Exception {
+    ChangeIndexEvent project1Change1 = new ChangeIndexEvent("project1", 1, false);
+    ChangeIndexEvent project2Change2 = new ChangeIndexEvent("project2", 2, false);
+    ChangeIndexEvent project1Change3 = new ChangeIndexEvent("project1", 3, false);
+
+    router.routeAll(ImmutableList.of(project1Change1, project2Change2, project1Change3));
+
+    verify(indexChangeHandler)
+        .indexAll(Project.nameKey("project1"), ImmutableList.of(project1Change1, project1Change3));
+    verify(indexChangeHandler)
+        .indexAll(Project.nameKey("project2"), ImmutableList.of(project2Change2));
+    verifyNoMoreInteractions(indexChangeHandler);
+    verifyZeroInteractions(indexAccountHandler, indexGroupHandler, indexProjectHandler);
+  }
+
+  @Test
+  public void routerShouldNotIndexTheChangesDeletedInTheSameBatch() throws Exception {
+    ChangeIndexEvent change1 = new ChangeIndexEvent("project1", 1, false);
+    ChangeIndexEvent change1Deleted = new ChangeIndexEvent("project1", 1, true);
+    ChangeIndexEvent change2 = new ChangeIndexEvent("project1", 2, false);
+
+    router.routeAll(ImmutableList.of(change1, change1Deleted, change2));
+
+    verify(indexChangeHandler)
+        .index(
+            "project1~1", ForwardedIndexingHandler.Operation.DELETE, Optional.of(change1Deleted));
+    verify(indexChangeHandler).indexAll(Project.nameKey("project1"), ImmutableList.of(change2));
+    verifyNoMoreInteractions(indexChangeHandler);
+  }
+
+  @Test
+  public void routerShouldNotIndexTheChangesDeletedInTheSameBatchWithoutProject()
+      throws Exception {
+    ChangeIndexEvent change1 = new ChangeIndexEvent("project1", 1, false);
+    ChangeIndexEvent change1Deleted = new ChangeIndexEvent("", 1, true);
+    ChangeIndexEvent change2 = new ChangeIndexEvent("project1", 2, false);
+
+    router.routeAll(ImmutableList.of(change1, change2, change1Deleted));
+
+    verify(indexChangeHandler)
+        .index("~1", ForwardedIndexingHandler.Operation.DELETE, Optional.of(change1Deleted));
+    verify(indexChangeHandler).indexAll(Project.nameKey("project1"), ImmutableList.of(change2));
+    verifyNoMoreInteractions(indexChangeHandler);
+  }
+
+  @Test
+  public void routerShouldIndexTheChangesAfterTheirDeletionInTheSameBatch() throws Exception {
+    ChangeIndexEvent change1Deleted = new ChangeIndexEvent("", 1, true);
+    ChangeIndexEvent change1 = new ChangeIndexEvent("project1", 1, false);
+
+    router.routeAll(ImmutableList.of(change1Deleted, change1));
+
+    InOrder inOrder = inOrder(indexChangeHandler);
+    inOrder
+        .verify(indexChangeHandler)
+        .index("~1", ForwardedIndexingHandler.Operation.DELETE, Optional.of(change1Deleted));
+    inOrder
+        .verify(indexChangeHandler)
+        .indexAll(Project.nameKey("project1"), ImmutableList.of(change1));
+    verifyNoMoreInteractions(indexChangeHandler);
+  }
+
+  @Test
+  public void routerShouldRouteOneByOneTheEventsOtherThanChanges() throws Exception {
+    ProjectIndexEvent projectEvent = new ProjectIndexEvent("projectName");
+    AccountIndexEvent accountEvent = new AccountIndexEvent(1);
+
+    router.routeAll(ImmutableList.of(projectEvent, accountEvent));
+
+    verify(indexProjectHandler)
+        .index("projectName", ForwardedIndexingHandler.Operation.INDEX, Optional.of(projectEvent));
+    verify(indexAccountHandler)
+        .indexAsync(Account.id(accountEvent.accountId), ForwardedIndexingHandler.Operation.INDEX);
+    verifyZeroInteractions(indexChangeHandler, indexGroupHandler);
+  }
+
   @Test
   public void routerShouldFailForNotRecognisedEvents() throws Exception {
     final IndexEvent newEventType = new IndexEvent("new-type") {};
@@ -19,11 +19,14 @@ import static org.mockito.Mockito.verify;
 import com.google.gerrit.entities.Account;
 import com.google.gerrit.entities.BranchNameKey;
 import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.RefNames;
 import com.google.gerrit.server.events.CommentAddedEvent;
 import com.google.gerrit.server.util.time.TimeUtil;
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedEventHandler;
+import com.googlesource.gerrit.plugins.multisite.forwarder.RefUpdateWaiters;
 import com.googlesource.gerrit.plugins.multisite.forwarder.router.IndexEventRouter;
 import com.googlesource.gerrit.plugins.multisite.forwarder.router.StreamEventRouter;
+import com.googlesource.gerrit.plugins.replication.events.RefReplicationDoneEvent;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -36,10 +39,11 @@ public class StreamEventRouterTest {
   private StreamEventRouter router;
   @Mock private ForwardedEventHandler streamEventHandler;
   @Mock private IndexEventRouter indexEventRouter;
+  @Mock private RefUpdateWaiters refWaiters;
 
   @Before
   public void setUp() {
-    router = new StreamEventRouter(streamEventHandler, indexEventRouter);
+    router = new StreamEventRouter(streamEventHandler, indexEventRouter, refWaiters);
   }
 
   @Test
@@ -49,6 +53,16 @@ public class StreamEventRouterTest {
     verify(streamEventHandler).dispatch(event);
   }
 
+  @Test
+  public void routerShouldWakeUpTheTasksWaitingForAReplicatedRef() throws Exception {
+    String metaRef = RefNames.changeMetaRef(Change.id(1));
+    RefReplicationDoneEvent event = new RefReplicationDoneEvent("proj", metaRef, 1);
+    router.route(event);
+    verify(refWaiters).refUpdated("proj", metaRef);
+    verify(indexEventRouter).onRefReplicated(event);
+    verify(streamEventHandler).dispatch(event);
+  }
+
   private Change aChange() {
     return new Change(
         Change.key("Iabcd1234abcd1234abcd1234abcd1234abcd1234"),
@@ -0,0 +1,185 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.index.change.ChangeIndexer;
+import com.google.gerrit.server.notedb.ChangeNotes;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.util.ManualRequestContext;
+import com.google.gerrit.server.util.OneOffRequestContext;
+import com.google.gerrit.server.util.time.TimeUtil;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedIndexingHandler.Operation;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.index.ChangeChecker;
+import com.googlesource.gerrit.plugins.multisite.index.ChangeCheckerImpl;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Counts the NoteDb reads per forwarded change event done by {@link ForwardedIndexChangeHandler},
+ * both for a single event and for a batch of events of the same project, and compares them with
+ * the reads of the previous reindex path.
+ *
+ * <p>The previous path looked the change up with a first change checker, looked it up again and
+ * reloaded its notes with a second checker, indexed the change through {@link
+ * ChangeIndexer#index(Change)}, which builds the change data by loading the notes once more, and
+ * opened the repository again to check the target branch. It is replayed here against the same
+ * counting repository, notes factory and indexer used by the handler. The counts are deterministic,
+ * so no timing is printed. It is not part of the test suite and can be run as a plain Java
+ * application from the test classpath.
+ */
+public class ChangeReindexReadsBenchmark {
+  private static final String PROJECT = "platform/frameworks/base";
+  private static final int FIRST_CHANGE = 123456;
+  private static final int EVENTS = 20;
+
+  private final Project.NameKey project = Project.nameKey(PROJECT);
+  private final GitRepositoryManager repoManager = mock(GitRepositoryManager.class);
+  private final Repository repo = mock(Repository.class);
+  private final ChangeNotes.Factory notesFactory = mock(ChangeNotes.Factory.class);
+  private final ChangeData.Factory changeDataFactory = mock(ChangeData.Factory.class);
+  private final ChangeIndexer indexer = mock(ChangeIndexer.class);
+  private final ForwardedIndexChangeHandler handler;
+
+  private int repositoryOpens;
+  private int metaRefReads;
+  private int notesLoads;
+
+  private ChangeReindexReadsBenchmark() throws Exception {
+    when(repoManager.openRepository(project))
+        .thenAnswer(
+            invocation -> {
+              repositoryOpens++;
+              return repo;
+            });
+    Ref metaRef = mock(Ref.class);
+    when(repo.exactRef(any()))
+        .thenAnswer(
+            invocation -> {
+              metaRefReads++;
+              return metaRef;
+            });
+    when(notesFactory.create(any(Repository.class), any(Project.NameKey.class), any()))
+        .thenAnswer(invocation -> loadNotes(invocation.getArgument(2)));
+    when(changeDataFactory.create(any(ChangeNotes.class))).thenReturn(mock(ChangeData.class));
+    doAnswer(
+            invocation -> {
+              // The change data built from the change alone loads its notes again
+              notesLoads++;
+              return null;
+            })
+        .when(indexer)
+        .index(any(Change.class));
+
+    OneOffRequestContext oneOffCtx = mock(OneOffRequestContext.class);
+    when(oneOffCtx.open()).thenReturn(mock(ManualRequestContext.class));
+    ChangeChecker checker = mock(ChangeChecker.class);
+    when(checker.isUpToDate(any())).thenReturn(true);
+    ChangeCheckerImpl.Factory checkerFactory = mock(ChangeCheckerImpl.Factory.class);
+    when(checkerFactory.create(any(), any(), any())).thenReturn(checker);
+
+    handler =
+        new ForwardedIndexChangeHandler(
+            indexer,
+            new Configuration(new Config(), new Config()),
+            mock(ScheduledExecutorService.class),
+            oneOffCtx,
+            checkerFactory,
+            repoManager,
+            notesFactory,
+            changeDataFactory,
+            mock(ForwardedIndexRetryMetrics.class),
+            new RefUpdateWaiters());
+  }
+
+  public static void main(String[] args) throws Exception {
+    ChangeReindexReadsBenchmark benchmark = new ChangeReindexReadsBenchmark();
+    System.out.printf(
+        "%-22s %12s %14s %12s%n", "path", "repo opens", "meta ref reads", "notes loads");
+
+    for (ChangeIndexEvent event : benchmark.events()) {
+      benchmark.previousPath(event);
+    }
+    benchmark.print("previous");
+
+    for (ChangeIndexEvent event : benchmark.events()) {
+      benchmark.handler.index(PROJECT + "~" + event.changeId, Operation.INDEX, Optional.of(event));
+    }
+    benchmark.print("single event");
+
+    benchmark.handler.indexAll(benchmark.project, benchmark.events());
+    benchmark.print("batch of " + EVENTS);
+  }
+
+  private void previousPath(ChangeIndexEvent event) throws Exception {
+    Change.Id changeId = Change.id(event.changeId);
+    // The first checker looked the change up
+    notesFactory.create(repo, project, changeId);
+    // reindex() looked it up again with a second checker and reloaded its notes
+    ChangeNotes notes = notesFactory.create(repo, project, changeId);
+    notes.reload();
+    indexer.index(notes.getChange());
+    // The up-to-date check opened the repository again for the target branch
+    repoManager.openRepository(project);
+  }
+
+  private ChangeNotes loadNotes(Change.Id changeId) {
+    notesLoads++;
+    ChangeNotes notes = mock(ChangeNotes.class);
+    when(notes.getChange()).thenReturn(new Change(null, changeId, null, null, TimeUtil.nowTs()));
+    doAnswer(
+            invocation -> {
+              notesLoads++;
+              return null;
+            })
+        .when(notes)
+        .reload();
+    return notes;
+  }
+
+  private List<ChangeIndexEvent> events() {
+    List<ChangeIndexEvent> events = new ArrayList<>();
+    for (int i = 0; i < EVENTS; i++) {
+      events.add(new ChangeIndexEvent(PROJECT, FIRST_CHANGE + i, false));
+    }
+    return events;
+  }
+
+  private void print(String path) {
+    System.out.printf(
+        "%-22s %12.2f %14.2f %12.2f%n",
+        path,
+        (double) repositoryOpens / EVENTS,
+        (double) metaRefReads / EVENTS,
+        (double) notesLoads / EVENTS);
+    repositoryOpens = 0;
+    metaRefReads = 0;
+    notesLoads = 0;
+  }
+}
@@ -16,20 +16,27 @@ package com.googlesource.gerrit.plugins.multisite.forwarder;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.gerrit.entities.Account;
+import com.google.gerrit.exceptions.StorageException;
 import com.google.gerrit.server.index.account.AccountIndexer;
 import com.googlesource.gerrit.plugins.multisite.Configuration;
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedIndexingHandler.Operation;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
@@ -39,9 +46,12 @@ import org.mockito.stubbing.Answer;
 public class ForwardedIndexAccountHandlerTest {
 
   @Rule public ExpectedException exception = ExpectedException.none();
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
   @Mock private AccountIndexer indexerMock;
+  @Mock private ScheduledExecutorService indexExecutorMock;
   @Mock private Configuration config;
   @Mock private Configuration.Index index;
+  private Path pendingAccountsFile;
   private ForwardedIndexAccountHandler handler;
   private Account.Id id;
 
@@ -49,7 +59,9 @@ public class ForwardedIndexAccountHandlerTest {
   public void setUp() throws Exception {
     when(config.index()).thenReturn(index);
     when(index.numStripedLocks()).thenReturn(10);
-    handler = new ForwardedIndexAccountHandler(indexerMock, config);
+    pendingAccountsFile =
+        tempFolder.getRoot().toPath().resolve(PendingAccounts.PENDING_ACCOUNTS_FILE);
+    handler = newHandler();
     id = Account.id(123);
   }
 
@@ -107,4 +119,61 @@ public class ForwardedIndexAccountHandlerTest {
 
     verify(indexerMock).index(id);
   }
+
+  @Test
+  public void pendingAccountShouldBeIndexedInTheBackgroundWhenFlushed() throws Exception {
+    runTasksInline();
+
+    handler.indexAsync(id, Operation.INDEX);
+    assertThat(handler.pendingAccountsToIndex()).containsExactly(id);
+    assertThat(new PendingAccounts(pendingAccountsFile).load()).containsExactly(id);
+
+    handler.doAsyncIndex();
+    verify(indexerMock).index(id);
+    assertThat(handler.pendingAccountsToIndex()).isEmpty();
+    assertThat(new PendingAccounts(pendingAccountsFile).load()).isEmpty();
+  }
+
+  @Test
+  public void accountFailingToBeIndexedShouldStayPendingAcrossRestarts() throws Exception {
+    runTasksInline();
+    doThrow(new StorageException("io-error")).when(indexerMock).index(id);
+
+    handler.indexAsync(id, Operation.INDEX);
+    handler.doAsyncIndex();
+
+    assertThat(handler.pendingAccountsToIndex()).containsExactly(id);
+    assertThat(newHandler().pendingAccountsToIndex()).containsExactly(id);
+  }
+
+  @Test
+  public void pendingAccountShouldBeIndexedOnTheCallingThreadWhenTheQueueIsStopped()
+      throws Exception {
+    doThrow(new RejectedExecutionException("stopped"))
+        .when(indexExecutorMock)
+        .execute(any(Runnable.class));
+
+    handler.indexAsync(id, Operation.INDEX);
+    handler.doAsyncIndex();
+    handler.flush();
+
+    verify(indexerMock).index(id);
+    assertThat(handler.pendingAccountsToIndex()).isEmpty();
+    assertThat(new PendingAccounts(pendingAccountsFile).load()).isEmpty();
+  }
+
+  private ForwardedIndexAccountHandler newHandler() {
+    return new ForwardedIndexAccountHandler(
+        indexerMock, config, indexExecutorMock, new PendingAccounts(pendingAccountsFile));
+  }
+
+  private void runTasksInline() {
+    doAnswer(
+            invocation -> {
+              invocation.<Runnable>getArgument(0).run();
+              return null;
+            })
+        .when(indexExecutorMock)
+        .execute(any(Runnable.class));
+  }
 }
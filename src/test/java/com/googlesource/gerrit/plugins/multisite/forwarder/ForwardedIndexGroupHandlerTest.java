@@ -17,13 +17,16 @@ package com.googlesource.gerrit.plugins.multisite.forwarder;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.gerrit.testing.GerritJUnit.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.gerrit.entities.AccountGroup;
 import com.google.gerrit.server.index.group.GroupIndexer;
+import com.google.gerrit.server.util.ManualRequestContext;
 import com.google.gerrit.server.util.OneOffRequestContext;
 import com.googlesource.gerrit.plugins.multisite.Configuration;
 import com.googlesource.gerrit.plugins.multisite.forwarder.ForwardedIndexingHandler.Operation;
@@ -38,6 +41,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
@@ -48,12 +52,15 @@ public class ForwardedIndexGroupHandlerTest {
   @Rule public ExpectedException exception = ExpectedException.none();
   @Mock private GroupIndexer indexerMock;
   @Mock private OneOffRequestContext ctxMock;
+  @Mock private ManualRequestContext manualRequestContextMock;
   @Mock private ScheduledExecutorService indexExecutorMock;
   @Mock private Configuration config;
   @Mock private Configuration.Index index;
+  @Mock private ForwardedIndexRetryMetrics retryMetricsMock;
   private ForwardedIndexGroupHandler handler;
   private String uuid;
   private static final int RETRY_INTERVAL = 1000;
+  private static final int MAX_RETRY_INTERVAL = 5000;
   private static final int MAX_TRIES = 2;
 
   @Before
@@ -61,6 +68,7 @@ public class ForwardedIndexGroupHandlerTest {
     when(config.index()).thenReturn(index);
     when(index.numStripedLocks()).thenReturn(10);
     when(index.retryInterval()).thenReturn(RETRY_INTERVAL);
+    when(index.maxRetryInterval()).thenReturn(MAX_RETRY_INTERVAL);
     when(index.maxTries()).thenReturn(MAX_TRIES);
     handler = groupHandler(true);
     uuid = "123";
@@ -133,13 +141,50 @@ public class ForwardedIndexGroupHandlerTest {
   public void shouldRescheduleGroupIndexingWhenItIsNotUpToDate() throws IOException {
     ForwardedIndexGroupHandler groupHandlerWithOutdatedEvent = groupHandler(false);
     groupHandlerWithOutdatedEvent.index(uuid, Operation.INDEX, groupIndexEvent(uuid));
+    ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
     verify(indexExecutorMock)
-        .schedule(any(Runnable.class), eq(new Long(RETRY_INTERVAL)), eq(TimeUnit.MILLISECONDS));
+        .schedule(any(Runnable.class), delay.capture(), eq(TimeUnit.MILLISECONDS));
+    assertThat(delay.getValue()).isAtLeast(RETRY_INTERVAL * 3L / 4);
+    assertThat(delay.getValue()).isAtMost(RETRY_INTERVAL * 5L / 4);
+  }
+
+  @Test
+  public void shouldBackOffExponentiallyUpToTheMaxRetryInterval() {
+    assertThat(handler.retryDelayMs(2)).isAtLeast(2 * RETRY_INTERVAL * 3L / 4);
+    assertThat(handler.retryDelayMs(2)).isAtMost(2 * RETRY_INTERVAL * 5L / 4);
+    assertThat(handler.retryDelayMs(3)).isAtLeast(4 * RETRY_INTERVAL * 3L / 4);
+    assertThat(handler.retryDelayMs(3)).isAtMost(4 * RETRY_INTERVAL * 5L / 4);
+    assertThat(handler.retryDelayMs(10)).isEqualTo((long) MAX_RETRY_INTERVAL);
+  }
+
+  @Test
+  public void shouldKeepOnePendingRetryPerGroupWithTheNewestEvent() throws IOException {
+    ForwardedIndexGroupHandler groupHandlerWithOutdatedEvent = groupHandler(false);
+    Optional<GroupIndexEvent> olderEvent = groupIndexEvent(uuid);
+    Optional<GroupIndexEvent> newerEvent = groupIndexEvent(uuid);
+    newerEvent.get().eventCreatedOn = olderEvent.get().eventCreatedOn + 1;
+
+    groupHandlerWithOutdatedEvent.index(uuid, Operation.INDEX, olderEvent);
+    groupHandlerWithOutdatedEvent.index(uuid, Operation.INDEX, newerEvent);
+
+    ArgumentCaptor<Runnable> retry = ArgumentCaptor.forClass(Runnable.class);
+    verify(indexExecutorMock).schedule(retry.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+    assertThat(groupHandlerWithOutdatedEvent.pendingRetries()).containsExactly(newerEvent.get());
+    assertThat(groupHandlerWithOutdatedEvent.pendingRetryCount()).isEqualTo(1);
+
+    when(ctxMock.open()).thenReturn(manualRequestContextMock);
+    retry.getValue().run();
+    verify(indexerMock, times(3)).index(AccountGroup.uuid(uuid));
   }
 
   private ForwardedIndexGroupHandler groupHandler(boolean checkIsUpToDate) {
     return new ForwardedIndexGroupHandler(
-        indexerMock, config, new TestGroupChecker(checkIsUpToDate), ctxMock, indexExecutorMock);
+        indexerMock,
+        config,
+        new TestGroupChecker(checkIsUpToDate),
+        ctxMock,
+        indexExecutorMock,
+        retryMetricsMock);
   }
 
   private Optional<GroupIndexEvent> groupIndexEvent(String uuid) {
@@ -49,6 +49,7 @@ public class ForwardedIndexProjectHandlerTest {
   @Mock private ProjectChecker projectCheckerMock;
   @Mock private Configuration.Index indexMock;
   @Mock private ScheduledExecutorService indexExecutorMock;
+  @Mock private ForwardedIndexRetryMetrics retryMetricsMock;
   private ForwardedIndexProjectHandler handler;
   private String nameKey;
 
@@ -61,7 +62,12 @@ public class ForwardedIndexProjectHandlerTest {
     when(projectCheckerMock.isUpToDate(any())).thenReturn(true);
     handler =
         new ForwardedIndexProjectHandler(
-            indexerMock, projectCheckerMock, ctxMock, indexExecutorMock, configMock);
+            indexerMock,
+            projectCheckerMock,
+            ctxMock,
+            indexExecutorMock,
+            configMock,
+            retryMetricsMock);
     nameKey = "project/name";
   }
 
@@ -0,0 +1,73 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Account;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PendingAccountsTest {
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Path pendingAccountsFile;
+  private PendingAccounts pendingAccounts;
+
+  @Before
+  public void setUp() throws Exception {
+    pendingAccountsFile =
+        tempFolder
+            .getRoot()
+            .toPath()
+            .resolve("multi-site")
+            .resolve(PendingAccounts.PENDING_ACCOUNTS_FILE);
+    pendingAccounts = new PendingAccounts(pendingAccountsFile);
+  }
+
+  @Test
+  public void shouldLoadTheSavedAccountsUntilReplaced() {
+    pendingAccounts.save(ImmutableList.of(Account.id(1), Account.id(2)));
+
+    assertThat(pendingAccounts.load()).containsExactly(Account.id(1), Account.id(2)).inOrder();
+    assertThat(pendingAccounts.load()).containsExactly(Account.id(1), Account.id(2)).inOrder();
+
+    pendingAccounts.save(ImmutableList.of(Account.id(3)));
+    assertThat(pendingAccounts.load()).containsExactly(Account.id(3));
+  }
+
+  @Test
+  public void shouldRemoveTheStoredAccountsWhenNoAccountIsPending() {
+    pendingAccounts.save(ImmutableList.of(Account.id(1)));
+    pendingAccounts.save(ImmutableList.of());
+
+    assertThat(Files.exists(pendingAccountsFile)).isFalse();
+    assertThat(pendingAccounts.load()).isEmpty();
+  }
+
+  @Test
+  public void shouldSkipTheInvalidAccounts() throws Exception {
+    Files.createDirectories(pendingAccountsFile.getParent());
+    Files.write(pendingAccountsFile, ImmutableList.of("1", "not-an-account", "", "2"), UTF_8);
+
+    assertThat(pendingAccounts.load()).containsExactly(Account.id(1), Account.id(2)).inOrder();
+  }
+}
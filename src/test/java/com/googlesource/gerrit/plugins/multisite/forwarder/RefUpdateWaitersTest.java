@@ -0,0 +1,81 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RefUpdateWaitersTest {
+  private static final String PROJECT = "test/project";
+  private static final String META_REF = RefNames.changeMetaRef(Change.id(123));
+
+  @Mock private GitReferenceUpdatedListener.Event refUpdatedEvent;
+
+  private final RefUpdateWaiters waiters = new RefUpdateWaiters();
+  private final AtomicInteger wakeUps = new AtomicInteger();
+
+  @Test
+  public void shouldWakeUpTheWaiterOnceWhenTheMetaRefIsUpdatedLocally() {
+    waiters.await(PROJECT, META_REF, wakeUps::incrementAndGet);
+    when(refUpdatedEvent.getRefName()).thenReturn(META_REF);
+    when(refUpdatedEvent.getProjectName()).thenReturn(PROJECT);
+
+    waiters.onGitReferenceUpdated(refUpdatedEvent);
+    waiters.onGitReferenceUpdated(refUpdatedEvent);
+
+    assertThat(wakeUps.get()).isEqualTo(1);
+    assertThat(waiters.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldIgnoreTheLocalUpdatesOfOtherRefs() {
+    waiters.await(PROJECT, META_REF, wakeUps::incrementAndGet);
+    when(refUpdatedEvent.getRefName()).thenReturn("refs/heads/master");
+
+    waiters.onGitReferenceUpdated(refUpdatedEvent);
+
+    assertThat(wakeUps.get()).isEqualTo(0);
+    assertThat(waiters.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldNotWakeUpTheWaiterOfTheSameRefInAnotherProject() {
+    waiters.await(PROJECT, META_REF, wakeUps::incrementAndGet);
+
+    waiters.refUpdated("other/project", META_REF);
+
+    assertThat(wakeUps.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldNotWakeUpACancelledWaiter() {
+    waiters.await(PROJECT, META_REF, wakeUps::incrementAndGet);
+    waiters.cancel(PROJECT, META_REF);
+
+    waiters.refUpdated(PROJECT, META_REF);
+
+    assertThat(wakeUps.get()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,68 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder.events;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.server.data.RefUpdateAttribute;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventGsonProvider;
+import com.google.gerrit.server.events.RefUpdatedEvent;
+import com.google.gson.Gson;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchEventTest {
+  private static final String PROJECT = "foo/bar";
+
+  private Gson gson;
+
+  @Before
+  public void setUp() {
+    MultiSiteEvent.registerEventTypes();
+    gson = new EventGsonProvider().get();
+  }
+
+  @Test
+  public void shouldKeepTheConcreteEventsOfABatchThroughEventGson() {
+    RefUpdateAttribute refUpdate = new RefUpdateAttribute();
+    refUpdate.project = PROJECT;
+    refUpdate.refName = "refs/heads/master";
+    RefUpdatedEvent streamEvent = new RefUpdatedEvent();
+    streamEvent.refUpdate = Suppliers.ofInstance(refUpdate);
+    BatchEvent batch =
+        new BatchEvent(
+            ImmutableList.of(
+                new ChangeIndexEvent(PROJECT, 1, false),
+                new CacheEvictionEvent("projects", PROJECT),
+                streamEvent));
+
+    Event decoded = gson.fromJson(gson.toJson(batch, Event.class), Event.class);
+
+    assertThat(decoded).isInstanceOf(BatchEvent.class);
+    ImmutableList<Event> events = ImmutableList.copyOf(((BatchEvent) decoded).events);
+    assertThat(events).hasSize(3);
+    assertThat(events.get(0)).isEqualTo(new ChangeIndexEvent(PROJECT, 1, false));
+    assertThat(events.get(1)).isInstanceOf(CacheEvictionEvent.class);
+    assertThat(((CacheEvictionEvent) events.get(1)).cacheName).isEqualTo("projects");
+    assertThat(((CacheEvictionEvent) events.get(1)).key).isEqualTo(PROJECT);
+    assertThat(events.get(2)).isInstanceOf(RefUpdatedEvent.class);
+    RefUpdateAttribute decodedRefUpdate = ((RefUpdatedEvent) events.get(2)).refUpdate.get();
+    assertThat(decodedRefUpdate.project).isEqualTo(PROJECT);
+    assertThat(decodedRefUpdate.refName).isEqualTo("refs/heads/master");
+  }
+}
@@ -0,0 +1,85 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder.events;
+
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.server.events.CommentAddedEvent;
+import com.google.gerrit.server.util.time.TimeUtil;
+import org.junit.Test;
+
+public class EventRoutingKeyTest {
+  private static final String PROJECT = "foo/bar";
+
+  @Test
+  public void shouldRouteChangeAndProjectEventsByProjectName() {
+    assertThat(EventRoutingKey.of(new ChangeIndexEvent(PROJECT, 1, false))).hasValue(PROJECT);
+    assertThat(EventRoutingKey.of(new ProjectIndexEvent(PROJECT))).hasValue(PROJECT);
+    assertThat(EventRoutingKey.of(new ProjectListUpdateEvent(PROJECT, false))).hasValue(PROJECT);
+  }
+
+  @Test
+  public void shouldRouteStreamEventsByProjectName() {
+    Change change =
+        new Change(
+            Change.key("Iabcd1234abcd1234abcd1234abcd1234abcd1234"),
+            Change.id(1),
+            Account.id(1),
+            BranchNameKey.create(PROJECT, "refs/heads/master"),
+            TimeUtil.nowTs());
+
+    assertThat(EventRoutingKey.of(new CommentAddedEvent(change))).hasValue(PROJECT);
+  }
+
+  @Test
+  public void shouldRouteCacheEvictionsByCacheNameAndKey() {
+    assertThat(EventRoutingKey.of(new CacheEvictionEvent("projects", PROJECT)))
+        .hasValue("projects/" + PROJECT);
+  }
+
+  @Test
+  public void shouldRouteChangeDeletionsByChangeNumber() {
+    assertThat(EventRoutingKey.of(new ChangeIndexEvent("", 1, true))).hasValue("change/1");
+    assertThat(EventRoutingKey.of(new ChangeIndexEvent(PROJECT, 1, true))).hasValue("change/1");
+  }
+
+  @Test
+  public void shouldRouteBatchByTheCommonKeyOfItsEvents() {
+    assertThat(
+            EventRoutingKey.of(
+                new BatchEvent(
+                    ImmutableList.of(
+                        new ProjectIndexEvent(PROJECT), new ChangeIndexEvent(PROJECT, 1, false)))))
+        .hasValue(PROJECT);
+    assertThat(
+            EventRoutingKey.of(
+                new BatchEvent(
+                    ImmutableList.of(
+                        new ProjectIndexEvent(PROJECT), new ProjectIndexEvent("another")))))
+        .isEmpty();
+  }
+
+  @Test
+  public void shouldRouteEncodedEventByItsRoutingKey() {
+    EncodedEvent encoded = new EncodedEvent("binary", 1, "");
+    encoded.routingKey = PROJECT;
+
+    assertThat(EventRoutingKey.of(encoded)).hasValue(PROJECT);
+  }
+}
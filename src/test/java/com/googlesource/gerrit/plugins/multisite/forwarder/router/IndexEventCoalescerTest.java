@@ -0,0 +1,162 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder.router;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.IndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectIndexEvent;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class IndexEventCoalescerTest {
+  private static final long WINDOW_MS = 500;
+  private static final String CHANGE = "change";
+  private static final String PROJECT = "project";
+
+  @Mock private ScheduledExecutorService executor;
+  @Mock private IndexEventCoalescerMetrics metrics;
+
+  private List<IndexEvent> routedEvents;
+  private IndexEventCoalescer coalescer;
+
+  @Before
+  public void setUp() {
+    routedEvents = new ArrayList<>();
+    coalescer = new IndexEventCoalescer(executor, WINDOW_MS, metrics);
+  }
+
+  @Test
+  public void shouldRouteImmediatelyWhenCoalescingIsDisabled() throws Exception {
+    coalescer = new IndexEventCoalescer(executor, 0, metrics);
+    ChangeIndexEvent event = changeIndexEvent(1, 100);
+
+    CompletableFuture<Void> routed = coalescer.coalesce(CHANGE, "1", event, routedEvents::add);
+
+    assertThat(routedEvents).containsExactly(event);
+    assertThat(routed.isDone()).isTrue();
+    verifyZeroInteractions(executor, metrics);
+  }
+
+  @Test
+  public void shouldRouteOnlyTheNewestEventOfTheSameId() throws Exception {
+    ChangeIndexEvent first = changeIndexEvent(1, 100);
+    ChangeIndexEvent second = changeIndexEvent(1, 102);
+    ChangeIndexEvent third = changeIndexEvent(1, 101);
+
+    CompletableFuture<Void> firstRouted =
+        coalescer.coalesce(CHANGE, "1", first, routedEvents::add);
+    CompletableFuture<Void> secondRouted =
+        coalescer.coalesce(CHANGE, "1", second, routedEvents::add);
+    CompletableFuture<Void> thirdRouted =
+        coalescer.coalesce(CHANGE, "1", third, routedEvents::add);
+    assertThat(routedEvents).isEmpty();
+    assertThat(firstRouted.isDone()).isFalse();
+
+    runScheduledFlushes(1);
+
+    assertThat(routedEvents).containsExactly(second);
+    assertThat(firstRouted.isDone()).isTrue();
+    assertThat(secondRouted.isDone()).isTrue();
+    assertThat(thirdRouted.isDone()).isTrue();
+    assertThat(coalescer.pendingEvents()).isEqualTo(0);
+    verify(metrics, times(3)).incrementReceived(CHANGE);
+    verify(metrics, times(2)).incrementCoalesced(CHANGE);
+  }
+
+  @Test
+  public void shouldCoalesceEachIndexTypeAndIdIndependently() throws Exception {
+    ChangeIndexEvent change1 = changeIndexEvent(1, 100);
+    ChangeIndexEvent change2 = changeIndexEvent(2, 100);
+    ProjectIndexEvent project = new ProjectIndexEvent("1");
+
+    CompletableFuture<?> unused = coalescer.coalesce(CHANGE, "1", change1, routedEvents::add);
+    unused = coalescer.coalesce(CHANGE, "2", change2, routedEvents::add);
+    unused = coalescer.coalesce(PROJECT, "1", project, routedEvents::add);
+    runScheduledFlushes(3);
+
+    assertThat(routedEvents).containsExactly(change1, change2, project);
+  }
+
+  @Test
+  public void shouldDiscardThePendingEventOfAnId() throws Exception {
+    CompletableFuture<Void> routed =
+        coalescer.coalesce(CHANGE, "1", changeIndexEvent(1, 100), routedEvents::add);
+
+    coalescer.discard(CHANGE, "1");
+    runScheduledFlushes(1);
+
+    assertThat(routedEvents).isEmpty();
+    assertThat(routed.isDone()).isTrue();
+    verify(metrics).incrementCoalesced(CHANGE);
+  }
+
+  @Test
+  public void shouldRouteAllThePendingEventsWhenFlushed() throws Exception {
+    ChangeIndexEvent event = changeIndexEvent(1, 100);
+    CompletableFuture<?> unused = coalescer.coalesce(CHANGE, "1", event, routedEvents::add);
+
+    coalescer.flushAll();
+
+    assertThat(routedEvents).containsExactly(event);
+    assertThat(coalescer.pendingEvents()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldCompleteExceptionallyTheEventsFailingToBeRouted() throws Exception {
+    CompletableFuture<Void> routed =
+        coalescer.coalesce(
+            CHANGE,
+            "1",
+            changeIndexEvent(1, 100),
+            e -> {
+              throw new IOException("index failure");
+            });
+
+    runScheduledFlushes(1);
+
+    assertThat(routed.isCompletedExceptionally()).isTrue();
+  }
+
+  private void runScheduledFlushes(int expectedWindows) {
+    ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor, times(expectedWindows))
+        .schedule(flush.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+    flush.getAllValues().forEach(Runnable::run);
+  }
+
+  private static ChangeIndexEvent changeIndexEvent(int changeId, long createdOn) {
+    ChangeIndexEvent event = new ChangeIndexEvent("test_project", changeId, false);
+    event.eventCreatedOn = createdOn;
+    return event;
+  }
+}
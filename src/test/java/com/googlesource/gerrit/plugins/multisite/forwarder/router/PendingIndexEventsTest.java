@@ -0,0 +1,70 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.forwarder.router;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.server.events.EventGsonProvider;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.AccountIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.MultiSiteEvent;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectIndexEvent;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PendingIndexEventsTest {
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Path pendingEventsFile;
+  private PendingIndexEvents pendingEvents;
+
+  @Before
+  public void setUp() throws Exception {
+    MultiSiteEvent.registerEventTypes();
+    pendingEventsFile =
+        tempFolder
+            .getRoot()
+            .toPath()
+            .resolve("multi-site")
+            .resolve(PendingIndexEvents.PENDING_INDEX_EVENTS_FILE);
+    pendingEvents = new PendingIndexEvents(pendingEventsFile, new EventGsonProvider().get());
+  }
+
+  @Test
+  public void shouldLoadTheSavedEventsOnlyOnce() {
+    ChangeIndexEvent changeEvent = new ChangeIndexEvent("project", 1, false);
+    pendingEvents.save(
+        ImmutableList.of(changeEvent, new ProjectIndexEvent("project"), new AccountIndexEvent(2)));
+
+    assertThat(pendingEvents.load())
+        .containsExactly(changeEvent, new ProjectIndexEvent("project"), new AccountIndexEvent(2))
+        .inOrder();
+    assertThat(pendingEvents.load()).isEmpty();
+  }
+
+  @Test
+  public void shouldRemoveTheStoredEventsWhenNoEventIsPending() {
+    pendingEvents.save(ImmutableList.of(new ProjectIndexEvent("project")));
+    pendingEvents.save(ImmutableList.of());
+
+    assertThat(Files.exists(pendingEventsFile)).isFalse();
+    assertThat(pendingEvents.load()).isEmpty();
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.index;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.config.AllUsersName;
+import com.google.gerrit.server.config.AllUsersNameProvider;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.googlesource.gerrit.plugins.multisite.Configuration;
+import java.util.Optional;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ChangeCheckerCacheTest {
+  private static final String CHANGE_ID = "test/project~123";
+  private static final Change.Id CHANGE_NUMBER = Change.id(123);
+  private static final ObjectId META_ID =
+      ObjectId.fromString("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+  private static final ObjectId NEW_META_ID =
+      ObjectId.fromString("bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb");
+  private static final ObjectId DRAFT_ID =
+      ObjectId.fromString("cccccccccccccccccccccccccccccccccccccccc");
+
+  private final AllUsersName allUsers = new AllUsersName(AllUsersNameProvider.DEFAULT);
+
+  @Mock private Configuration configMock;
+  @Mock private Configuration.Index indexMock;
+  @Mock private GitRepositoryManager repoManagerMock;
+  @Mock private Repository repoMock;
+  @Mock private Repository allUsersRepoMock;
+  @Mock private RefDatabase allUsersRefDatabaseMock;
+
+  @Before
+  public void setUp() {
+    when(configMock.index()).thenReturn(indexMock);
+  }
+
+  @Test
+  public void shouldReturnTheCachedTsOfAnUnchangedChange() throws Exception {
+    ChangeCheckerCache cache = newCache(10);
+    setMetaRef(META_ID);
+    setDraftRefs();
+    ChangeCheckerCache.Key key = cache.currentKey(CHANGE_ID, repoMock, CHANGE_NUMBER).get();
+
+    assertThat(cache.get(key).isPresent()).isFalse();
+    cache.put(key, new ChangeCheckerCache.Computed(1000L, "refs/heads/master"));
+
+    ChangeCheckerCache.Key sameKey = cache.currentKey(CHANGE_ID, repoMock, CHANGE_NUMBER).get();
+    Optional<ChangeCheckerCache.Computed> cached = cache.get(sameKey);
+    assertThat(cached.isPresent()).isTrue();
+    assertThat(cached.get().changeTs()).isEqualTo(1000L);
+    assertThat(cached.get().targetBranch()).isEqualTo("refs/heads/master");
+  }
+
+  @Test
+  public void shouldMissWhenTheMetaRefIsUpdated() throws Exception {
+    ChangeCheckerCache cache = newCache(10);
+    setMetaRef(META_ID);
+    setDraftRefs();
+    cache.put(
+        cache.currentKey(CHANGE_ID, repoMock, CHANGE_NUMBER).get(),
+        new ChangeCheckerCache.Computed(1000L, "refs/heads/master"));
+
+    setMetaRef(NEW_META_ID);
+    ChangeCheckerCache.Key newKey = cache.currentKey(CHANGE_ID, repoMock, CHANGE_NUMBER).get();
+    assertThat(cache.get(newKey).isPresent()).isFalse();
+  }
+
+  @Test
+  public void shouldMissWhenTheDraftCommentsAreUpdated() throws Exception {
+    ChangeCheckerCache cache = newCache(10);
+    setMetaRef(META_ID);
+    setDraftRefs();
+    cache.put(
+        cache.currentKey(CHANGE_ID, repoMock, CHANGE_NUMBER).get(),
+        new ChangeCheckerCache.Computed(1000L, "refs/heads/master"));
+
+    String draftRef = RefNames.refsDraftComments(CHANGE_NUMBER, Account.id(1000));
+    setDraftRefs(new ObjectIdRef.PeeledNonTag(Ref.Storage.NETWORK, draftRef, DRAFT_ID));
+    ChangeCheckerCache.Key newKey = cache.currentKey(CHANGE_ID, repoMock, CHANGE_NUMBER).get();
+    assertThat(cache.get(newKey).isPresent()).isFalse();
+  }
+
+  @Test
+  public void shouldNotReturnAKeyWhenTheChangeDoesNotExist() throws Exception {
+    ChangeCheckerCache cache = newCache(10);
+    doReturn(null).when(repoMock).exactRef(RefNames.changeMetaRef(CHANGE_NUMBER));
+
+    assertThat(cache.currentKey(CHANGE_ID, repoMock, CHANGE_NUMBER).isPresent()).isFalse();
+  }
+
+  @Test
+  public void shouldNotCacheWhenDisabled() {
+    ChangeCheckerCache cache = newCache(0);
+    ChangeCheckerCache.Key key =
+        new ChangeCheckerCache.Key(CHANGE_ID, META_ID, ImmutableMap.of());
+    cache.put(key, new ChangeCheckerCache.Computed(1000L, "refs/heads/master"));
+
+    assertThat(cache.isEnabled()).isFalse();
+    assertThat(cache.get(key).isPresent()).isFalse();
+  }
+
+  private ChangeCheckerCache newCache(int size) {
+    when(indexMock.changeCheckerCacheSize()).thenReturn(size);
+    return new ChangeCheckerCache(configMock, repoManagerMock, allUsers, new DisabledMetricMaker());
+  }
+
+  private void setMetaRef(ObjectId metaId) throws Exception {
+    String metaRef = RefNames.changeMetaRef(CHANGE_NUMBER);
+    doReturn(new ObjectIdRef.PeeledNonTag(Ref.Storage.NETWORK, metaRef, metaId))
+        .when(repoMock)
+        .exactRef(metaRef);
+  }
+
+  private void setDraftRefs(Ref... draftRefs) throws Exception {
+    doReturn(allUsersRepoMock).when(repoManagerMock).openRepository(allUsers);
+    doReturn(allUsersRefDatabaseMock).when(allUsersRepoMock).getRefDatabase();
+    doReturn(ImmutableList.copyOf(draftRefs))
+        .when(allUsersRefDatabaseMock)
+        .getRefsByPrefix(RefNames.refsDraftCommentsPrefix(CHANGE_NUMBER));
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.multisite.index;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ChangeIndexCoalescerTest {
+  private static final long WINDOW_MS = 500;
+  private static final String PROJECT = "test_project";
+
+  @Mock private ScheduledExecutorService executor;
+
+  private List<ChangeIndexEvent> forwardedEvents;
+  private ChangeIndexCoalescer coalescer;
+
+  @Before
+  public void setUp() {
+    forwardedEvents = new ArrayList<>();
+    coalescer = new ChangeIndexCoalescer(executor, WINDOW_MS);
+  }
+
+  @Test
+  public void shouldForwardImmediatelyWhenCoalescingIsDisabled() {
+    coalescer = new ChangeIndexCoalescer(executor, 0);
+    ChangeIndexEvent event = changeIndexEvent(1, "sha1", 100);
+
+    coalescer.coalesce(event, forwardedEvents::add);
+
+    assertThat(forwardedEvents).containsExactly(event);
+    verifyZeroInteractions(executor);
+  }
+
+  @Test
+  public void shouldForwardOnlyTheNewestEventOfTheSameChange() {
+    ChangeIndexEvent first = changeIndexEvent(1, "sha1", 100);
+    ChangeIndexEvent second = changeIndexEvent(1, "sha2", 101);
+    ChangeIndexEvent third = changeIndexEvent(1, "sha3", 101);
+
+    coalescer.coalesce(first, forwardedEvents::add);
+    coalescer.coalesce(second, forwardedEvents::add);
+    coalescer.coalesce(third, forwardedEvents::add);
+    assertThat(forwardedEvents).isEmpty();
+
+    runScheduledFlushes(1);
+
+    assertThat(forwardedEvents).containsExactly(third);
+    assertThat(coalescer.pendingChanges()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldNotReplacePendingEventWithAnOlderOne() {
+    ChangeIndexEvent newer = changeIndexEvent(1, "sha2", 101);
+    ChangeIndexEvent older = changeIndexEvent(1, "sha1", 100);
+
+    coalescer.coalesce(newer, forwardedEvents::add);
+    coalescer.coalesce(older, forwardedEvents::add);
+    runScheduledFlushes(1);
+
+    assertThat(forwardedEvents).containsExactly(newer);
+  }
+
+  @Test
+  public void shouldCoalesceEachChangeIndependently() {
+    ChangeIndexEvent change1 = changeIndexEvent(1, "sha1", 100);
+    ChangeIndexEvent change2 = changeIndexEvent(2, "sha2", 100);
+
+    coalescer.coalesce(change1, forwardedEvents::add);
+    coalescer.coalesce(change2, forwardedEvents::add);
+    runScheduledFlushes(2);
+
+    assertThat(forwardedEvents).containsExactly(change1, change2);
+  }
+
+  @Test
+  public void shouldForwardDeletionsImmediately() {
+    ChangeIndexEvent deletion = new ChangeIndexEvent("", 1, true);
+
+    coalescer.coalesce(deletion, forwardedEvents::add);
+
+    assertThat(forwardedEvents).containsExactly(deletion);
+  }
+
+  @Test
+  public void shouldDropThePendingEventOfADeletedChange() {
+    ChangeIndexEvent update = changeIndexEvent(1, "sha1", 100);
+    ChangeIndexEvent deletion = new ChangeIndexEvent("", 1, true);
+
+    coalescer.coalesce(update, forwardedEvents::add);
+    coalescer.coalesce(deletion, forwardedEvents::add);
+    assertThat(coalescer.pendingChanges()).isEqualTo(0);
+    runScheduledFlushes(1);
+
+    assertThat(forwardedEvents).containsExactly(deletion);
+  }
+
+  private void runScheduledFlushes(int expectedWindows) {
+    ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor, times(expectedWindows))
+        .schedule(flush.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+    flush.getAllValues().forEach(Runnable::run);
+  }
+
+  private static ChangeIndexEvent changeIndexEvent(int changeId, String targetSha, long createdOn) {
+    ChangeIndexEvent event = new ChangeIndexEvent(PROJECT, changeId, false);
+    event.targetSha = targetSha;
+    event.eventCreatedOn = createdOn;
+    return event;
+  }
+}
@@ -14,9 +14,11 @@
 
 package com.googlesource.gerrit.plugins.multisite.index;
 
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -25,11 +27,18 @@ import com.gerritforge.gerrit.globalrefdb.validation.ProjectsFilter;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.googlesource.gerrit.plugins.multisite.forwarder.IndexEventForwarder;
+import com.googlesource.gerrit.plugins.multisite.forwarder.events.ChangeIndexEvent;
 import com.googlesource.gerrit.plugins.multisite.forwarder.events.ProjectIndexEvent;
+import com.googlesource.gerrit.plugins.multisite.index.IndexEventHandler.IndexChangeTask;
 import com.googlesource.gerrit.plugins.multisite.index.IndexEventHandler.IndexProjectTask;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -41,6 +50,8 @@ public class IndexEventHandlerTest {
   @Mock private ProjectsFilter projectsFilter;
   @Mock private IndexEventForwarder forwarder;
   @Mock private ChangeCheckerImpl.Factory changeChecker;
+  @Mock private ChangeChecker changeCheckerMock;
+  @Mock private ScheduledExecutorService coalescerExecutor;
 
   @Before
   public void setUp() {
@@ -50,7 +61,8 @@ public class IndexEventHandlerTest {
             asDynamicSet(forwarder),
             changeChecker,
             projectsFilter,
-            new TestGroupChecker(true));
+            new TestGroupChecker(true),
+            new ChangeIndexCoalescer(coalescerExecutor, 0));
   }
 
   private DynamicSet<IndexEventForwarder> asDynamicSet(IndexEventForwarder forwarder) {
@@ -65,7 +77,7 @@ public class IndexEventHandlerTest {
 
     eventHandler.onProjectIndexed("test_project");
     verify(forwarder, never())
-        .index(any(IndexProjectTask.class), eq(new ProjectIndexEvent("test_project")));
+        .indexAsync(any(IndexProjectTask.class), eq(new ProjectIndexEvent("test_project")));
   }
 
   @Test
@@ -76,4 +88,50 @@ public class IndexEventHandlerTest {
     eventHandler.onChangeIndexed("test_project", changeId);
     verifyZeroInteractions(changeChecker);
   }
+
+  @Test
+  public void shouldNotForwardThePendingIndexingOfADeletedChange() throws Exception {
+    eventHandler =
+        new IndexEventHandler(
+            MoreExecutors.directExecutor(),
+            asDynamicSet(forwarder),
+            changeChecker,
+            projectsFilter,
+            new TestGroupChecker(true),
+            new ChangeIndexCoalescer(coalescerExecutor, 500));
+    ChangeIndexEvent indexEvent = new ChangeIndexEvent("test_project", 1, false);
+    when(projectsFilter.matches("test_project")).thenReturn(true);
+    when(changeChecker.create("test_project~1")).thenReturn(changeCheckerMock);
+    when(changeCheckerMock.newIndexEvent("test_project", 1, false))
+        .thenReturn(Optional.of(indexEvent));
+    when(forwarder.indexAsync(any(), any())).thenReturn(CompletableFuture.completedFuture(true));
+
+    eventHandler.onChangeIndexed("test_project", 1);
+    eventHandler.onChangeDeleted(1);
+    ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+    verify(coalescerExecutor).schedule(flush.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+    flush.getValue().run();
+
+    verify(forwarder)
+        .indexAsync(any(IndexChangeTask.class), eq(new ChangeIndexEvent("", 1, true)));
+    verify(forwarder, never()).indexAsync(any(IndexChangeTask.class), eq(indexEvent));
+  }
+
+  @Test
+  public void shouldNotForwardTheSameEventAgainUntilItIsPublished() throws Exception {
+    ProjectIndexEvent event = new ProjectIndexEvent("test_project");
+    CompletableFuture<Boolean> published = new CompletableFuture<>();
+    when(projectsFilter.matches("test_project")).thenReturn(true);
+    when(forwarder.indexAsync(any(IndexProjectTask.class), eq(event)))
+        .thenReturn(published)
+        .thenReturn(CompletableFuture.completedFuture(true));
+
+    eventHandler.onProjectIndexed("test_project");
+    eventHandler.onProjectIndexed("test_project");
+    verify(forwarder, times(1)).indexAsync(any(IndexProjectTask.class), eq(event));
+
+    published.complete(true);
+    eventHandler.onProjectIndexed("test_project");
+    verify(forwarder, times(2)).indexAsync(any(IndexProjectTask.class), eq(event));
+  }
 }